@@ -0,0 +1,91 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.bench.jmh;
+
+import de.andreas_rueckert.d64browse.util.CharsetUtils;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * JMH benchmarks for the PETSCII conversion.
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.NANOSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class CharsetBenchmark {
+
+    // Instance variables
+
+    /**
+     * All the 256 PETSCII bytes.
+     */
+    private byte [] _petsciiBytes = new byte[ 256];
+
+
+    // Methods
+
+    /**
+     * Convert all the 256 PETSCII bytes to ascii.
+     *
+     * @param blackhole The sink for the converted strings.
+     */
+    @Benchmark
+    public void petscii2ascii( Blackhole blackhole) {
+
+	CharsetUtils charsetUtils = CharsetUtils.getInstance();
+
+	for( int i = 0; i < _petsciiBytes.length; ++i) {
+
+	    blackhole.consume( charsetUtils.petscii2ascii( _petsciiBytes[ i]));
+	}
+    }
+
+    /**
+     * Fill the PETSCII bytes.
+     */
+    @Setup
+    public void setUp() {
+
+	for( int i = 0; i < _petsciiBytes.length; ++i) {
+
+	    _petsciiBytes[ i] = (byte)i;
+	}
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.bench.jmh;
+
+import de.andreas_rueckert.d64browse.drive.format.cpm.CPM4D64DiskImage;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64DiskImage;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.Directory;
+import de.andreas_rueckert.d64browse.drive.format.DirectoryEntry;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * JMH benchmarks for the hot paths of the d64 and CP/M disk image code.
+ * The images are the bundled test images, so the benchmarks must run in the project dir.
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.MICROSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 1)
+@State( Scope.Benchmark)
+public class DriveFormatBenchmark {
+
+    // Instance variables
+
+    /**
+     * The CP/M view of the parsed image.
+     */
+    private CPM4D64DiskImage _cpmImage;
+
+    /**
+     * The parsed image.
+     */
+    private D64DiskImage _image;
+
+    /**
+     * The filename of the benchmarked image.
+     */
+    @Param( { "test/cpm.d64", "test/cpm3.d64" })
+    public String _imageFilename;
+
+    /**
+     * The sector indexes of all the sectors in the image as ( track, sector) pairs.
+     */
+    private int [] _sectorAddresses;
+
+    /**
+     * A buffer to read the files.
+     */
+    private byte [] _readBuffer = new byte[ 4096];
+
+
+    // Methods
+
+    /**
+     * Look up every sector of the image by track and sector index.
+     *
+     * @param blackhole The sink for the sectors.
+     */
+    @Benchmark
+    public void getAllSectors( Blackhole blackhole) {
+
+	for( int i = 0; i < _sectorAddresses.length; i += 2) {
+
+	    blackhole.consume( _image.getSector( _sectorAddresses[ i], _sectorAddresses[ i + 1]));
+	}
+    }
+
+    /**
+     * Select all the free sectors of the image.
+     *
+     * @return The free sectors.
+     */
+    @Benchmark
+    public List<Sector> getFreeSectors() {
+
+	return _image.getFreeSectors( -1);
+    }
+
+    /**
+     * Parse the image file.
+     *
+     * @return The parsed image.
+     *
+     * @throws IOException if the image cannot be read.
+     */
+    @Benchmark
+    public D64DiskImage parse() throws IOException {
+
+	return D64ImageParser.parse( _imageFilename);
+    }
+
+    /**
+     * Parse the CP/M directory of the image.
+     *
+     * @return The CP/M directory.
+     */
+    @Benchmark
+    public Directory parseCPMDirectory() {
+
+	return _cpmImage.parseDirectory();
+    }
+
+    /**
+     * Parse the d64 directory of the image.
+     *
+     * @return The d64 directory.
+     */
+    @Benchmark
+    public Directory parseDirectory() {
+
+	return _image.parseDirectory();
+    }
+
+    /**
+     * Read all the d64 files of the image completely.
+     *
+     * @return The number of read bytes.
+     *
+     * @throws IOException if a file cannot be read.
+     */
+    @Benchmark
+    public long readAllFiles() throws IOException {
+
+	long result = 0L;
+
+	for( DirectoryEntry currentEntry : _image.getDirectory().getDirectoryEntries()) {
+
+	    InputStream inputStream = _image.getInputStream( currentEntry);
+
+	    if( inputStream != null) {
+
+		int bytesRead;
+		while( ( bytesRead = inputStream.read( _readBuffer)) != -1) {
+
+		    result += bytesRead;
+		}
+		inputStream.close();
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Parse the image once for the benchmarks, that work on a parsed image.
+     *
+     * @throws IOException if the image cannot be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+
+	_image = D64ImageParser.parse( _imageFilename);
+	_cpmImage = new CPM4D64DiskImage( _image);
+
+	// Collect the addresses of all the sectors.
+	List<Integer> addresses = new ArrayList<Integer>();
+	for( int currentTrack = _image.getMinTrackIndex(); currentTrack <= _image.getMaxTrackIndex(); ++currentTrack) {
+
+	    for( int currentSector = 0; currentSector < _image.getSectorsOnTrack( currentTrack); ++currentSector) {
+
+		addresses.add( currentTrack);
+		addresses.add( currentSector);
+	    }
+	}
+
+	_sectorAddresses = new int[ addresses.size()];
+	for( int i = 0; i < _sectorAddresses.length; ++i) {
+
+	    _sectorAddresses[ i] = addresses.get( i);
+	}
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.bench;
+
+import de.andreas_rueckert.d64browse.drive.format.d64.D64DiskImage;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64Sector;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+
+/**
+ * Simple benchmark to compare the indexed sector lookup with the old linear search.
+ * It walks the sector chain of a file, that fills all 664 blocks of a 35 track image.
+ */
+public class ChainWalkBenchmark {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The number of sectors per track of a 35 track d64 image.
+     */
+    private final static int [] SECTORS_PER_TRACK = { 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21
+						      , 19, 19, 19, 19, 19, 19, 19
+						      , 18, 18, 18, 18, 18, 18
+						      , 17, 17, 17, 17, 17 };
+
+
+    // Instance variables
+
+
+    // Constructors
+
+
+    // Methods
+
+    /**
+     * Create a 35 track image with a single file, that uses all sectors outside track 18.
+     *
+     * @return The data of the image.
+     */
+    private static byte [] createImageData() {
+
+	byte [] data = new byte[ 683 * 256];
+
+	// Link all the sectors outside the directory track in ascending order.
+	int lastOffset = -1;
+	int currentOffset = 0;
+	for( int currentTrack = 1; currentTrack <= 35; ++currentTrack) {
+
+	    for( int currentSector = 0; currentSector < SECTORS_PER_TRACK[ currentTrack - 1]; ++currentSector) {
+
+		if( currentTrack != 18) {
+
+		    if( lastOffset != -1) {
+
+			data[ lastOffset] = (byte)currentTrack;
+			data[ lastOffset + 1] = (byte)currentSector;
+		    }
+		    lastOffset = currentOffset;
+		}
+		currentOffset += 256;
+	    }
+	}
+
+	// The last sector holds the number of used bytes.
+	data[ lastOffset] = 0;
+	data[ lastOffset + 1] = (byte)0xff;
+
+	return data;
+    }
+
+    /**
+     * Find a sector with the linear search, that DiskImageImpl.getSector() used before.
+     *
+     * @param sectors The list of sectors to search.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector.
+     *
+     * @return The found sector or null.
+     */
+    private static Sector findSectorLinear( List<Sector> sectors, int trackIndex, int sectorIndex) {
+
+	for( Sector currentSector : sectors) {
+
+	    if( ( currentSector.getTrackIndex() == trackIndex)
+		&& ( currentSector.getSectorIndex() == sectorIndex)) {
+
+		return currentSector;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args The commandline arguments (the number of iterations is optional).
+     */
+    public static void main( String [] args) throws IOException {
+
+	int iterations = args.length > 0 ? Integer.parseInt( args[ 0]) : 2000;
+
+	// Write the image to a temp file, so it goes through the regular parser.
+	File imageFile = File.createTempFile( "chainwalk", ".d64");
+	imageFile.deleteOnExit();
+	Files.write( imageFile.toPath(), createImageData());
+
+	D64DiskImage image = D64ImageParser.parse( imageFile.getPath());
+
+	// Warm up both variants first.
+	for( int i = 0; i < iterations; ++i) {
+
+	    walkIndexed( image);
+	    walkLinear( image);
+	}
+
+	long start = System.nanoTime();
+	int blocks = 0;
+	for( int i = 0; i < iterations; ++i) {
+
+	    blocks = walkIndexed( image);
+	}
+	long indexedTime = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	for( int i = 0; i < iterations; ++i) {
+
+	    walkLinear( image);
+	}
+	long linearTime = System.nanoTime() - start;
+
+	System.out.println( "Chain walk over " + blocks + " blocks, " + iterations + " iterations");
+	System.out.println( "  indexed lookup : " + ( indexedTime / iterations) + " ns/walk");
+	System.out.println( "  linear search  : " + ( linearTime / iterations) + " ns/walk");
+	System.out.println( "  speedup        : " + ( linearTime / Math.max( 1L, indexedTime)) + "x");
+    }
+
+    /**
+     * Walk the chain of the file with the indexed lookup.
+     *
+     * @param image The disk image.
+     *
+     * @return The number of visited blocks.
+     */
+    private static int walkIndexed( D64DiskImage image) {
+
+	int blocks = 0;
+	D64Sector currentSector = (D64Sector)image.getSector( 1, 0);
+
+	while( currentSector != null) {
+
+	    ++blocks;
+	    currentSector = currentSector.getNextTrack() == 0 ? null : (D64Sector)image.getSector( currentSector.getNextTrack(), currentSector.getNextSector());
+	}
+
+	return blocks;
+    }
+
+    /**
+     * Walk the chain of the file with the old linear search.
+     *
+     * @param image The disk image.
+     *
+     * @return The number of visited blocks.
+     */
+    private static int walkLinear( D64DiskImage image) {
+
+	int blocks = 0;
+	List<Sector> sectors = image.getSectors();
+	D64Sector currentSector = (D64Sector)findSectorLinear( sectors, 1, 0);
+
+	while( currentSector != null) {
+
+	    ++blocks;
+	    currentSector = currentSector.getNextTrack() == 0 ? null : (D64Sector)findSectorLinear( sectors, currentSector.getNextTrack(), currentSector.getNextSector());
+	}
+
+	return blocks;
+    }
+}
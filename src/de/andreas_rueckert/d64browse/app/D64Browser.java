@@ -25,10 +25,14 @@
 
 package de.andreas_rueckert.d64browse.app;
 
+import de.andreas_rueckert.d64browse.batch.BatchScanner;
 import de.andreas_rueckert.d64browse.drive.format.cpm.ui.D64HybridDiskImagePanel;
 import de.andreas_rueckert.d64browse.drive.format.d64.D64DiskImage;
 import de.andreas_rueckert.d64browse.drive.format.d64.D64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.d64.ui.D64DiskImagePanel;
 import de.andreas_rueckert.d64browse.drive.format.filesystem.ui.FileSystemPanel;
+import de.andreas_rueckert.d64browse.drive.format.g64.G64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
 import de.andreas_rueckert.d64browse.drive.format.DiskImageAnalyzer;
 import de.andreas_rueckert.d64browse.drive.format.DiskImageType;
 import java.awt.GridLayout;
@@ -102,21 +106,41 @@ class D64Browser {
      */
     public static void main( String [] args) {
 
+	// Run the batch scanner without a UI, if it was requested.
+	for( String currentParameter : args) {
+
+	    if( "-scan".equals( currentParameter)) {
+
+		BatchScanner.runFromCommandline( args);
+
+		return;
+	    }
+	}
+
 	_app = new D64Browser( args);
     }
 
     /**
-     * Parse the command line parameters.
+     * Parse the command line parameters. The switch -recover completes an interrupted save
+     * of the images, that follow it.
      *
      * @param parameters The command line parameters.
      */
     private void parseCommandline( String [] parameters) {
 
+	// Only replay the journal of an interrupted save, if the user asked for it.
+	boolean recoverJournal = false;
+
         for( String currentParameter : parameters) {
 
 	    // Check, if this parameter is a switch.
 	    if( currentParameter.startsWith( "-")) {
 
+		if( "-recover".equals( currentParameter)) {
+
+		    recoverJournal = true;
+		}
+
 	    } else {
 
 		// Try to create a file from the parameter.
@@ -125,17 +149,21 @@ class D64Browser {
 		// Check, if this is a file of a known image type.
 		DiskImageType guessedType = DiskImageAnalyzer.guessFormat( fileParameter);
 
-		if( guessedType == DiskImageType.D64) {
+		if( guessedType.hasCbmDosFileSystem()) {
 
 		    // Just try to parse the directory for now.
 		    // System.out.println( "Format is d64");
 
 		    try {
-			D64DiskImage currentImage = D64ImageParser.parse( currentParameter);
+			D64DiskImage currentImage = guessedType == DiskImageType.G64 ? G64ImageParser.parse( currentParameter)
+			    : D64ImageParser.parse( currentParameter, recoverJournal);
 
 			// Display a file system browser for the image.
 			_mainFrame.getContentPane().setLayout( new GridLayout( 1, 2));
-			_mainFrame.getContentPane().add( new D64HybridDiskImagePanel( currentImage));
+
+			// The cp/m side is only on 35 track 1541 disks, so the other layouts just get a d64 panel.
+			_mainFrame.getContentPane().add( currentImage.getGeometry() == DiskGeometry.D64 ? new D64HybridDiskImagePanel( currentImage)
+							  : new D64DiskImagePanel( currentImage));
 			_mainFrame.pack();
 
 		    } catch( IOException ioe) {
@@ -0,0 +1,686 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.batch;
+
+import de.andreas_rueckert.d64browse.drive.format.d64.D64Directory;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64DirectoryEntry;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64FileInputStream;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.g64.G64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.t64.T64DirectoryEntry;
+import de.andreas_rueckert.d64browse.drive.format.t64.T64ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.DirectoryEntry;
+import de.andreas_rueckert.d64browse.drive.format.DiskImage;
+import de.andreas_rueckert.d64browse.drive.format.DiskImageAnalyzer;
+import de.andreas_rueckert.d64browse.drive.format.DiskImageType;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Headless scanner for directory trees of disk images. The images are parsed on a bounded
+ * thread pool and the results (directory listing, free space and file hashes) are written
+ * as NDJSON (one JSON object per image) or CSV (one row per file).
+ */
+public class BatchScanner {
+
+    // Inner classes
+
+    /**
+     * The supported output formats.
+     */
+    public enum OutputFormat {
+
+	CSV, NDJSON
+    }
+
+    /**
+     * The scanned info on a file of an image.
+     */
+    public static class FileInfo {
+
+	/**
+	 * The number of sectors of the file with a read error in the error info of the image.
+	 */
+	public int badSectors;
+
+	/**
+	 * The fast 64 bit hash of the file content.
+	 */
+	public long fastHash;
+
+	/**
+	 * The number of blocks in the directory.
+	 */
+	public int blocks;
+
+	/**
+	 * The real length of the file in bytes.
+	 */
+	public long length;
+
+	/**
+	 * The name of the file (without the type).
+	 */
+	public String name;
+
+	/**
+	 * The SHA-1 hash of the file content as hex string.
+	 */
+	public String sha1;
+
+	/**
+	 * The type of the file (PRG, SEQ, etc).
+	 */
+	public String type;
+    }
+
+    /**
+     * The scanned info on an image.
+     */
+    public static class ImageInfo {
+
+	/**
+	 * An error message, if the image could not be scanned. null otherwise.
+	 */
+	public String error = null;
+
+	/**
+	 * The files of the image.
+	 */
+	public List<FileInfo> files = new ArrayList<FileInfo>();
+
+	/**
+	 * The guessed format of the image.
+	 */
+	public DiskImageType format;
+
+	/**
+	 * The free space of the image in bytes.
+	 */
+	public long freeBytes = -1L;
+
+	/**
+	 * The path of the image.
+	 */
+	public Path path;
+    }
+
+
+    // Static variables
+
+    /**
+     * The columns of the CSV output.
+     */
+    private final static String [] CSV_COLUMNS = { "image", "format", "freeBytes", "file", "type", "blocks", "bytes", "sha1", "error" };
+
+    /**
+     * The hex digits to convert the hashes.
+     */
+    private final static char [] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    // Instance variables
+
+    /**
+     * An optional index to add all the scanned images to.
+     */
+    private DeduplicationIndex _deduplicationIndex = null;
+
+    /**
+     * The format of the results.
+     */
+    private OutputFormat _outputFormat;
+
+    /**
+     * The number of threads to scan images.
+     */
+    private int _parallelism;
+
+
+    // Constructors
+
+    /**
+     * Create a new batch scanner.
+     *
+     * @param outputFormat The format of the results.
+     * @param parallelism The number of threads to scan images.
+     */
+    public BatchScanner( OutputFormat outputFormat, int parallelism) {
+
+	_outputFormat = outputFormat;
+	_parallelism = Math.max( 1, parallelism);
+    }
+
+
+    // Methods
+
+    /**
+     * Append a string as CSV field to a buffer.
+     *
+     * @param buffer The buffer to append to.
+     * @param value The value of the field.
+     */
+    private static void appendCsv( StringBuilder buffer, String value) {
+
+	if( value == null) {
+
+	    return;
+	}
+
+	// Quote the field, if it contains special characters.
+	if( ( value.indexOf( ',') != -1) || ( value.indexOf( '"') != -1) || ( value.indexOf( '\n') != -1)) {
+
+	    buffer.append( '"').append( value.replace( "\"", "\"\"")).append( '"');
+
+	} else {
+
+	    buffer.append( value);
+	}
+    }
+
+    /**
+     * Append a string as JSON string to a buffer.
+     *
+     * @param buffer The buffer to append to.
+     * @param value The string to append.
+     */
+    static void appendJson( StringBuilder buffer, String value) {
+
+	if( value == null) {
+
+	    buffer.append( "null");
+
+	    return;
+	}
+
+	buffer.append( '"');
+
+	for( int i = 0; i < value.length(); ++i) {
+
+	    char currentChar = value.charAt( i);
+
+	    switch( currentChar) {
+	    case '"': buffer.append( "\\\""); break;
+	    case '\\': buffer.append( "\\\\"); break;
+	    case '\n': buffer.append( "\\n"); break;
+	    case '\r': buffer.append( "\\r"); break;
+	    case '\t': buffer.append( "\\t"); break;
+	    default:
+		if( currentChar < 0x20) {
+
+		    buffer.append( String.format( "\\u%04x", (int)currentChar));
+
+		} else {
+
+		    buffer.append( currentChar);
+		}
+	    }
+	}
+
+	buffer.append( '"');
+    }
+
+    /**
+     * Format the result of an image scan in the current output format.
+     *
+     * @param imageInfo The result of the image scan.
+     *
+     * @return The formatted result (with line breaks).
+     */
+    String format( ImageInfo imageInfo) {
+
+	StringBuilder result = new StringBuilder();
+
+	if( _outputFormat == OutputFormat.CSV) {
+
+	    // Write at least 1 row for each image, so errors and empty images are visible.
+	    List<FileInfo> files = imageInfo.files.isEmpty() ? Collections.singletonList( (FileInfo)null) : imageInfo.files;
+
+	    for( FileInfo currentFile : files) {
+
+		// Fill the fields of a row with the length of the header, so both always match.
+		String [] fields = new String[ CSV_COLUMNS.length];
+		fields[ 0] = imageInfo.path.toString();
+		fields[ 1] = String.valueOf( imageInfo.format);
+		fields[ 2] = String.valueOf( imageInfo.freeBytes);
+		if( currentFile != null) {
+
+		    fields[ 3] = currentFile.name;
+		    fields[ 4] = currentFile.type;
+		    fields[ 5] = String.valueOf( currentFile.blocks);
+		    fields[ 6] = String.valueOf( currentFile.length);
+		    fields[ 7] = currentFile.sha1;
+		}
+		fields[ 8] = imageInfo.error;
+
+		for( int i = 0; i < fields.length; ++i) {
+
+		    if( i > 0) {
+
+			result.append( ',');
+		    }
+		    appendCsv( result, fields[ i]);
+		}
+		result.append( '\n');
+	    }
+
+	} else {
+
+	    result.append( "{\"image\":");
+	    appendJson( result, imageInfo.path.toString());
+	    result.append( ",\"format\":\"").append( imageInfo.format).append( '"');
+	    result.append( ",\"freeBytes\":").append( imageInfo.freeBytes);
+
+	    if( imageInfo.error != null) {
+
+		result.append( ",\"error\":");
+		appendJson( result, imageInfo.error);
+	    }
+
+	    result.append( ",\"files\":[");
+	    boolean first = true;
+	    for( FileInfo currentFile : imageInfo.files) {
+
+		if( ! first) {
+
+		    result.append( ',');
+		}
+		first = false;
+
+		result.append( "{\"name\":");
+		appendJson( result, currentFile.name);
+		result.append( ",\"type\":");
+		appendJson( result, currentFile.type);
+		result.append( ",\"blocks\":").append( currentFile.blocks);
+		result.append( ",\"bytes\":").append( currentFile.length);
+		result.append( ",\"sha1\":");
+		appendJson( result, currentFile.sha1);
+		if( currentFile.badSectors > 0) {
+
+		    result.append( ",\"badSectors\":").append( currentFile.badSectors);
+		}
+		result.append( '}');
+	    }
+	    result.append( "]}\n");
+	}
+
+	return result.toString();
+    }
+
+    /**
+     * Parse an image with the parser for its format.
+     *
+     * @param path The path of the image.
+     * @param format The guessed format of the image.
+     *
+     * @return The parsed image or null, if the format is not supported.
+     *
+     * @throws IOException if the image cannot be parsed.
+     */
+    private static DiskImage parseImage( Path path, DiskImageType format) throws IOException {
+
+	// T64 archives are mapped, so the files are read directly from the archive.
+	if( format == DiskImageType.T64) {
+
+	    return T64ImageParser.parse( path.toString());
+	}
+
+	if( ! format.hasCbmDosFileSystem()) {
+
+	    return null;
+	}
+
+	// Map the image, so only the touched sectors are read. G64 images decode only the touched tracks.
+	return format == DiskImageType.G64 ? G64ImageParser.parse( path.toString())
+	    : D64ImageParser.parseMapped( path.toString(), false);
+    }
+
+    /**
+     * Run the batch scanner from the commandline.
+     *
+     * Usage: -scan &lt;directory&gt; [-csv] [-threads &lt;n&gt;] [-index &lt;file&gt;]
+     *
+     * @param args The commandline arguments.
+     */
+    public static void runFromCommandline( String [] args) {
+
+	Path root = null;
+	OutputFormat outputFormat = OutputFormat.NDJSON;
+	String indexFilename = null;
+	int parallelism = Runtime.getRuntime().availableProcessors();
+
+	for( int i = 0; i < args.length; ++i) {
+
+	    if( "-scan".equals( args[ i]) && ( i + 1 < args.length)) {
+
+		root = Paths.get( args[ ++i]);
+
+	    } else if( "-csv".equals( args[ i])) {
+
+		outputFormat = OutputFormat.CSV;
+
+	    } else if( "-threads".equals( args[ i]) && ( i + 1 < args.length)) {
+
+		parallelism = Integer.parseInt( args[ ++i]);
+
+	    } else if( "-index".equals( args[ i]) && ( i + 1 < args.length)) {
+
+		indexFilename = args[ ++i];
+	    }
+	}
+
+	if( root == null) {
+
+	    System.err.println( "Usage: -scan <directory> [-csv] [-threads <n>] [-index <file>]");
+
+	    return;
+	}
+
+	DeduplicationIndex index = null;
+
+	try {
+
+	    Writer out = new BufferedWriter( new OutputStreamWriter( System.out, "UTF-8"));
+	    BatchScanner scanner = new BatchScanner( outputFormat, parallelism);
+
+	    // Add the images to the deduplication index, if one was given.
+	    if( indexFilename != null) {
+
+		index = new DeduplicationIndex( Paths.get( indexFilename));
+		scanner.setDeduplicationIndex( index);
+	    }
+
+	    scanner.scan( root, out);
+	    out.flush();
+
+	} catch( IOException ioe) {
+
+	    System.err.println( "Error scanning '" + root + "' :" + ioe);
+
+	} finally {
+
+	    if( index != null) {
+
+		try {
+
+		    index.close();
+
+		} catch( IOException ioe) {
+
+		    System.err.println( "Error closing the deduplication index: " + ioe);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Scan all the disk images in a directory tree and write the results.
+     *
+     * @param root The root of the directory tree.
+     * @param out The writer for the results.
+     *
+     * @throws IOException if the directory tree cannot be read or the results cannot be written.
+     */
+    public void scan( Path root, final Writer out) throws IOException {
+
+	if( _outputFormat == OutputFormat.CSV) {
+
+	    out.write( String.join( ",", CSV_COLUMNS) + "\n");
+	}
+
+	ForkJoinPool pool = new ForkJoinPool( _parallelism);
+
+	// Limit the number of queued images, so huge trees don't fill the memory.
+	final Semaphore inFlight = new Semaphore( 4 * _parallelism);
+
+	// Remember the first write error, since the tasks cannot throw it.
+	final IOException [] writeError = new IOException[ 1];
+
+	try( Stream<Path> paths = Files.walk( root)) {
+
+	    Iterator<Path> pathIterator = paths.filter( Files::isRegularFile).iterator();
+
+	    while( pathIterator.hasNext()) {
+
+		final Path currentPath = pathIterator.next();
+
+		// Skip all the files, that are not disk images.
+		final DiskImageType format = DiskImageAnalyzer.guessFormat( currentPath.toFile());
+		if( format == DiskImageType.UNKNOWN) {
+
+		    continue;
+		}
+
+		inFlight.acquireUninterruptibly();
+
+		pool.execute( new Runnable() {
+
+			public void run() {
+
+			    try {
+
+				ImageInfo imageInfo = scanImage( currentPath, format);
+
+				if( ( _deduplicationIndex != null) && ( imageInfo.error == null)) {
+
+				    _deduplicationIndex.addImage( imageInfo);
+				}
+
+				String formattedResult = format( imageInfo);
+
+				// Only 1 thread writes at a time, so the lines are not mixed.
+				synchronized( out) {
+
+				    out.write( formattedResult);
+				}
+
+			    } catch( IOException ioe) {
+
+				synchronized( writeError) {
+
+				    if( writeError[ 0] == null) {
+
+					writeError[ 0] = ioe;
+				    }
+				}
+
+			    } finally {
+
+				inFlight.release();
+			    }
+			}
+		    });
+	    }
+
+	} finally {
+
+	    // Wait for the remaining images.
+	    pool.shutdown();
+	    try {
+
+		pool.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+	    } catch( InterruptedException ie) {
+
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	if( writeError[ 0] != null) {
+
+	    throw writeError[ 0];
+	}
+    }
+
+    /**
+     * Scan a single disk image.
+     *
+     * @param path The path of the image.
+     * @param format The guessed format of the image.
+     *
+     * @return The result of the scan. Errors are stored in the result.
+     */
+    public ImageInfo scanImage( Path path, DiskImageType format) {
+
+	ImageInfo result = new ImageInfo();
+	result.path = path;
+	result.format = format;
+
+	try {
+
+	    DiskImage image = parseImage( path, format);
+	    if( image == null) {
+
+		result.error = "Unsupported image format " + format;
+
+		return result;
+	    }
+
+	    result.freeBytes = image.getFreeDiskSpace();
+
+	    // List the files before a broken directory chain, but report the chain as error.
+	    if( image.getDirectory() instanceof D64Directory) {
+
+		result.error = ((D64Directory)image.getDirectory()).getChainError();
+	    }
+
+	    MessageDigest sha1 = MessageDigest.getInstance( "SHA-1");
+	    byte [] buffer = new byte[ 4096];
+
+	    for( DirectoryEntry currentEntry : image.getDirectory().getDirectoryEntries()) {
+
+		FileInfo fileInfo = new FileInfo();
+		fileInfo.name = currentEntry.getFileName();
+
+		if( currentEntry instanceof D64DirectoryEntry) {
+
+		    fileInfo.type = ((D64DirectoryEntry)currentEntry).getFileTypeName();
+		    fileInfo.blocks = currentEntry.getFileSizeAsUnits();
+
+		} else if( currentEntry instanceof T64DirectoryEntry) {
+
+		    // List the blocks, that the file would use on a disk.
+		    fileInfo.type = ((T64DirectoryEntry)currentEntry).getFileTypeName();
+		    fileInfo.blocks = ( currentEntry.getFileSizeAsBytes() + 253) / 254;
+		}
+
+		// Hash the file content, if it can be read.
+		InputStream inputStream = image.getInputStream( currentEntry);
+		if( inputStream != null) {
+
+		    try {
+
+			sha1.reset();
+			long fastHash = DeduplicationIndex.FAST_HASH_SEED;
+			int bytesRead;
+			while( ( bytesRead = inputStream.read( buffer)) != -1) {
+
+			    sha1.update( buffer, 0, bytesRead);
+			    fastHash = DeduplicationIndex.updateFastHash( fastHash, buffer, 0, bytesRead);
+			    fileInfo.length += bytesRead;
+			}
+			fileInfo.fastHash = fastHash;
+			fileInfo.sha1 = toHex( sha1.digest());
+
+			// The stream counted the bad sectors, while the chain was followed.
+			if( inputStream instanceof D64FileInputStream) {
+
+			    fileInfo.badSectors = ((D64FileInputStream)inputStream).getBadSectorCount();
+			}
+
+		    } catch( IOException ioe) {
+
+			// Keep the file in the listing, but without a hash.
+			fileInfo.sha1 = null;
+
+		    } finally {
+
+			inputStream.close();
+		    }
+		}
+
+		result.files.add( fileInfo);
+	    }
+
+	} catch( IOException | RuntimeException e) {
+
+	    result.error = e.toString();
+
+	} catch( NoSuchAlgorithmException nsae) {
+
+	    result.error = "SHA-1 is not available: " + nsae;
+	}
+
+	return result;
+    }
+
+    /**
+     * Set an index, that all the successfully scanned images are added to.
+     *
+     * @param deduplicationIndex The index or null, if no index should be updated.
+     */
+    public void setDeduplicationIndex( DeduplicationIndex deduplicationIndex) {
+
+	_deduplicationIndex = deduplicationIndex;
+    }
+
+    /**
+     * Convert a byte array to a hex string.
+     *
+     * @param data The data to convert.
+     *
+     * @return The data as hex string.
+     */
+    static String toHex( byte [] data) {
+
+	char [] result = new char[ 2 * data.length];
+
+	for( int i = 0; i < data.length; ++i) {
+
+	    result[ 2 * i] = HEX_DIGITS[ ( data[ i] >>> 4) & 0x0f];
+	    result[ 2 * i + 1] = HEX_DIGITS[ data[ i] & 0x0f];
+	}
+
+	return new String( result);
+    }
+}
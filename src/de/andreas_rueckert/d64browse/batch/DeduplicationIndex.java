@@ -0,0 +1,618 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A content addressed index of the files in a collection of disk images. Every file is
+ * identified by a fast 64 bit hash and its SHA-1 hash. The index is kept in memory for the
+ * queries and appended to a file, so it survives restarts. If an image is added again, the
+ * new records replace the old ones when the file is loaded.
+ *
+ * File format: a sequence of image records, each consisting of the image path (UTF), the
+ * number of files (int) and for each file the fast hash (long), the SHA-1 hash (20 bytes),
+ * the length (long) and the name (UTF).
+ */
+public class DeduplicationIndex {
+
+    // Inner classes
+
+    /**
+     * An input stream, that counts the bytes read, so the end of the last complete record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+	/**
+	 * The number of bytes read so far.
+	 */
+	private long _count = 0L;
+
+
+	/**
+	 * Create a new counting stream.
+	 *
+	 * @param in The stream to read from.
+	 */
+	CountingInputStream( InputStream in) {
+
+	    super( in);
+	}
+
+
+	/**
+	 * Get the number of bytes read so far.
+	 *
+	 * @return The number of bytes read.
+	 */
+	long getCount() {
+
+	    return _count;
+	}
+
+	/**
+	 * Read a single byte.
+	 *
+	 * @return The byte or -1 at the end of the stream.
+	 *
+	 * @throws IOException if the stream cannot be read.
+	 */
+	public int read() throws IOException {
+
+	    int result = in.read();
+	    if( result != -1) {
+
+		++_count;
+	    }
+
+	    return result;
+	}
+
+	/**
+	 * Read bytes into a buffer.
+	 *
+	 * @param buffer The buffer to read into.
+	 * @param offset The offset in the buffer.
+	 * @param length The maximum number of bytes to read.
+	 *
+	 * @return The number of bytes read or -1 at the end of the stream.
+	 *
+	 * @throws IOException if the stream cannot be read.
+	 */
+	public int read( byte [] buffer, int offset, int length) throws IOException {
+
+	    int result = in.read( buffer, offset, length);
+	    if( result > 0) {
+
+		_count += result;
+	    }
+
+	    return result;
+	}
+
+	/**
+	 * Skip bytes of the stream.
+	 *
+	 * @param n The number of bytes to skip.
+	 *
+	 * @return The number of skipped bytes.
+	 *
+	 * @throws IOException if the stream cannot be read.
+	 */
+	public long skip( long n) throws IOException {
+
+	    long result = in.skip( n);
+	    _count += result;
+
+	    return result;
+	}
+    }
+
+    /**
+     * A file in an indexed image.
+     */
+    public static class IndexEntry {
+
+	/**
+	 * The name of the file in the image.
+	 */
+	private String _fileName;
+
+	/**
+	 * The path of the image with this file.
+	 */
+	private String _image;
+
+	/**
+	 * The length of the file in bytes.
+	 */
+	private long _length;
+
+	/**
+	 * The SHA-1 hash of the file.
+	 */
+	private byte [] _sha1;
+
+
+	/**
+	 * Create a new index entry.
+	 *
+	 * @param image The path of the image.
+	 * @param fileName The name of the file in the image.
+	 * @param sha1 The SHA-1 hash of the file.
+	 * @param length The length of the file in bytes.
+	 */
+	IndexEntry( String image, String fileName, byte [] sha1, long length) {
+
+	    _image = image;
+	    _fileName = fileName;
+	    _sha1 = sha1;
+	    _length = length;
+	}
+
+	/**
+	 * Get the name of the file in the image.
+	 *
+	 * @return The name of the file in the image.
+	 */
+	public String getFileName() {
+
+	    return _fileName;
+	}
+
+	/**
+	 * Get the path of the image with this file.
+	 *
+	 * @return The path of the image.
+	 */
+	public String getImage() {
+
+	    return _image;
+	}
+
+	/**
+	 * Get the length of the file.
+	 *
+	 * @return The length of the file in bytes.
+	 */
+	public long getLength() {
+
+	    return _length;
+	}
+    }
+
+
+    // Static variables
+
+    /**
+     * The seed of the fast hash (the FNV-1a 64 bit offset basis).
+     */
+    public final static long FAST_HASH_SEED = 0xcbf29ce484222325L;
+
+    /**
+     * The prime of the FNV-1a 64 bit hash.
+     */
+    private final static long FAST_HASH_PRIME = 0x100000001b3L;
+
+    /**
+     * The length of a SHA-1 hash in bytes.
+     */
+    private final static int SHA1_LENGTH = 20;
+
+
+    // Instance variables
+
+    /**
+     * The entries, mapped by the fast hash of the file content.
+     */
+    private Map<Long, List<IndexEntry>> _entriesByHash = new HashMap<Long, List<IndexEntry>>();
+
+    /**
+     * The distinct fast hashes of each image.
+     */
+    private Map<String, Set<Long>> _imageHashes = new HashMap<String, Set<Long>>();
+
+    /**
+     * The stream to append new records to the index file.
+     */
+    private DataOutputStream _out;
+
+
+    // Constructors
+
+    /**
+     * Open an index file. The file is created, if it doesn't exist yet.
+     *
+     * @param indexFile The path of the index file.
+     *
+     * @throws IOException if the index file cannot be read or opened for appending.
+     */
+    public DeduplicationIndex( Path indexFile) throws IOException {
+
+	if( Files.exists( indexFile)) {
+
+	    // Cut off a truncated last record, so new records are not appended after garbage.
+	    long validLength = load( indexFile);
+	    if( validLength < Files.size( indexFile)) {
+
+		try( FileChannel channel = FileChannel.open( indexFile, StandardOpenOption.WRITE)) {
+
+		    channel.truncate( validLength);
+		}
+	    }
+	}
+
+	_out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( indexFile.toFile(), true)));
+    }
+
+
+    // Methods
+
+    /**
+     * Add the files of a scanned image to the index. Files without a hash are skipped.
+     *
+     * @param imageInfo The result of the image scan.
+     *
+     * @throws IOException if the index file cannot be written.
+     */
+    public synchronized void addImage( BatchScanner.ImageInfo imageInfo) throws IOException {
+
+	List<IndexEntry> entries = new ArrayList<IndexEntry>();
+	List<Long> hashes = new ArrayList<Long>();
+
+	for( BatchScanner.FileInfo currentFile : imageInfo.files) {
+
+	    if( currentFile.sha1 != null) {
+
+		entries.add( new IndexEntry( imageInfo.path.toString(), currentFile.name, fromHex( currentFile.sha1), currentFile.length));
+		hashes.add( currentFile.fastHash);
+	    }
+	}
+
+	// Append the record first, so the memory never contains more than the file.
+	_out.writeUTF( imageInfo.path.toString());
+	_out.writeInt( entries.size());
+	for( int i = 0; i < entries.size(); ++i) {
+
+	    IndexEntry currentEntry = entries.get( i);
+
+	    _out.writeLong( hashes.get( i));
+	    _out.write( currentEntry._sha1);
+	    _out.writeLong( currentEntry._length);
+	    _out.writeUTF( currentEntry._fileName);
+	}
+	_out.flush();
+
+	putImage( imageInfo.path.toString(), entries, hashes);
+    }
+
+    /**
+     * Close the index file.
+     *
+     * @throws IOException if the index file cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+
+	_out.close();
+    }
+
+    /**
+     * Convert a hex string to a byte array.
+     *
+     * @param hex The hex string.
+     *
+     * @return The data as byte array.
+     */
+    static byte [] fromHex( String hex) {
+
+	byte [] result = new byte[ hex.length() / 2];
+
+	for( int i = 0; i < result.length; ++i) {
+
+	    result[ i] = (byte)Integer.parseInt( hex.substring( 2 * i, 2 * i + 2), 16);
+	}
+
+	return result;
+    }
+
+    /**
+     * Get all the entries of files with a given content.
+     *
+     * @param fastHash The fast hash of the file content.
+     * @param sha1 The SHA-1 hash of the file content as hex string.
+     *
+     * @return The entries of all the files with this content.
+     */
+    public synchronized List<IndexEntry> getEntries( long fastHash, String sha1) {
+
+	List<IndexEntry> candidates = _entriesByHash.get( fastHash);
+
+	if( candidates == null) {
+
+	    return Collections.emptyList();
+	}
+
+	// Confirm the fast hash with the SHA-1 hash, since 64 bit hashes might collide.
+	byte [] sha1Bytes = fromHex( sha1);
+	List<IndexEntry> result = new ArrayList<IndexEntry>();
+	for( IndexEntry currentEntry : candidates) {
+
+	    if( Arrays.equals( currentEntry._sha1, sha1Bytes)) {
+
+		result.add( currentEntry);
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the images, that contain a file with a given content.
+     *
+     * @param fastHash The fast hash of the file content.
+     * @param sha1 The SHA-1 hash of the file content as hex string.
+     *
+     * @return The paths of the images with this file.
+     */
+    public synchronized Set<String> getImagesContaining( long fastHash, String sha1) {
+
+	Set<String> result = new HashSet<String>();
+
+	for( IndexEntry currentEntry : getEntries( fastHash, sha1)) {
+
+	    result.add( currentEntry._image);
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the images, that share most of their files with a given image. The similarity is
+     * the Jaccard index of the distinct file contents of both images.
+     *
+     * @param image The path of the indexed image.
+     * @param minSimilarity The minimum similarity (0.0 to 1.0) of the returned images.
+     *
+     * @return The similar images with their similarity, the most similar images first.
+     */
+    public synchronized Map<String, Double> getSimilarImages( String image, double minSimilarity) {
+
+	Set<Long> imageHashes = _imageHashes.get( image);
+
+	if( ( imageHashes == null) || imageHashes.isEmpty()) {
+
+	    return Collections.emptyMap();
+	}
+
+	// Count the shared files per image with the inverted index.
+	final Map<String, Integer> sharedCounts = new HashMap<String, Integer>();
+	for( Long currentHash : imageHashes) {
+
+	    Set<String> countedImages = new HashSet<String>();
+
+	    for( IndexEntry currentEntry : _entriesByHash.get( currentHash)) {
+
+		if( ! currentEntry._image.equals( image) && countedImages.add( currentEntry._image)) {
+
+		    Integer count = sharedCounts.get( currentEntry._image);
+		    sharedCounts.put( currentEntry._image, count == null ? 1 : count + 1);
+		}
+	    }
+	}
+
+	final Map<String, Double> similarities = new HashMap<String, Double>();
+	for( Map.Entry<String, Integer> currentCount : sharedCounts.entrySet()) {
+
+	    int shared = currentCount.getValue();
+	    int union = imageHashes.size() + _imageHashes.get( currentCount.getKey()).size() - shared;
+	    double similarity = (double)shared / union;
+
+	    if( similarity >= minSimilarity) {
+
+		similarities.put( currentCount.getKey(), similarity);
+	    }
+	}
+
+	List<String> sortedImages = new ArrayList<String>( similarities.keySet());
+	Collections.sort( sortedImages, ( a, b) -> Double.compare( similarities.get( b), similarities.get( a)));
+
+	Map<String, Double> result = new LinkedHashMap<String, Double>();
+	for( String currentImage : sortedImages) {
+
+	    result.put( currentImage, similarities.get( currentImage));
+	}
+
+	return result;
+    }
+
+    /**
+     * Load the records of an index file into memory. A truncated last record (i.e. from
+     * an interrupted write) is ignored.
+     *
+     * @param indexFile The path of the index file.
+     *
+     * @return The length of the complete records in the file.
+     *
+     * @throws IOException if the index file cannot be read.
+     */
+    private long load( Path indexFile) throws IOException {
+
+	CountingInputStream countingStream = new CountingInputStream( new BufferedInputStream( new FileInputStream( indexFile.toFile())));
+
+	// The end of the last complete record.
+	long validLength = 0L;
+
+	try( DataInputStream in = new DataInputStream( countingStream)) {
+
+	    while( true) {
+
+		String image;
+		try {
+
+		    image = in.readUTF();
+
+		} catch( EOFException | UTFDataFormatException e) {
+
+		    if( countingStream.getCount() > validLength) {
+
+			System.err.println( "Ignoring truncated record at the end of the deduplication index");
+		    }
+		    break;  // End of the index file.
+		}
+
+		try {
+
+		    int fileCount = in.readInt();
+		    List<IndexEntry> entries = new ArrayList<IndexEntry>( fileCount);
+		    List<Long> hashes = new ArrayList<Long>( fileCount);
+
+		    for( int i = 0; i < fileCount; ++i) {
+
+			long fastHash = in.readLong();
+			byte [] sha1 = new byte[ SHA1_LENGTH];
+			in.readFully( sha1);
+			long length = in.readLong();
+			String fileName = in.readUTF();
+
+			entries.add( new IndexEntry( image, fileName, sha1, length));
+			hashes.add( fastHash);
+		    }
+
+		    putImage( image, entries, hashes);
+		    validLength = countingStream.getCount();
+
+		} catch( EOFException | UTFDataFormatException e) {
+
+		    System.err.println( "Ignoring truncated record for image '" + image + "' in the deduplication index");
+		    break;
+		}
+	    }
+	}
+
+	return validLength;
+    }
+
+    /**
+     * Put the entries of an image into the in-memory index, replacing any older entries.
+     *
+     * @param image The path of the image.
+     * @param entries The entries of the files in the image.
+     * @param hashes The fast hashes of the entries.
+     */
+    private void putImage( String image, List<IndexEntry> entries, List<Long> hashes) {
+
+	removeImage( image);
+
+	Set<Long> imageHashes = new HashSet<Long>();
+	for( int i = 0; i < entries.size(); ++i) {
+
+	    List<IndexEntry> hashEntries = _entriesByHash.get( hashes.get( i));
+
+	    if( hashEntries == null) {
+
+		hashEntries = new ArrayList<IndexEntry>( 2);
+		_entriesByHash.put( hashes.get( i), hashEntries);
+	    }
+
+	    hashEntries.add( entries.get( i));
+	    imageHashes.add( hashes.get( i));
+	}
+
+	_imageHashes.put( image, imageHashes);
+    }
+
+    /**
+     * Remove the entries of an image from the in-memory index.
+     *
+     * @param image The path of the image.
+     */
+    private void removeImage( String image) {
+
+	Set<Long> imageHashes = _imageHashes.remove( image);
+
+	if( imageHashes == null) {
+
+	    return;
+	}
+
+	for( Long currentHash : imageHashes) {
+
+	    List<IndexEntry> hashEntries = _entriesByHash.get( currentHash);
+
+	    hashEntries.removeIf( entry -> entry._image.equals( image));
+
+	    if( hashEntries.isEmpty()) {
+
+		_entriesByHash.remove( currentHash);
+	    }
+	}
+    }
+
+    /**
+     * Update a fast hash with some data.
+     *
+     * @param hash The current hash value (FAST_HASH_SEED for a new hash).
+     * @param data The buffer with the data.
+     * @param offset The offset of the data in the buffer.
+     * @param length The number of bytes to hash.
+     *
+     * @return The updated hash value.
+     */
+    public static long updateFastHash( long hash, byte [] data, int offset, int length) {
+
+	for( int i = offset; i < offset + length; ++i) {
+
+	    hash ^= ( data[ i] & 0xff);
+	    hash *= FAST_HASH_PRIME;
+	}
+
+	return hash;
+    }
+}
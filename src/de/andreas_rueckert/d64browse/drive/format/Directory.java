@@ -45,6 +45,25 @@ public interface Directory {
      */
     public void addDirectoryEntry( DirectoryEntry entry);
 
+    /**
+     * Find all the entries, whose filename matches a pattern with the C= wildcards.
+     * A '?' matches any single character and a '*' matches the rest of the filename.
+     *
+     * @param pattern The pattern to match (i.e. "GAME*" or "?AME.PRG").
+     *
+     * @return The matching entries in directory order (maybe empty).
+     */
+    public List<DirectoryEntry> findEntries( String pattern);
+
+    /**
+     * Find the entry with a given filename.
+     *
+     * @param filename The exact filename (i.e. "GAME.PRG").
+     *
+     * @return The first entry with this filename or null, if there is no such entry.
+     */
+    public DirectoryEntry findEntry( String filename);
+
     /**
      * Get the directoy entries.
      *
@@ -26,7 +26,10 @@
 package de.andreas_rueckert.d64browse.drive.format;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -52,6 +55,11 @@ public class DirectoryImpl implements Directory {
      */
     private List<DirectoryEntry> _entries = new ArrayList<DirectoryEntry>();
 
+    /**
+     * The directory entries, indexed by their filename.
+     */
+    private Map<String, DirectoryEntry> _entriesByName = new HashMap<String, DirectoryEntry>();
+
 
     // Constructors
 
@@ -77,6 +85,55 @@ public class DirectoryImpl implements Directory {
 
 	// Add the new entry to the list of entries.
 	_entries.add( entry);
+
+	// Index the entry by its name. If a name is used twice, the first entry wins, like on a real drive.
+	if( ! _entriesByName.containsKey( entry.getFileName())) {
+
+	    _entriesByName.put( entry.getFileName(), entry);
+	}
+    }
+
+    /**
+     * Find all the entries, whose filename matches a pattern with the C= wildcards.
+     * A '?' matches any single character and a '*' matches the rest of the filename.
+     *
+     * @param pattern The pattern to match (i.e. "GAME*" or "?AME.PRG").
+     *
+     * @return The matching entries in directory order (maybe empty).
+     */
+    public List<DirectoryEntry> findEntries( String pattern) {
+
+	// Without wildcards, the name index can be used.
+	if( ( pattern.indexOf( '*') == -1) && ( pattern.indexOf( '?') == -1)) {
+
+	    DirectoryEntry entry = findEntry( pattern);
+
+	    return entry == null ? Collections.<DirectoryEntry>emptyList() : Collections.singletonList( entry);
+	}
+
+	List<DirectoryEntry> result = new ArrayList<DirectoryEntry>();  // Buffer for the result.
+
+	for( DirectoryEntry currentEntry : _entries) {
+
+	    if( matchesPattern( pattern, currentEntry.getFileName())) {
+
+		result.add( currentEntry);
+	    }
+	}
+
+	return result;  // Return the result.
+    }
+
+    /**
+     * Find the entry with a given filename.
+     *
+     * @param filename The exact filename (i.e. "GAME.PRG").
+     *
+     * @return The first entry with this filename or null, if there is no such entry.
+     */
+    public DirectoryEntry findEntry( String filename) {
+
+	return _entriesByName.get( filename);
     }
 
     /**
@@ -99,6 +156,36 @@ public class DirectoryImpl implements Directory {
 	return _diskImage;
     }
 
+    /**
+     * Check, if a filename matches a pattern with the C= wildcards.
+     *
+     * @param pattern The pattern, where '?' matches any single character and '*' the rest of the filename.
+     * @param filename The filename to check.
+     *
+     * @return true, if the filename matches the pattern. False otherwise.
+     */
+    public static boolean matchesPattern( String pattern, String filename) {
+
+	for( int currentIndex = 0; currentIndex < pattern.length(); ++currentIndex) {
+
+	    char currentChar = pattern.charAt( currentIndex);
+
+	    if( currentChar == '*') {  // The rest of the pattern is ignored, like on a real drive.
+
+		return true;
+	    }
+
+	    if( ( currentIndex >= filename.length())
+		|| ( ( currentChar != '?') && ( currentChar != filename.charAt( currentIndex)))) {
+
+		return false;
+	    }
+	}
+
+	// Without a '*', the whole filename must be matched.
+	return pattern.length() == filename.length();
+    }
+
     /**
      * Remove all directory entries.
      */
@@ -106,5 +193,6 @@ public class DirectoryImpl implements Directory {
 
 	// Empty the list of directory entries.
 	_entries.clear();
+	_entriesByName.clear();
     }
 }
@@ -0,0 +1,587 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package de.andreas_rueckert.d64browse.drive.format;
+
+
+/**
+ * An immutable description of the layout of a disk image: the number of sectors on each
+ * track, the position of each track in the image file and the location of the directory
+ * and the BAM. All the lookups are O(1) array accesses.
+ *
+ * The tracks are numbered from 1 like on the drives. The sectors of an image file are
+ * stored track by track, so the block index of a sector is its position in the file.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/d64.html
+ * @see http://unusedino.de/ec64/technical/formats/d71.html
+ * @see http://unusedino.de/ec64/technical/formats/d81.html
+ */
+public final class DiskGeometry {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The size of a sector in bytes.
+     */
+    public final static int SECTOR_SIZE = 256;
+
+    /**
+     * A 1541 image with 35 tracks (683 sectors).
+     */
+    public final static DiskGeometry D64 = createD64( "D64", 35);
+
+    /**
+     * A 1541 image with 40 tracks (768 sectors). The tracks 36 - 40 are not described
+     * by the standard BAM, so they are never allocated for new files.
+     */
+    public final static DiskGeometry D64_40 = createD64( "D64_40", 40);
+
+    /**
+     * A 1541 image with 42 tracks (802 sectors). The tracks 36 - 42 are not described
+     * by the standard BAM, so they are never allocated for new files.
+     */
+    public final static DiskGeometry D64_42 = createD64( "D64_42", 42);
+
+    /**
+     * A double sided 1571 image with 70 tracks (1366 sectors).
+     */
+    public final static DiskGeometry D71 = createD71();
+
+    /**
+     * A 1581 image with 80 tracks of 40 sectors (3200 sectors).
+     */
+    public final static DiskGeometry D81 = createD81();
+
+
+    // Instance variables
+
+    /**
+     * For each track the index of the BAM sector with the bitmap of the track, or -1,
+     * if the track is not described by the BAM.
+     */
+    private final int [] _bamBitmapSectors;
+
+    /**
+     * For each track the offset of its bitmap in the BAM sector.
+     */
+    private final int [] _bamBitmapOffsets;
+
+    /**
+     * For each track the index of the BAM sector with the number of free sectors of the track,
+     * or -1, if the track is not described by the BAM.
+     */
+    private final int [] _bamCountSectors;
+
+    /**
+     * For each track the offset of the number of free sectors in the BAM sector.
+     */
+    private final int [] _bamCountOffsets;
+
+    /**
+     * The track and sector index of each BAM sector.
+     */
+    private final int [][] _bamSectors;
+
+    /**
+     * The sector index of the first directory sector.
+     */
+    private final int _directorySector;
+
+    /**
+     * The track index of the directory.
+     */
+    private final int _directoryTrack;
+
+    /**
+     * The name of this geometry (i.e. D64_40).
+     */
+    private final String _name;
+
+    /**
+     * For each track a flag, if the track is reserved for the system and never used for file data.
+     */
+    private final boolean [] _reservedTracks;
+
+    /**
+     * The number of sectors of each track (index 0 is track 1).
+     */
+    private final int [] _sectorsPerTrack;
+
+    /**
+     * The block index of the first sector of each track as a prefix sum. The array has one
+     * more element than tracks, so the last element is the total number of sectors.
+     */
+    private final int [] _trackOffsets;
+
+
+    // Constructors
+
+    /**
+     * Create a new geometry. The arrays are owned by the new instance.
+     *
+     * @param name The name of the geometry.
+     * @param sectorsPerTrack The number of sectors of each track.
+     * @param directoryTrack The track index of the directory.
+     * @param directorySector The sector index of the first directory sector.
+     * @param reservedTracks The tracks, that are never used for file data.
+     * @param bamSectors The track and sector index of each BAM sector.
+     * @param bamCountSectors For each track the BAM sector with its free count, or -1.
+     * @param bamCountOffsets For each track the offset of its free count.
+     * @param bamBitmapSectors For each track the BAM sector with its bitmap, or -1.
+     * @param bamBitmapOffsets For each track the offset of its bitmap.
+     */
+    private DiskGeometry( String name
+			  , int [] sectorsPerTrack
+			  , int directoryTrack
+			  , int directorySector
+			  , int [] reservedTracks
+			  , int [][] bamSectors
+			  , int [] bamCountSectors
+			  , int [] bamCountOffsets
+			  , int [] bamBitmapSectors
+			  , int [] bamBitmapOffsets) {
+
+	_name = name;
+	_sectorsPerTrack = sectorsPerTrack;
+	_directoryTrack = directoryTrack;
+	_directorySector = directorySector;
+	_bamSectors = bamSectors;
+	_bamCountSectors = bamCountSectors;
+	_bamCountOffsets = bamCountOffsets;
+	_bamBitmapSectors = bamBitmapSectors;
+	_bamBitmapOffsets = bamBitmapOffsets;
+
+	// Compute the start of each track as a prefix sum.
+	_trackOffsets = new int[ sectorsPerTrack.length + 1];
+	for( int currentTrack = 0; currentTrack < sectorsPerTrack.length; ++currentTrack) {
+
+	    _trackOffsets[ currentTrack + 1] = _trackOffsets[ currentTrack] + sectorsPerTrack[ currentTrack];
+	}
+
+	_reservedTracks = new boolean[ sectorsPerTrack.length];
+	for( int reservedTrack : reservedTracks) {
+
+	    _reservedTracks[ reservedTrack - 1] = true;
+	}
+    }
+
+
+    // Methods
+
+    /**
+     * Create the geometry of a 1541 image.
+     *
+     * @param name The name of the geometry.
+     * @param nTracks The number of tracks (35, 40 or 42).
+     *
+     * @return The geometry of the image.
+     */
+    private static DiskGeometry createD64( String name, int nTracks) {
+
+	int [] sectorsPerTrack = new int[ nTracks];
+	int [] bamCountSectors = new int[ nTracks];
+	int [] bamCountOffsets = new int[ nTracks];
+	int [] bamBitmapSectors = new int[ nTracks];
+	int [] bamBitmapOffsets = new int[ nTracks];
+
+	for( int currentTrack = 1; currentTrack <= nTracks; ++currentTrack) {
+
+	    sectorsPerTrack[ currentTrack - 1] = get1541SectorsOnTrack( currentTrack);
+
+	    // The BAM at 18/0 has 4 bytes per track: the number of free sectors and 3 bitmap bytes.
+	    boolean inBam = currentTrack <= 35;
+	    bamCountSectors[ currentTrack - 1] = inBam ? 0 : -1;
+	    bamCountOffsets[ currentTrack - 1] = 4 * currentTrack;
+	    bamBitmapSectors[ currentTrack - 1] = inBam ? 0 : -1;
+	    bamBitmapOffsets[ currentTrack - 1] = 4 * currentTrack + 1;
+	}
+
+	return new DiskGeometry( name, sectorsPerTrack, 18, 1, new int [] { 18 }, new int [][] { { 18, 0 } }
+				 , bamCountSectors, bamCountOffsets, bamBitmapSectors, bamBitmapOffsets);
+    }
+
+    /**
+     * Create the geometry of a double sided 1571 image.
+     *
+     * @return The geometry of the image.
+     */
+    private static DiskGeometry createD71() {
+
+	int [] sectorsPerTrack = new int[ 70];
+	int [] bamCountSectors = new int[ 70];
+	int [] bamCountOffsets = new int[ 70];
+	int [] bamBitmapSectors = new int[ 70];
+	int [] bamBitmapOffsets = new int[ 70];
+
+	for( int currentTrack = 1; currentTrack <= 70; ++currentTrack) {
+
+	    // The second side has the same layout as the first side.
+	    int sideTrack = currentTrack <= 35 ? currentTrack : currentTrack - 35;
+	    sectorsPerTrack[ currentTrack - 1] = get1541SectorsOnTrack( sideTrack);
+
+	    if( currentTrack <= 35) {  // The first side is described by the 1541 BAM at 18/0.
+
+		bamCountSectors[ currentTrack - 1] = 0;
+		bamCountOffsets[ currentTrack - 1] = 4 * currentTrack;
+		bamBitmapSectors[ currentTrack - 1] = 0;
+		bamBitmapOffsets[ currentTrack - 1] = 4 * currentTrack + 1;
+
+	    } else {  // The free counts of the second side are at the end of 18/0, the bitmaps at 53/0.
+
+		bamCountSectors[ currentTrack - 1] = 0;
+		bamCountOffsets[ currentTrack - 1] = 0xdd + currentTrack - 36;
+		bamBitmapSectors[ currentTrack - 1] = 1;
+		bamBitmapOffsets[ currentTrack - 1] = 3 * ( currentTrack - 36);
+	    }
+	}
+
+	return new DiskGeometry( "D71", sectorsPerTrack, 18, 1, new int [] { 18, 53 }, new int [][] { { 18, 0 }, { 53, 0 } }
+				 , bamCountSectors, bamCountOffsets, bamBitmapSectors, bamBitmapOffsets);
+    }
+
+    /**
+     * Create the geometry of a 1581 image.
+     *
+     * @return The geometry of the image.
+     */
+    private static DiskGeometry createD81() {
+
+	int [] sectorsPerTrack = new int[ 80];
+	int [] bamCountSectors = new int[ 80];
+	int [] bamCountOffsets = new int[ 80];
+	int [] bamBitmapSectors = new int[ 80];
+	int [] bamBitmapOffsets = new int[ 80];
+
+	for( int currentTrack = 1; currentTrack <= 80; ++currentTrack) {
+
+	    sectorsPerTrack[ currentTrack - 1] = 40;
+
+	    // 40/1 describes the tracks 1 - 40, 40/2 the tracks 41 - 80. Each track has 6 bytes,
+	    // starting at offset 0x10: the number of free sectors and 5 bitmap bytes.
+	    int bamSector = currentTrack <= 40 ? 0 : 1;
+	    int entryOffset = 0x10 + 6 * ( ( currentTrack - 1) % 40);
+	    bamCountSectors[ currentTrack - 1] = bamSector;
+	    bamCountOffsets[ currentTrack - 1] = entryOffset;
+	    bamBitmapSectors[ currentTrack - 1] = bamSector;
+	    bamBitmapOffsets[ currentTrack - 1] = entryOffset + 1;
+	}
+
+	return new DiskGeometry( "D81", sectorsPerTrack, 40, 3, new int [] { 40 }, new int [][] { { 40, 1 }, { 40, 2 } }
+				 , bamCountSectors, bamCountOffsets, bamBitmapSectors, bamBitmapOffsets);
+    }
+
+    /**
+     * Find the geometry of an image by the size of the image file, with or without error info.
+     *
+     * @param imageSize The size of the image file in bytes.
+     *
+     * @return The geometry with this image size or null, if no geometry matches.
+     */
+    public static DiskGeometry forImageSize( long imageSize) {
+
+	for( DiskGeometry currentGeometry : new DiskGeometry [] { D64, D64_40, D64_42, D71, D81 }) {
+
+	    // Images may have 1 byte of error info per sector appended.
+	    if( ( currentGeometry.getImageSize() == imageSize) || currentGeometry.hasErrorInfo( imageSize)) {
+
+		return currentGeometry;
+	    }
+	}
+
+	return null;  // Unknown size.
+    }
+
+    /**
+     * Get the number of sectors on a track of a 1541 disk.
+     *
+     * @param trackIndex The index of the track (1 - 42).
+     *
+     * @return The number of sectors on this track.
+     */
+    private static int get1541SectorsOnTrack( int trackIndex) {
+
+	if( trackIndex < 18) {
+
+	    return 21;
+
+	} else if( trackIndex < 25) {
+
+	    return 19;
+
+	} else if( trackIndex < 31) {
+
+	    return 18;
+	}
+
+	return 17;
+    }
+
+    /**
+     * Get the index of the BAM sector, that holds the bitmap of a track.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The index of the BAM sector (see getBamSectorTrack) or -1, if the track is not described by the BAM.
+     */
+    public int getBamBitmapSector( int trackIndex) {
+
+	return isValidTrack( trackIndex) ? _bamBitmapSectors[ trackIndex - 1] : -1;
+    }
+
+    /**
+     * Get the offset of the bitmap of a track in its BAM sector.
+     * Bit n of the bitmap is set, if sector n of the track is free.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The offset of the first bitmap byte.
+     */
+    public int getBamBitmapOffset( int trackIndex) {
+
+	return _bamBitmapOffsets[ trackIndex - 1];
+    }
+
+    /**
+     * Get the index of the BAM sector, that holds the number of free sectors of a track.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The index of the BAM sector (see getBamSectorTrack) or -1, if the track is not described by the BAM.
+     */
+    public int getBamCountSector( int trackIndex) {
+
+	return isValidTrack( trackIndex) ? _bamCountSectors[ trackIndex - 1] : -1;
+    }
+
+    /**
+     * Get the offset of the number of free sectors of a track in its BAM sector.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The offset of the free count.
+     */
+    public int getBamCountOffset( int trackIndex) {
+
+	return _bamCountOffsets[ trackIndex - 1];
+    }
+
+    /**
+     * Get the number of BAM sectors.
+     *
+     * @return The number of BAM sectors.
+     */
+    public int getBamSectorCount() {
+
+	return _bamSectors.length;
+    }
+
+    /**
+     * Get the sector index of a BAM sector.
+     *
+     * @param bamSector The index of the BAM sector.
+     *
+     * @return The sector index of the BAM sector on its track.
+     */
+    public int getBamSectorIndex( int bamSector) {
+
+	return _bamSectors[ bamSector][ 1];
+    }
+
+    /**
+     * Get the track index of a BAM sector.
+     *
+     * @param bamSector The index of the BAM sector.
+     *
+     * @return The track index of the BAM sector.
+     */
+    public int getBamSectorTrack( int bamSector) {
+
+	return _bamSectors[ bamSector][ 0];
+    }
+
+    /**
+     * Get the block index of a sector, which is also its position in the image file.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the track.
+     *
+     * @return The block index of the sector or -1, if the sector does not exist.
+     */
+    public int getBlockIndex( int trackIndex, int sectorIndex) {
+
+	if( ! isValidTrack( trackIndex) || ( sectorIndex < 0) || ( sectorIndex >= _sectorsPerTrack[ trackIndex - 1])) {
+
+	    return -1;
+	}
+
+	return _trackOffsets[ trackIndex - 1] + sectorIndex;
+    }
+
+    /**
+     * Get the offset of a sector in the image file.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the track.
+     *
+     * @return The byte offset of the sector or -1, if the sector does not exist.
+     */
+    public long getByteOffset( int trackIndex, int sectorIndex) {
+
+	int blockIndex = getBlockIndex( trackIndex, sectorIndex);
+
+	return blockIndex == -1 ? -1L : (long)blockIndex * SECTOR_SIZE;
+    }
+
+    /**
+     * Get the sector index of the first directory sector.
+     *
+     * @return The sector index of the first directory sector.
+     */
+    public int getDirectorySector() {
+
+	return _directorySector;
+    }
+
+    /**
+     * Get the track index of the directory.
+     *
+     * @return The track index of the directory.
+     */
+    public int getDirectoryTrack() {
+
+	return _directoryTrack;
+    }
+
+    /**
+     * Get the size of an image file with this geometry (without error info).
+     *
+     * @return The size of the image file in bytes.
+     */
+    public long getImageSize() {
+
+	return (long)getTotalSectors() * SECTOR_SIZE;
+    }
+
+    /**
+     * Get the highest track index.
+     *
+     * @return The highest track index.
+     */
+    public int getMaxTrackIndex() {
+
+	return _sectorsPerTrack.length;
+    }
+
+    /**
+     * Get the lowest track index.
+     *
+     * @return The lowest track index (always 1).
+     */
+    public int getMinTrackIndex() {
+
+	return 1;
+    }
+
+    /**
+     * Get the name of this geometry.
+     *
+     * @return The name of this geometry (i.e. D64_40).
+     */
+    public String getName() {
+
+	return _name;
+    }
+
+    /**
+     * Get the number of sectors on a track.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The number of sectors on this track or 0, if the track does not exist.
+     */
+    public int getSectorsOnTrack( int trackIndex) {
+
+	return isValidTrack( trackIndex) ? _sectorsPerTrack[ trackIndex - 1] : 0;
+    }
+
+    /**
+     * Get the total number of sectors.
+     *
+     * @return The number of sectors of an image with this geometry.
+     */
+    public int getTotalSectors() {
+
+	return _trackOffsets[ _sectorsPerTrack.length];
+    }
+
+    /**
+     * Check, if an image file of a given size has error info, which is 1 error code
+     * per sector appended to the sector data.
+     *
+     * @param imageSize The size of the image file in bytes.
+     *
+     * @return true, if the file has the size of an image with error info.
+     */
+    public boolean hasErrorInfo( long imageSize) {
+
+	return imageSize == getImageSize() + getTotalSectors();
+    }
+
+    /**
+     * Check, if a track is reserved for the system (i.e. the directory track), so it is never used for file data.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return true, if the track is reserved. False otherwise.
+     */
+    public boolean isReservedTrack( int trackIndex) {
+
+	return isValidTrack( trackIndex) && _reservedTracks[ trackIndex - 1];
+    }
+
+    /**
+     * Check, if a track exists in this geometry.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return true, if the track exists. False otherwise.
+     */
+    private boolean isValidTrack( int trackIndex) {
+
+	return ( trackIndex >= 1) && ( trackIndex <= _sectorsPerTrack.length);
+    }
+
+    /**
+     * Get a string representation of this geometry.
+     *
+     * @return The name of this geometry.
+     */
+    public String toString() {
+
+	return _name;
+    }
+}
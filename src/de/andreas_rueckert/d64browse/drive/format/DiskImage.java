@@ -32,6 +32,12 @@ import java.util.List;
 
 /**
  * Interface to describe a disk image.
+ *
+ * Concurrency: any number of threads may read an image at the same time (list the directory,
+ * read files, fetch sectors). Modifications are done on a copy-on-write overlay of the
+ * sectors, that becomes visible to the readers at once, when it is committed. Sectors
+ * returned by getSector must only be modified directly, if the image is not shared with
+ * other threads.
  */
 public interface DiskImage {
 
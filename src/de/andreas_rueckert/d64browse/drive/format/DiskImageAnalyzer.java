@@ -26,18 +26,322 @@
 package de.andreas_rueckert.d64browse.drive.format;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 
 /**
- * Class to check disk images for format.
+ * Class to check disk images for format. The format is not guessed from the name and the
+ * length of the file alone. Instead, each probe reads a few bytes at fixed positions
+ * (header or BAM sectors) and scores the file, so the files are never read as a whole.
  */
 public class DiskImageAnalyzer {
 
     // Inner classes
 
+    /**
+     * Probe for images with a CBM DOS file system (1541, 1571 and 1581 disks).
+     */
+    static class CbmDosProbe implements DiskImageProbe {
+
+	/**
+	 * The DOS version byte in the header of the disk.
+	 */
+	private byte _dosVersion;
+
+	/**
+	 * The geometry of the images of this probe.
+	 */
+	private DiskGeometry _geometry;
+
+	/**
+	 * The type of the images of this probe.
+	 */
+	private DiskImageType _type;
+
+	/**
+	 * Create a new probe for a given type of image.
+	 *
+	 * @param type The type of the images.
+	 * @param geometry The geometry of the images.
+	 * @param dosVersion The DOS version byte in the header of the disk ('A' for 1541 and 1571, 'D' for 1581).
+	 */
+	CbmDosProbe( DiskImageType type, DiskGeometry geometry, char dosVersion) {
+
+	    _type = type;
+	    _geometry = geometry;
+	    _dosVersion = (byte)dosVersion;
+	}
+
+	/**
+	 * Check an image file for this CBM DOS format.
+	 *
+	 * @param channel The open channel of the image file.
+	 * @param filename The name of the file (for the extension).
+	 *
+	 * @return The guess of this probe or null, if the image has the wrong size.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DiskImageGuess probe( FileChannel channel, String filename) throws IOException {
+
+	    // The size must fit the geometry, with or without error info.
+	    if( DiskGeometry.forImageSize( channel.size()) != _geometry) {
+
+		return null;
+	    }
+	    int confidence = 50;
+
+	    // The header sector is the first sector of the directory track.
+	    ByteBuffer header = read( channel, _geometry.getByteOffset( _geometry.getDirectoryTrack(), 0), 256);
+
+	    // The header links to the first directory sector.
+	    if( ( ( header.get( 0) & 0xff) == _geometry.getDirectoryTrack())
+		&& ( ( header.get( 1) & 0xff) == _geometry.getDirectorySector())) {
+
+		confidence += 15;
+	    }
+
+	    // Check the DOS version. Only then the flags, that tell the disk types with the same header apart, are meaningful.
+	    if( header.get( 2) == _dosVersion) {
+
+		confidence += 15;
+
+		if( _type == DiskImageType.D81) {
+
+		    // The 1st BAM sector has the DOS version and its complement.
+		    ByteBuffer bam = read( channel, _geometry.getByteOffset( _geometry.getBamSectorTrack( 0), _geometry.getBamSectorIndex( 0)), 4);
+		    if( ( bam.get( 2) == _dosVersion) && ( bam.get( 3) == (byte)~_dosVersion)) {
+
+			confidence += 10;
+		    }
+
+		} else if( ( ( header.get( 3) & 0x80) != 0) == ( _type == DiskImageType.D71)) {  // The double sided flag of the 1571.
+
+		    confidence += 10;
+		}
+	    }
+
+	    if( hasExtension( filename, "." + _type.name().substring( 0, 3))) {
+
+		confidence += 10;
+	    }
+
+	    return new DiskImageGuess( _type, confidence / 100.0);
+	}
+    }
+
+    /**
+     * Probe for C64 CP/M disks, which are 1541 disks with a CBM DOS header and the CP/M data.
+     */
+    static class CpmProbe implements DiskImageProbe {
+
+	/**
+	 * Check an image file for a C64 CP/M disk.
+	 *
+	 * @param channel The open channel of the image file.
+	 * @param filename The name of the file (for the extension).
+	 *
+	 * @return The guess of this probe or null, if the image is no C64 CP/M disk.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DiskImageGuess probe( FileChannel channel, String filename) throws IOException {
+
+	    DiskGeometry geometry = DiskGeometry.D64;
+
+	    if( DiskGeometry.forImageSize( channel.size()) != geometry) {
+
+		return null;
+	    }
+	    int confidence = 50;
+
+	    ByteBuffer header = read( channel, geometry.getByteOffset( geometry.getDirectoryTrack(), 0), 256);
+
+	    // CP/M formats its disks with the id '65' and names them 'CP/M DISK' or 'CP/M PLUS'.
+	    boolean cpmId = startsWith( header, 0xa2, "65");
+	    boolean cpmName = startsWith( header, 0x90, "CP/M");
+	    if( ! cpmId && ! cpmName) {
+
+		return null;
+	    }
+	    confidence += cpmId ? 20 : 0;
+	    confidence += cpmName ? 20 : 0;
+
+	    // Disks for the C128 have a boot sector on track 1 sector 0.
+	    if( startsWith( read( channel, geometry.getByteOffset( 1, 0), 3), 0, "CBM") || hasExtension( filename, ".d64")) {
+
+		confidence += 10;
+	    }
+
+	    return new DiskImageGuess( DiskImageType.CPM, confidence / 100.0);
+	}
+    }
+
+    /**
+     * Probe for G64 images with the raw GCR data of a 1541 disk.
+     */
+    static class G64Probe implements DiskImageProbe {
+
+	/**
+	 * Check an image file for a G64 image.
+	 *
+	 * @param channel The open channel of the image file.
+	 * @param filename The name of the file (for the extension).
+	 *
+	 * @return The guess of this probe or null, if the file has no G64 signature.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DiskImageGuess probe( FileChannel channel, String filename) throws IOException {
+
+	    ByteBuffer header = read( channel, 0, 12);
+
+	    if( ! startsWith( header, 0, "GCR-1541")) {
+
+		return null;
+	    }
+	    int confidence = 80;
+
+	    // Version 0 with up to 84 half tracks.
+	    if( header.get( 8) == 0) {
+
+		confidence += 5;
+	    }
+	    int nTracks = header.get( 9) & 0xff;
+	    if( ( nTracks > 0) && ( nTracks <= 84)) {
+
+		confidence += 5;
+	    }
+
+	    if( hasExtension( filename, ".g64")) {
+
+		confidence += 10;
+	    }
+
+	    return new DiskImageGuess( DiskImageType.G64, confidence / 100.0);
+	}
+    }
+
+    /**
+     * Probe for PC64 files (P00, S00 etc) with a single C64 file.
+     */
+    static class P00Probe implements DiskImageProbe {
+
+	/**
+	 * Check an image file for a PC64 file.
+	 *
+	 * @param channel The open channel of the image file.
+	 * @param filename The name of the file (for the extension).
+	 *
+	 * @return The guess of this probe or null, if the file has no PC64 signature.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DiskImageGuess probe( FileChannel channel, String filename) throws IOException {
+
+	    ByteBuffer header = read( channel, 0, 26);
+
+	    if( ! startsWith( header, 0, "C64File") || ( header.get( 7) != 0)) {
+
+		return null;
+	    }
+	    int confidence = 80;
+
+	    // The extension is the file type and a number (i.e. .p00 for a PRG file).
+	    if( filename.toLowerCase().matches( ".*\\.[psur][0-9][0-9]")) {
+
+		confidence += 20;
+	    }
+
+	    return new DiskImageGuess( DiskImageType.P00, confidence / 100.0);
+	}
+    }
+
+    /**
+     * Probe for T64 tape images.
+     */
+    static class T64Probe implements DiskImageProbe {
+
+	/**
+	 * Check an image file for a T64 image.
+	 *
+	 * @param channel The open channel of the image file.
+	 * @param filename The name of the file (for the extension).
+	 *
+	 * @return The guess of this probe or null, if the file has no T64 signature.
+	 *
+	 * @throws IOException if the file cannot be read.
+	 */
+	public DiskImageGuess probe( FileChannel channel, String filename) throws IOException {
+
+	    ByteBuffer header = read( channel, 0, 64);
+
+	    // The signature is 'C64 tape image file', 'C64S tape file' or similar, so just check the start.
+	    if( ! startsWith( header, 0, "C64 ") && ! startsWith( header, 0, "C64S")) {
+
+		return null;
+	    }
+	    int confidence = 60;
+
+	    // The version is 0x0100 or 0x0101.
+	    if( ( header.get( 0x21) == 1) && ( ( header.get( 0x20) & 0xfe) == 0)) {
+
+		confidence += 10;
+	    }
+
+	    // The used entries must fit in the directory, and the directory in the file.
+	    int maxEntries = ( header.get( 0x22) & 0xff) | ( ( header.get( 0x23) & 0xff) << 8);
+	    int usedEntries = ( header.get( 0x24) & 0xff) | ( ( header.get( 0x25) & 0xff) << 8);
+	    if( usedEntries <= maxEntries) {
+
+		confidence += 10;
+	    }
+	    if( channel.size() >= 64L + 32L * maxEntries) {
+
+		confidence += 10;
+	    }
+
+	    if( hasExtension( filename, ".t64")) {
+
+		confidence += 10;
+	    }
+
+	    return new DiskImageGuess( DiskImageType.T64, confidence / 100.0);
+	}
+    }
+
 
     // Static variables
 
+    /**
+     * The minimum confidence of a guess, so guessFormat returns its type.
+     */
+    public final static double MIN_CONFIDENCE = 0.5;
+
+    /**
+     * The probes of the detector. If 2 probes have the same confidence, the first one wins, so
+     * the probes for the content (CP/M) come before the probes for the container (d64).
+     */
+    private final static DiskImageProbe [] PROBES = {
+	new CpmProbe()
+	, new CbmDosProbe( DiskImageType.D64, DiskGeometry.D64, 'A')
+	, new CbmDosProbe( DiskImageType.D64_40, DiskGeometry.D64_40, 'A')
+	, new CbmDosProbe( DiskImageType.D64_42, DiskGeometry.D64_42, 'A')
+	, new CbmDosProbe( DiskImageType.D71, DiskGeometry.D71, 'A')
+	, new CbmDosProbe( DiskImageType.D81, DiskGeometry.D81, 'D')
+	, new G64Probe()
+	, new T64Probe()
+	, new P00Probe()
+    };
+
 
     // Instance variables
 
@@ -56,21 +360,135 @@ public class DiskImageAnalyzer {
      */
     public static DiskImageType guessFormat( File file) {
 
-	// For now, I just check the length of the file and the name. Should be improved!
-	if( file.getName().endsWith( ".d64")) {
+	if( ! file.isFile()) {
 
-	    if( file.length() == ( 683 * 256)) {  // 35 track d64 image ?
+	    return DiskImageType.UNKNOWN;
+	}
 
-		return DiskImageType.D64;
+	try {
 
-	    } else if( file.length() == ( 768 * 256)) {  // 40 track d64 image ?
+	    List<DiskImageGuess> guesses = probe( file.toPath());
 
-		return DiskImageType.D64_40;
+	    if( ! guesses.isEmpty() && ( guesses.get( 0).getConfidence() >= MIN_CONFIDENCE)) {
 
+		return guesses.get( 0).getType();
 	    }
+
+	} catch( IOException ioe) {
+
+	    System.err.println( "Cannot check the format of " + file + " : " + ioe);
 	}
 
 	// Default is, that no image format is recognized.
 	return DiskImageType.UNKNOWN;
     }
-}
\ No newline at end of file
+
+    /**
+     * Check, if a filename has a given extension (ignoring the case).
+     *
+     * @param filename The name of the file.
+     * @param extension The extension with the leading dot.
+     *
+     * @return true, if the filename ends with the extension.
+     */
+    private static boolean hasExtension( String filename, String extension) {
+
+	return filename.regionMatches( true, filename.length() - extension.length(), extension, 0, extension.length());
+    }
+
+    /**
+     * Run all the probes on an image file. The file is opened once and each probe just reads
+     * a few bytes at fixed positions.
+     *
+     * @param path The path of the image file.
+     *
+     * @return The guesses of the matching probes, ordered by descending confidence.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public static List<DiskImageGuess> probe( Path path) throws IOException {
+
+	List<DiskImageGuess> result = new ArrayList<DiskImageGuess>();
+
+	try( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ)) {
+
+	    String filename = path.getFileName().toString();
+
+	    for( DiskImageProbe currentProbe : PROBES) {
+
+		DiskImageGuess currentGuess = currentProbe.probe( channel, filename);
+
+		if( currentGuess != null) {
+
+		    result.add( currentGuess);
+		}
+	    }
+	}
+
+	// The sort is stable, so the order of the probes breaks ties.
+	Collections.sort( result, new Comparator<DiskImageGuess>() {
+
+		public int compare( DiskImageGuess guess1, DiskImageGuess guess2) {
+
+		    return Double.compare( guess2.getConfidence(), guess1.getConfidence());
+		}
+	    });
+
+	return result;
+    }
+
+    /**
+     * Read a few bytes at a given position of a file, without moving the position of the channel.
+     *
+     * @param channel The channel of the file.
+     * @param position The position of the first byte.
+     * @param length The number of bytes to read.
+     *
+     * @return A buffer with the bytes. If the file is too short, the missing bytes are 0.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    static ByteBuffer read( FileChannel channel, long position, int length) throws IOException {
+
+	ByteBuffer result = ByteBuffer.allocate( length);
+
+	while( result.hasRemaining()) {
+
+	    if( channel.read( result, position + result.position()) < 0) {
+
+		break;  // End of file.
+	    }
+	}
+
+	result.clear();
+
+	return result;
+    }
+
+    /**
+     * Check, if a buffer has an ASCII string at a given position.
+     *
+     * @param buffer The buffer with the data.
+     * @param position The position of the string in the buffer.
+     * @param text The string.
+     *
+     * @return true, if the buffer has the string at the given position.
+     */
+    private static boolean startsWith( ByteBuffer buffer, int position, String text) {
+
+	if( position + text.length() > buffer.limit()) {
+
+	    return false;
+	}
+
+	for( int currentChar = 0; currentChar < text.length(); ++currentChar) {
+
+	    if( buffer.get( position + currentChar) != (byte)text.charAt( currentChar)) {
+
+		return false;
+	    }
+	}
+
+	return true;
+    }
+}
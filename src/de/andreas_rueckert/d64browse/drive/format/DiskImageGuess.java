@@ -0,0 +1,100 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format;
+
+
+/**
+ * The result of a format probe: a type of image and the confidence, that the image
+ * really has this type.
+ */
+public class DiskImageGuess {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The confidence of the guess (0.0 - 1.0).
+     */
+    private double _confidence;
+
+    /**
+     * The guessed type of the image.
+     */
+    private DiskImageType _type;
+
+
+    // Constructors
+
+    /**
+     * Create a new guess for an image.
+     *
+     * @param type The guessed type of the image.
+     * @param confidence The confidence of the guess. It is limited to the range 0.0 - 1.0.
+     */
+    public DiskImageGuess( DiskImageType type, double confidence) {
+
+	_type = type;
+	_confidence = Math.max( 0.0, Math.min( 1.0, confidence));
+    }
+
+
+    // Methods
+
+    /**
+     * Get the confidence of this guess.
+     *
+     * @return The confidence of this guess (0.0 - 1.0).
+     */
+    public double getConfidence() {
+
+	return _confidence;
+    }
+
+    /**
+     * Get the guessed type of the image.
+     *
+     * @return The guessed type of the image.
+     */
+    public DiskImageType getType() {
+
+	return _type;
+    }
+
+    /**
+     * Get a string representation of this guess.
+     *
+     * @return The type and the confidence as a string.
+     */
+    public String toString() {
+
+	return _type + " (" + Math.round( _confidence * 100.0) + "%)";
+    }
+}
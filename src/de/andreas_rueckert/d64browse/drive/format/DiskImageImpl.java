@@ -25,11 +25,18 @@
 
 package de.andreas_rueckert.d64browse.drive.format;
 
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
  * Instance of this class hold the data of a disk image.
+ *
+ * The sectors are kept in an immutable sector index, that is replaced as a whole, when an
+ * overlay is committed. So readers just fetch the current index without any locking.
  */
 public abstract class DiskImageImpl implements DiskImage {
 
@@ -42,9 +49,20 @@ public abstract class DiskImageImpl implements DiskImage {
     // Instance variables
 
     /**
-     * Flag to indicate, if this image was modified.
+     * The number of modified sectors, that this image owns.
+     */
+    private final AtomicInteger _dirtySectorCount = new AtomicInteger();
+
+    /**
+     * Flag to indicate, that some sectors are not counted (i.e. the sectors of another image),
+     * so their modified flags must be checked.
+     */
+    private volatile boolean _hasUntrackedSectors = false;
+
+    /**
+     * Flag to indicate, if this image was modified (in addition to the modified flags of the sectors).
      */
-    private boolean _modified = false;
+    private volatile boolean _modified = false;
     
     /**
      * The file name of the disk image.
@@ -52,9 +70,9 @@ public abstract class DiskImageImpl implements DiskImage {
     private String _filename = null;
 
     /**
-     * An image contains a list of sectors.
+     * The current index to find the sectors by track and sector index.
      */
-    protected List<Sector> _sectors;
+    private final AtomicReference<SectorIndex> _sectorIndex = new AtomicReference<SectorIndex>();
 
 
     // Constructors
@@ -71,60 +89,128 @@ public abstract class DiskImageImpl implements DiskImage {
 	_filename = filename;
 
 	// Store the sectors in the image.
-	_sectors = sectors;
+	setSectors( sectors);
     }
 
 
     // Methods
 
     /**
-     * Get the filename of this disk image.
+     * Publish the modified sectors of an overlay as the new sectors of this image.
      *
-     * @return The filename of this disk image.
+     * @param baseIndex The sector index, that the overlay is based on.
+     * @param copies The modified sectors in the order of the flat sector array.
+     *
+     * @throws ConcurrentModificationException if the sectors were changed after the overlay was created.
      */
-    public String getFileName() {
+    void commitSectors( SectorIndex baseIndex, Sector [] copies) {
 
-	return _filename;
+	// Only replace the index, if nobody else replaced it in the meantime.
+	if( ! _sectorIndex.compareAndSet( baseIndex, baseIndex.replaceSectors( copies))) {
+
+	    throw new ConcurrentModificationException( "Image " + _filename + " was modified by another overlay.");
+	}
+
+	// The copies replace the old sectors, so they are counted instead of them.
+	for( int i = 0; i < copies.length; ++i) {
+
+	    if( copies[ i] != null) {
+
+		Sector baseSector = baseIndex.getSectorAt( i);
+		if( ( baseSector instanceof SectorImpl) && ( ((SectorImpl)baseSector).getDirtyCounter() == _dirtySectorCount)) {
+
+		    ((SectorImpl)baseSector).setDirtyCounter( null);
+		}
+
+		if( copies[ i] instanceof SectorImpl) {
+
+		    ((SectorImpl)copies[ i]).setDirtyCounter( _dirtySectorCount);
+
+		} else {
+
+		    _hasUntrackedSectors = true;
+		}
+	    }
+	}
     }
 
     /**
-     * Get the maximum track index.
+     * Create a private copy of a sector for an overlay.
      *
-     * @return The highest track number of the file system, or -1, if no sectors are available.
+     * @param sector The sector to copy.
+     *
+     * @return A copy of the sector, that does not share its data with the original sector.
      */
-    public int getMaxTrackIndex() {
+    protected Sector copySector( Sector sector) {
 
-	int currentResult = -1;
+	return new SectorImpl( sector.getDataBytes(), 0, sector.getSize(), sector.getTrackIndex(), sector.getSectorIndex());
+    }
 
-	for( Sector currentSector : getSectors()) {
+    /**
+     * Create a new overlay to modify the sectors of this image.
+     *
+     * @return A new overlay, that is based on the current sectors.
+     */
+    public SectorOverlay createOverlay() {
 
-	    if( ( currentResult == -1) || ( currentSector.getTrackIndex() > currentResult)) {
+	return new SectorOverlay( this, getSectorIndex());
+    }
 
-		currentResult = currentSector.getTrackIndex();
+    /**
+     * Get the positions of the sectors, that were modified since the image was loaded or saved.
+     * This checks all the sectors, so use isModified() to just check for modifications.
+     *
+     * @return The positions of the modified sectors in the current sector index.
+     */
+    public BitSet getDirtySectors() {
+
+	SectorIndex sectorIndex = getSectorIndex();
+	BitSet result = new BitSet( sectorIndex.size());
+
+	// Collect the modified flags of the sectors.
+	for( int i = 0; i < sectorIndex.size(); ++i) {
+
+	    Sector sector = sectorIndex.getSectorAt( i);
+
+	    if( ( sector != null) && sector.isModified()) {
+
+		result.set( i);
 	    }
 	}
 
-	return currentResult;
+	return result;  // Return the result.
     }
 
     /**
-     * Get the minimum track number.
+     * Get the filename of this disk image.
      *
-     * @return The start track for the filesystem, or -1, if no sectors are available.
+     * @return The filename of this disk image.
      */
-    public int getMinTrackIndex() {
+    public String getFileName() {
 
-	int currentResult = -1;
+	return _filename;
+    }
 
-	for( Sector currentSector : getSectors()) {
+    /**
+     * Get the maximum track index.
+     *
+     * @return The highest track number of the file system, or -1, if no sectors are available.
+     */
+    public int getMaxTrackIndex() {
 
-	    if( ( currentResult == -1) || ( currentSector.getTrackIndex() < currentResult)) {
+	// The index knows the track range already.
+	return getSectorIndex().getMaxTrackIndex();
+    }
 
-		currentResult = currentSector.getTrackIndex();
-	    }
-	}
+    /**
+     * Get the minimum track number.
+     *
+     * @return The start track for the filesystem, or -1, if no sectors are available.
+     */
+    public int getMinTrackIndex() {
 
-	return currentResult;
+	// The index knows the track range already.
+	return getSectorIndex().getMinTrackIndex();
     }
 
     /**
@@ -137,19 +223,19 @@ public abstract class DiskImageImpl implements DiskImage {
      */
     public Sector getSector( int trackIndex, int sectorIndex) {
 	
-	// The following loop is extremely inefficient, but I cannot assume, that the sectors 
-	// are sorted, only more complicated data structure could speed up the seach 
-	// (track + sector index combined in a map maybe?).
-	for( Sector currentSector : getSectors()) {
+	// Just look the sector up in the index.
+	return _sectorIndex.get().getSector( trackIndex, sectorIndex);
+    }
 
-	    if( ( currentSector.getTrackIndex() == trackIndex)
-		&& ( currentSector.getSectorIndex() == sectorIndex)){
+    /**
+     * Get the current index of the sectors of this image. The index is never modified, so
+     * readers, that need a consistent view of several sectors, should use the same index.
+     *
+     * @return The current index of the sectors of this image.
+     */
+    public SectorIndex getSectorIndex() {
 
-		return currentSector;
-	    }
-	}
-	
-	return null;  // Sector not found.
+	return _sectorIndex.get();
     }
 
     /**
@@ -159,7 +245,45 @@ public abstract class DiskImageImpl implements DiskImage {
      */
     public List<Sector> getSectors() {
 
-	return _sectors;
+	return _sectorIndex.get().getSectors();
+    }
+
+    /**
+     * Set the sectors of this image and index them for fast lookups.
+     *
+     * @param sectors The new list of sectors.
+     */
+    protected void setSectors( List<Sector> sectors) {
+
+	// Release the old sectors of this image.
+	SectorIndex oldIndex = _sectorIndex.get();
+	if( oldIndex != null) {
+
+	    for( Sector currentSector : oldIndex.getSectors()) {
+
+		if( ( currentSector instanceof SectorImpl) && ( ((SectorImpl)currentSector).getDirtyCounter() == _dirtySectorCount)) {
+
+		    ((SectorImpl)currentSector).setDirtyCounter( null);
+		}
+	    }
+	}
+
+	// Count the modifications of the new sectors, unless another image owns them already.
+	boolean hasUntrackedSectors = false;
+	for( Sector currentSector : sectors) {
+
+	    if( ( currentSector instanceof SectorImpl) && ( ((SectorImpl)currentSector).getDirtyCounter() == null)) {
+
+		((SectorImpl)currentSector).setDirtyCounter( _dirtySectorCount);
+
+	    } else if( currentSector != null) {
+
+		hasUntrackedSectors = true;
+	    }
+	}
+	_hasUntrackedSectors = hasUntrackedSectors;
+
+	_sectorIndex.set( new SectorIndex( sectors));
     }
 
     /**
@@ -171,7 +295,7 @@ public abstract class DiskImageImpl implements DiskImage {
 
 	// Just add the size of the sectors up for now.
 	int size = 0;
-	for( Sector currentSector : _sectors) {
+	for( Sector currentSector : getSectors()) {
 
 	    size += currentSector.getSize();
 	}
@@ -186,7 +310,8 @@ public abstract class DiskImageImpl implements DiskImage {
      */
     public boolean isModified() {
 
-	return _modified;
+	// Only images with sectors of other images have to check the sectors.
+	return _modified || ( _dirtySectorCount.get() > 0) || ( _hasUntrackedSectors && ! getDirtySectors().isEmpty());
     }
 
     /**
@@ -0,0 +1,56 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Interface for the probes of the format detector. A probe checks a few bytes at fixed
+ * positions of an image file (i.e. a header or a BAM sector) and scores, how likely the
+ * file has the format of the probe.
+ */
+public interface DiskImageProbe {
+
+    // Variables
+
+
+    // Methods
+
+    /**
+     * Check an image file for the format of this probe. Only positioned reads of a few
+     * bytes should be done, so the file is never read as a whole.
+     *
+     * @param channel The open channel of the image file.
+     * @param filename The name of the file (for the extension).
+     *
+     * @return The guess of this probe or null, if the file cannot have the format of this probe.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public DiskImageGuess probe( FileChannel channel, String filename) throws IOException;
+}
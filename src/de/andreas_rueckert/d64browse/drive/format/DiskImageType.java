@@ -31,5 +31,30 @@ package de.andreas_rueckert.d64browse.drive.format;
  */
 public enum DiskImageType {
 
-    D64, D64_40, UNKNOWN
+    D64, D64_40, D64_42, D71, D81, CPM, G64, T64, P00, UNKNOWN;
+
+    /**
+     * Check, if images of this type have a CBM DOS directory and BAM, so they can be
+     * browsed as a D64DiskImage. A C64 CP/M disk is a 1541 disk with a CBM DOS BAM, too.
+     * G64 images are parsed with the G64ImageParser, all the others with the D64ImageParser.
+     *
+     * @return true, if images of this type have a CBM DOS file system.
+     */
+    public boolean hasCbmDosFileSystem() {
+
+	switch( this) {
+
+	case D64:
+	case D64_40:
+	case D64_42:
+	case D71:
+	case D81:
+	case CPM:
+	case G64:
+	    return true;
+
+	default:
+	    return false;
+	}
+    }
 }
\ No newline at end of file
@@ -25,6 +25,7 @@
 
 package de.andreas_rueckert.d64browse.drive.format;
 
+import java.nio.ByteBuffer;
 
 /**
  * Interface for all implementations of a drive sector.
@@ -33,9 +34,54 @@ public interface Sector {
 
     // Variables
 
+    /**
+     * The error code of a sector, if the image has no error info.
+     */
+    public final static int ERROR_CODE_NONE = 0;
+
+    /**
+     * The error code of a sector, that was read without errors (the drive reports 00, OK).
+     */
+    public final static int ERROR_CODE_OK = 1;
+
 
     // Methods
 
+    /**
+     * Copy the content of this sector to a given array.
+     *
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     */
+    public void copyTo( byte [] destination, int offset);
+
+    /**
+     * Copy a part of the content of this sector to a given array.
+     *
+     * @param position The position of the first byte to copy from this sector.
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     * @param length The number of bytes to copy.
+     */
+    public void copyTo( int position, byte [] destination, int offset, int length);
+
+    /**
+     * Get a read-only view of the content of this sector. The data are not copied.
+     * Each call returns a view with its own position and limit, so callers may move them.
+     *
+     * @return A read-only buffer with the content of this sector.
+     */
+    public ByteBuffer getDataBuffer();
+
+    /**
+     * Get a single data byte of this sector.
+     *
+     * @param position The position of the byte.
+     *
+     * @return The data byte at the given position.
+     */
+    public byte getDataByte( int position);
+
     /**
      * Get the content of this sector.
      *
@@ -43,6 +89,15 @@ public interface Sector {
      */
     public byte [] getDataBytes();
 
+    /**
+     * Get the error code of the drive for this sector, if the image has error info. Codes
+     * greater than ERROR_CODE_OK are read errors (i.e. 2 for '20, READ ERROR' or 5 for
+     * '23, READ ERROR' for a checksum error in the data block).
+     *
+     * @return The error code of this sector or ERROR_CODE_NONE, if there is no error info.
+     */
+    public int getErrorCode();
+
     /**
      * Get the index (sector pos) of the sector on the track.
      *
@@ -64,6 +119,13 @@ public interface Sector {
      */
     public int getTrackIndex();
 
+    /**
+     * Check, if the data of this sector were modified since it was loaded or saved.
+     *
+     * @return true, if the data of this sector were modified.
+     */
+    public boolean isModified();
+
     /**
      * Set a data byte of the sector.
      *
@@ -71,4 +133,21 @@ public interface Sector {
      * @param value The new value of the byte.
      */
     public void setDataByte( int position, byte value);
+
+    /**
+     * Set a range of data bytes of the sector.
+     *
+     * @param position The position of the first byte to set.
+     * @param source The array with the new values.
+     * @param sourceOffset The start index in the source array.
+     * @param length The number of bytes to set.
+     */
+    public void setDataBytes( int position, byte [] source, int sourceOffset, int length);
+
+    /**
+     * Set the modified flag of this sector (i.e. to clear it, once the sector was saved).
+     *
+     * @param modified true, if the sector should be flagged as modified.
+     */
+    public void setModified( boolean modified);
 }
\ No newline at end of file
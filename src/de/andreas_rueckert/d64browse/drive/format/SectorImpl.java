@@ -25,6 +25,8 @@
 
 package de.andreas_rueckert.d64browse.drive.format;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic class to hold the data for a sector.
@@ -40,10 +42,30 @@ public class SectorImpl implements Sector {
     // Instance variables
 
     /**
-     * A buffer holding the data of the sector.
+     * A buffer holding the data of the sector (null, if the data are in a byte buffer).
      */
     private byte [] _dataBuffer;
 
+    /**
+     * A byte buffer (i.e. a mapped file) holding the data of the sector, if there is no data array.
+     */
+    private ByteBuffer _mappedData = null;
+
+    /**
+     * The counter of the modified sectors of the image, that owns this sector, or null.
+     */
+    private AtomicInteger _dirtyCounter = null;
+
+    /**
+     * Flag to indicate, that the data of this sector were modified since they were loaded or saved.
+     */
+    private volatile boolean _modified = false;
+
+    /**
+     * A cached read-only view of the sector data. The storage of a sector never changes, so the view stays valid.
+     */
+    private volatile ByteBuffer _readOnlyView = null;
+
     /**
      * The start index of the sector data in the buffer;
      */
@@ -85,10 +107,124 @@ public class SectorImpl implements Sector {
 	_trackIndex = trackIndex;
 	_sectorIndex = sectorIndex;
     }
+
+    /**
+     * Create a new sector from the data in a byte buffer (i.e. a memory mapped image file).
+     * The sector just reads from and writes to the buffer, the data are not copied.
+     *
+     * @param data A byte buffer with the data.
+     * @param dataStart The start index of the data.
+     * @param size The size of the sector in bytes.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     */
+    public SectorImpl( ByteBuffer data, int dataStart, int size, int trackIndex, int sectorIndex) {
+
+	// If the buffer is backed by an array, just use the array directly.
+	if( data.hasArray()) {
+
+	    _dataBuffer = data.array();
+	    _dataStart = data.arrayOffset() + dataStart;
+
+	} else {
+
+	    _dataBuffer = null;
+	    _mappedData = data;
+	    _dataStart = dataStart;
+	}
+
+	_size = size;
+	_trackIndex = trackIndex;
+	_sectorIndex = sectorIndex;
+    }
     
 
     // Methods
 
+    /**
+     * Copy the content of this sector to a given array.
+     *
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     */
+    public void copyTo( byte [] destination, int offset) {
+
+	copyTo( 0, destination, offset, getSize());
+    }
+
+    /**
+     * Copy a part of the content of this sector to a given array.
+     *
+     * @param position The position of the first byte to copy from this sector.
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     * @param length The number of bytes to copy.
+     */
+    public void copyTo( int position, byte [] destination, int offset, int length) {
+
+	// Don't read beyond the end of this sector.
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot copy " + length + " bytes from position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	if( _dataBuffer != null) {
+
+	    System.arraycopy( _dataBuffer, _dataStart + position, destination, offset, length);
+
+	} else {
+
+	    // Use a duplicate, so the position of the shared buffer is not modified.
+	    ByteBuffer view = _mappedData.duplicate();
+	    view.position( _dataStart + position);
+	    view.get( destination, offset, length);
+	}
+    }
+
+    /**
+     * Get a read-only view of the content of this sector. The data are not copied. The view
+     * is created once, so each call just duplicates it to get an own position and limit.
+     *
+     * @return A read-only buffer with the content of this sector.
+     */
+    public ByteBuffer getDataBuffer() {
+
+	ByteBuffer readOnlyView = _readOnlyView;
+
+	if( readOnlyView == null) {
+
+	    if( _dataBuffer != null) {
+
+		readOnlyView = ByteBuffer.wrap( _dataBuffer, _dataStart, getSize()).slice().asReadOnlyBuffer();
+
+	    } else {
+
+		ByteBuffer view = _mappedData.duplicate();
+		view.position( _dataStart);
+		view.limit( _dataStart + getSize());
+
+		readOnlyView = view.slice().asReadOnlyBuffer();
+	    }
+
+	    // Creating the view twice in concurrent calls does no harm.
+	    _readOnlyView = readOnlyView;
+	}
+
+	return readOnlyView.duplicate();
+    }
+
+    /**
+     * Get a single data byte of this sector.
+     *
+     * @param position The position of the byte.
+     *
+     * @return The data byte at the given position.
+     */
+    public byte getDataByte( int position) {
+
+	return _dataBuffer != null ? _dataBuffer[ _dataStart + position] : _mappedData.get( _dataStart + position);
+    }
+
     /**
      * Get the content of this sector.
      *
@@ -100,11 +236,31 @@ public class SectorImpl implements Sector {
 	byte [] result = new byte[ getSize()];
 	
 	// Copy the bytes of this sector to the result.
-	System.arraycopy( _dataBuffer, _dataStart, result, 0, getSize());
+	copyTo( result, 0);
 
 	return result;  // Return the result buffer.
     }
     
+    /**
+     * Get the counter of the modified sectors of the image, that owns this sector.
+     *
+     * @return The counter of the owning image or null, if no image owns this sector.
+     */
+    synchronized AtomicInteger getDirtyCounter() {
+
+	return _dirtyCounter;
+    }
+
+    /**
+     * Get the error code of the drive for this sector.
+     *
+     * @return Always ERROR_CODE_NONE, since a generic sector has no error info.
+     */
+    public int getErrorCode() {
+
+	return ERROR_CODE_NONE;
+    }
+
     /**
      * Get the index (sector pos) of the sector on the track.
      *
@@ -135,6 +291,16 @@ public class SectorImpl implements Sector {
 	return _trackIndex;
     }
 
+    /**
+     * Check, if the data of this sector were modified since it was loaded or saved.
+     *
+     * @return true, if the data of this sector were modified.
+     */
+    public boolean isModified() {
+
+	return _modified;
+    }
+
     /**
      * Set a data byte of the sector.
      *
@@ -144,6 +310,109 @@ public class SectorImpl implements Sector {
     public void setDataByte( int position, byte value) {
 
 	// Just set the byte in the data buffer.
-	_dataBuffer[ _dataStart + position] = value;
+	if( _dataBuffer != null) {
+
+	    _dataBuffer[ _dataStart + position] = value;
+
+	} else {
+
+	    _mappedData.put( _dataStart + position, value);
+	}
+
+	// Flag this sector for the next save. Only the first modification updates the counter.
+	if( ! _modified) {
+
+	    updateModified( true);
+	}
+    }
+
+    /**
+     * Set a range of data bytes of the sector.
+     *
+     * @param position The position of the first byte to set.
+     * @param source The array with the new values.
+     * @param sourceOffset The start index in the source array.
+     * @param length The number of bytes to set.
+     */
+    public void setDataBytes( int position, byte [] source, int sourceOffset, int length) {
+
+	// Don't write beyond the end of this sector.
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot write " + length + " bytes to position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	if( _dataBuffer != null) {
+
+	    System.arraycopy( source, sourceOffset, _dataBuffer, _dataStart + position, length);
+
+	} else {
+
+	    // Use a duplicate, so the position of the shared buffer is not modified.
+	    ByteBuffer view = _mappedData.duplicate();
+	    view.position( _dataStart + position);
+	    view.put( source, sourceOffset, length);
+	}
+
+	// Flag this sector for the next save. Only the first modification updates the counter.
+	if( ! _modified) {
+
+	    updateModified( true);
+	}
+    }
+
+    /**
+     * Set the counter of the modified sectors of the image, that owns this sector. If this
+     * sector is modified, it is moved from the old counter to the new one.
+     *
+     * @param dirtyCounter The counter of the owning image or null, if no image owns this sector anymore.
+     */
+    synchronized void setDirtyCounter( AtomicInteger dirtyCounter) {
+
+	if( _modified) {
+
+	    if( _dirtyCounter != null) {
+
+		_dirtyCounter.decrementAndGet();
+	    }
+	    if( dirtyCounter != null) {
+
+		dirtyCounter.incrementAndGet();
+	    }
+	}
+
+	_dirtyCounter = dirtyCounter;
+    }
+
+    /**
+     * Set the modified flag of this sector (i.e. to clear it, once the sector was saved).
+     *
+     * @param modified true, if the sector should be flagged as modified.
+     */
+    public void setModified( boolean modified) {
+
+	if( _modified != modified) {
+
+	    updateModified( modified);
+	}
+    }
+
+    /**
+     * Change the modified flag and count the change in the counter of the owning image.
+     *
+     * @param modified The new value of the modified flag.
+     */
+    private synchronized void updateModified( boolean modified) {
+
+	// Another thread might have changed the flag already.
+	if( _modified != modified) {
+
+	    _modified = modified;
+
+	    if( _dirtyCounter != null) {
+
+		_dirtyCounter.addAndGet( modified ? 1 : -1);
+	    }
+	}
     }
 }
\ No newline at end of file
@@ -0,0 +1,331 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A flat index to find the sectors of an image by track and sector index.
+ * It is built once from the list of sectors and answers lookups in constant time.
+ * An index is never modified after its construction, so it can be shared by any number
+ * of reading threads. Changed sectors are published as a new index (see replaceSectors).
+ */
+public class SectorIndex {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The highest track index of the indexed sectors.
+     */
+    private int _maxTrackIndex = -1;
+
+    /**
+     * The lowest track index of the indexed sectors.
+     */
+    private int _minTrackIndex = -1;
+
+    /**
+     * All the sectors, sorted by track and sector index.
+     */
+    private Sector [] _sectors;
+
+    /**
+     * The indexed sectors as an unmodifiable list.
+     */
+    private List<Sector> _sectorList;
+
+    /**
+     * The position of the first sector of each track in the sector array.
+     * The array has one more element than tracks, so the number of sectors
+     * of a track is just the difference of 2 neighbouring offsets.
+     */
+    private int [] _trackOffsets;
+
+
+    // Constructors
+
+    /**
+     * Create a new index for a given list of sectors.
+     *
+     * @param sectors The list of sectors to index. They don't have to be sorted.
+     */
+    public SectorIndex( List<Sector> sectors) {
+
+	// Find the range of the track indexes first.
+	for( Sector currentSector : sectors) {
+
+	    int trackIndex = currentSector.getTrackIndex();
+
+	    if( ( _minTrackIndex == -1) || ( trackIndex < _minTrackIndex)) {
+
+		_minTrackIndex = trackIndex;
+	    }
+
+	    if( ( _maxTrackIndex == -1) || ( trackIndex > _maxTrackIndex)) {
+
+		_maxTrackIndex = trackIndex;
+	    }
+	}
+
+	// No sectors => create an empty index.
+	if( _minTrackIndex == -1) {
+
+	    _trackOffsets = new int[ 1];
+	    _sectors = new Sector[ 0];
+	    _sectorList = Collections.emptyList();
+
+	    return;
+	}
+
+	// Count the sectors per track. Use the highest sector index, since the
+	// sectors of a track might be incomplete.
+	int nTracks = _maxTrackIndex - _minTrackIndex + 1;
+	int [] sectorsPerTrack = new int[ nTracks];
+	for( Sector currentSector : sectors) {
+
+	    int trackPos = currentSector.getTrackIndex() - _minTrackIndex;
+
+	    if( currentSector.getSectorIndex() >= sectorsPerTrack[ trackPos]) {
+
+		sectorsPerTrack[ trackPos] = currentSector.getSectorIndex() + 1;
+	    }
+	}
+
+	// Compute the start offset of each track as a prefix sum.
+	_trackOffsets = new int[ nTracks + 1];
+	for( int currentTrack = 0; currentTrack < nTracks; ++currentTrack) {
+
+	    _trackOffsets[ currentTrack + 1] = _trackOffsets[ currentTrack] + sectorsPerTrack[ currentTrack];
+	}
+
+	// Now put each sector at its position in the flat array.
+	_sectors = new Sector[ _trackOffsets[ nTracks]];
+	for( Sector currentSector : sectors) {
+
+	    int sectorPos = _trackOffsets[ currentSector.getTrackIndex() - _minTrackIndex] + currentSector.getSectorIndex();
+
+	    // If a sector appears twice, the first one wins (like the old linear search).
+	    if( _sectors[ sectorPos] == null) {
+
+		_sectors[ sectorPos] = currentSector;
+	    }
+	}
+
+	_sectorList = createSectorList( _sectors);
+    }
+
+    /**
+     * Create a new index with the geometry of a given index and some other sectors.
+     *
+     * @param baseIndex The index with the geometry.
+     * @param sectors The sectors of the new index in the order of the flat sector array.
+     */
+    private SectorIndex( SectorIndex baseIndex, Sector [] sectors) {
+
+	_minTrackIndex = baseIndex._minTrackIndex;
+	_maxTrackIndex = baseIndex._maxTrackIndex;
+	_trackOffsets = baseIndex._trackOffsets;  // Never modified, so it can be shared.
+	_sectors = sectors;
+	_sectorList = createSectorList( sectors);
+    }
+
+
+    // Methods
+
+    /**
+     * Create an unmodifiable list of the sectors in a flat sector array.
+     *
+     * @param sectors The flat sector array.
+     *
+     * @return The sectors as a list without the missing sectors.
+     */
+    private static List<Sector> createSectorList( Sector [] sectors) {
+
+	List<Sector> result = new ArrayList<Sector>( sectors.length);
+
+	for( Sector currentSector : sectors) {
+
+	    if( currentSector != null) {
+
+		result.add( currentSector);
+	    }
+	}
+
+	return Collections.unmodifiableList( result);
+    }
+
+    /**
+     * Get the highest track index of the indexed sectors.
+     *
+     * @return The highest track index, or -1, if no sectors are indexed.
+     */
+    public int getMaxTrackIndex() {
+
+	return _maxTrackIndex;
+    }
+
+    /**
+     * Get the lowest track index of the indexed sectors.
+     *
+     * @return The lowest track index, or -1, if no sectors are indexed.
+     */
+    public int getMinTrackIndex() {
+
+	return _minTrackIndex;
+    }
+
+    /**
+     * Get the position of a sector in the flat sector array. For images, that start with
+     * the first sector of the lowest track, this is the block index of the sector.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     *
+     * @return The position of the sector, or -1, if it's not in the index.
+     */
+    public int getPosition( int trackIndex, int sectorIndex) {
+
+	int trackPos = trackIndex - _minTrackIndex;
+	if( ( _minTrackIndex == -1) || ( trackPos < 0) || ( trackPos >= _trackOffsets.length - 1)) {
+
+	    return -1;
+	}
+
+	if( ( sectorIndex < 0) || ( sectorIndex >= _trackOffsets[ trackPos + 1] - _trackOffsets[ trackPos])) {
+
+	    return -1;
+	}
+
+	return _trackOffsets[ trackPos] + sectorIndex;
+    }
+
+    /**
+     * Get the sector on a given track with a given sector pos.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     *
+     * @return The found sector or null, if it's not in the index.
+     */
+    public Sector getSector( int trackIndex, int sectorIndex) {
+
+	// Check, if the track is within the indexed range.
+	int trackPos = trackIndex - _minTrackIndex;
+	if( ( _minTrackIndex == -1) || ( trackPos < 0) || ( trackPos >= _trackOffsets.length - 1)) {
+
+	    return null;
+	}
+
+	// Check, if the sector exists on this track.
+	if( ( sectorIndex < 0) || ( sectorIndex >= _trackOffsets[ trackPos + 1] - _trackOffsets[ trackPos])) {
+
+	    return null;
+	}
+
+	return _sectors[ _trackOffsets[ trackPos] + sectorIndex];
+    }
+
+    /**
+     * Get the sector at a given position of the flat sector array.
+     *
+     * @param position The position of the sector.
+     *
+     * @return The sector at this position, or null, if there is no such sector.
+     */
+    public Sector getSectorAt( int position) {
+
+	return ( ( position < 0) || ( position >= _sectors.length)) ? null : _sectors[ position];
+    }
+
+    /**
+     * Get all the indexed sectors, sorted by track and sector index.
+     *
+     * @return The indexed sectors as an unmodifiable list.
+     */
+    public List<Sector> getSectors() {
+
+	return _sectorList;
+    }
+
+    /**
+     * Get the number of sectors on a given track.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The number of sectors on this track, or 0, if the track is not in the index.
+     */
+    public int getSectorsOnTrack( int trackIndex) {
+
+	int trackPos = trackIndex - _minTrackIndex;
+	if( ( _minTrackIndex == -1) || ( trackPos < 0) || ( trackPos >= _trackOffsets.length - 1)) {
+
+	    return 0;
+	}
+
+	return _trackOffsets[ trackPos + 1] - _trackOffsets[ trackPos];
+    }
+
+    /**
+     * Create a new index, where some sectors are replaced. This index is not modified.
+     *
+     * @param replacements The replacement sectors in the order of the flat sector array. A null entry keeps the sector of this index.
+     *
+     * @return The new index.
+     */
+    public SectorIndex replaceSectors( Sector [] replacements) {
+
+	Sector [] sectors = _sectors.clone();
+
+	for( int i = 0; i < sectors.length; ++i) {
+
+	    if( replacements[ i] != null) {
+
+		sectors[ i] = replacements[ i];
+	    }
+	}
+
+	return new SectorIndex( this, sectors);
+    }
+
+    /**
+     * Get the number of positions in the flat sector array.
+     *
+     * @return The number of positions in the flat sector array.
+     */
+    public int size() {
+
+	return _sectors.length;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * A redo journal to write changed sectors back into an image file.
+ *
+ * The changed sectors are first written to a journal file next to the image and forced to
+ * the disk. Only then they are written to the image file, and the journal is deleted. If
+ * this is interrupted, the complete journal is replayed by recover(), before the image is
+ * parsed again. An incomplete journal is just deleted, since the image was not touched yet.
+ *
+ * Journal format: magic (int), number of entries (int), for each entry the file offset (long),
+ * the length (int) and the data, and finally the CRC32 of all the preceding bytes (long).
+ */
+public class SectorJournal {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The magic number at the start of a journal file ("SJNL").
+     */
+    private final static int MAGIC = 0x534a4e4c;
+
+    /**
+     * The suffix of the journal file, that is appended to the image filename.
+     */
+    public final static String SUFFIX = ".journal";
+
+
+    // Instance variables
+
+    /**
+     * The data of the journaled writes.
+     */
+    private List<byte []> _data = new ArrayList<byte []>();
+
+    /**
+     * The image file to write to.
+     */
+    private Path _imageFile;
+
+    /**
+     * The file offsets of the journaled writes.
+     */
+    private List<Long> _offsets = new ArrayList<Long>();
+
+
+    // Constructors
+
+    /**
+     * Create a new, empty journal for an image file.
+     *
+     * @param imageFile The image file to write to.
+     */
+    public SectorJournal( Path imageFile) {
+
+	_imageFile = imageFile;
+    }
+
+
+    // Methods
+
+    /**
+     * Write data to an image file at the given offsets and force them to the disk.
+     *
+     * @param imageFile The image file.
+     * @param offsets The file offsets of the writes.
+     * @param data The data of the writes.
+     *
+     * @throws IOException if the image cannot be written.
+     */
+    private static void apply( Path imageFile, List<Long> offsets, List<byte []> data) throws IOException {
+
+	try( FileChannel imageChannel = FileChannel.open( imageFile, StandardOpenOption.WRITE)) {
+
+	    for( int i = 0; i < offsets.size(); ++i) {
+
+		writeFully( imageChannel, ByteBuffer.wrap( data.get( i)), offsets.get( i));
+	    }
+
+	    imageChannel.force( false);
+	}
+    }
+
+    /**
+     * Add a write to the journal.
+     *
+     * @param fileOffset The offset in the image file.
+     * @param data The data to write. The array must not be modified afterwards.
+     */
+    public void add( long fileOffset, byte [] data) {
+
+	_offsets.add( fileOffset);
+	_data.add( data);
+    }
+
+    /**
+     * Write the journaled data to the image file in a crash safe way.
+     *
+     * @throws IOException if the journal or the image cannot be written.
+     */
+    public void commit() throws IOException {
+
+	if( _offsets.isEmpty()) {
+
+	    return;  // Nothing to write.
+	}
+
+	Path journalFile = getJournalFile( _imageFile);
+
+	// Write the journal and make sure, it's on the disk, before the image is touched.
+	try( FileChannel journalChannel = FileChannel.open( journalFile
+							    , StandardOpenOption.CREATE
+							    , StandardOpenOption.TRUNCATE_EXISTING
+							    , StandardOpenOption.WRITE)) {
+
+	    writeFully( journalChannel, ByteBuffer.wrap( encode()), 0L);
+	    journalChannel.force( true);
+	}
+
+	apply( _imageFile, _offsets, _data);
+
+	Files.delete( journalFile);
+
+	_offsets.clear();
+	_data.clear();
+    }
+
+    /**
+     * Delete the journal of an image file without replaying it (i.e. because the image file is replaced).
+     *
+     * @param imageFile The image file.
+     *
+     * @throws IOException if the journal exists, but cannot be deleted.
+     */
+    public static void discard( Path imageFile) throws IOException {
+
+	Files.deleteIfExists( getJournalFile( imageFile));
+    }
+
+    /**
+     * Encode the journal entries with the checksum.
+     *
+     * @return The content of the journal file.
+     *
+     * @throws IOException if the entries cannot be encoded.
+     */
+    private byte [] encode() throws IOException {
+
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream( buffer);
+
+	out.writeInt( MAGIC);
+	out.writeInt( _offsets.size());
+	for( int i = 0; i < _offsets.size(); ++i) {
+
+	    out.writeLong( _offsets.get( i));
+	    out.writeInt( _data.get( i).length);
+	    out.write( _data.get( i));
+	}
+
+	CRC32 checksum = new CRC32();
+	checksum.update( buffer.toByteArray());
+	out.writeLong( checksum.getValue());
+	out.flush();
+
+	return buffer.toByteArray();
+    }
+
+    /**
+     * Get the journal file of an image file.
+     *
+     * @param imageFile The image file.
+     *
+     * @return The path of the journal file.
+     */
+    private static Path getJournalFile( Path imageFile) {
+
+	return imageFile.resolveSibling( imageFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Check, if an image file has a journal of an interrupted write, that was not replayed yet.
+     *
+     * @param imageFile The image file.
+     *
+     * @return true, if a journal exists for the image file.
+     */
+    public static boolean isPending( Path imageFile) {
+
+	return Files.exists( getJournalFile( imageFile));
+    }
+
+    /**
+     * Replay a complete journal of an interrupted write and delete the journal.
+     *
+     * @param imageFile The image file.
+     *
+     * @return true, if a journal was replayed. False otherwise.
+     *
+     * @throws IOException if the journal cannot be read or the image cannot be written.
+     */
+    public static boolean recover( Path imageFile) throws IOException {
+
+	Path journalFile = getJournalFile( imageFile);
+
+	if( ! Files.exists( journalFile)) {
+
+	    return false;
+	}
+
+	byte [] journalData = Files.readAllBytes( journalFile);
+	List<Long> offsets = new ArrayList<Long>();
+	List<byte []> data = new ArrayList<byte []>();
+	boolean complete = false;
+
+	// Check the checksum first, so a truncated journal is never replayed.
+	if( journalData.length >= 16) {
+
+	    CRC32 checksum = new CRC32();
+	    checksum.update( journalData, 0, journalData.length - 8);
+
+	    DataInputStream in = new DataInputStream( new ByteArrayInputStream( journalData));
+	    in.skipBytes( journalData.length - 8);
+
+	    if( in.readLong() == checksum.getValue()) {
+
+		in = new DataInputStream( new ByteArrayInputStream( journalData, 0, journalData.length - 8));
+
+		if( in.readInt() == MAGIC) {
+
+		    int nEntries = in.readInt();
+		    for( int i = 0; i < nEntries; ++i) {
+
+			offsets.add( in.readLong());
+			byte [] entryData = new byte[ in.readInt()];
+			in.readFully( entryData);
+			data.add( entryData);
+		    }
+		    complete = true;
+		}
+	    }
+	}
+
+	if( complete) {
+
+	    apply( imageFile, offsets, data);
+
+	} else {
+
+	    System.err.println( "Discarding incomplete journal " + journalFile);
+	}
+
+	Files.delete( journalFile);
+
+	return complete;
+    }
+
+    /**
+     * Get the number of journaled writes.
+     *
+     * @return The number of journaled writes.
+     */
+    public int size() {
+
+	return _offsets.size();
+    }
+
+    /**
+     * Write a buffer completely to a given position of a channel.
+     *
+     * @param channel The channel to write to.
+     * @param buffer The data to write.
+     * @param position The file position of the first byte.
+     *
+     * @throws IOException if the data cannot be written.
+     */
+    static void writeFully( FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+	while( buffer.hasRemaining()) {
+
+	    position += channel.write( buffer, position);
+	}
+    }
+}
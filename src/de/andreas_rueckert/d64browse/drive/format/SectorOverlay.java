@@ -0,0 +1,196 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format;
+
+import java.util.ConcurrentModificationException;
+
+
+/**
+ * A copy-on-write overlay to modify the sectors of a disk image.
+ *
+ * The overlay is based on the sectors of the image at the time of its creation. Each sector,
+ * that is fetched from the overlay, is a private copy, so the changes are invisible to the
+ * readers of the image. On commit, all the copies are published as a new sector index at once.
+ * If another overlay was committed in the meantime, the commit fails and the image is not
+ * changed.
+ *
+ * An overlay is meant to be used by a single thread.
+ */
+public class SectorOverlay {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The sectors of the image, when the overlay was created.
+     */
+    private SectorIndex _baseIndex;
+
+    /**
+     * The copied sectors in the order of the flat sector array. null for unchanged sectors.
+     */
+    private Sector [] _copies;
+
+    /**
+     * Flag to indicate, that the overlay was committed or rolled back.
+     */
+    private boolean _finished = false;
+
+    /**
+     * The disk image to modify.
+     */
+    private DiskImageImpl _image;
+
+
+    // Constructors
+
+    /**
+     * Create a new overlay for a disk image.
+     *
+     * @param image The disk image to modify.
+     * @param baseIndex The current sectors of the image.
+     */
+    SectorOverlay( DiskImageImpl image, SectorIndex baseIndex) {
+
+	_image = image;
+	_baseIndex = baseIndex;
+	_copies = new Sector[ baseIndex.size()];
+    }
+
+
+    // Methods
+
+    /**
+     * Check, that the overlay can still be used.
+     */
+    private void checkNotFinished() {
+
+	if( _finished) {
+
+	    throw new IllegalStateException( "The overlay was already committed or rolled back.");
+	}
+    }
+
+    /**
+     * Publish all the modified sectors in the image at once.
+     *
+     * @throws ConcurrentModificationException if another overlay was committed after this overlay was created.
+     */
+    public void commit() {
+
+	checkNotFinished();
+
+	_finished = true;
+
+	_image.commitSectors( _baseIndex, _copies);
+    }
+
+    /**
+     * Get the sectors of the image, that this overlay is based on.
+     *
+     * @return The sectors of the image, when the overlay was created.
+     */
+    public SectorIndex getBaseIndex() {
+
+	return _baseIndex;
+    }
+
+    /**
+     * Get the sectors of the image with the changes of this overlay.
+     *
+     * @return A new index with the base sectors and the copies of this overlay.
+     */
+    public SectorIndex getCurrentIndex() {
+
+	checkNotFinished();
+
+	return _baseIndex.replaceSectors( _copies);
+    }
+
+    /**
+     * Get the private copy of a sector to modify it. The copy is created on the first call.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the track.
+     *
+     * @return The copy of the sector or null, if the sector does not exist.
+     */
+    public Sector getSector( int trackIndex, int sectorIndex) {
+
+	checkNotFinished();
+
+	int position = _baseIndex.getPosition( trackIndex, sectorIndex);
+
+	if( position == -1) {
+
+	    return null;
+	}
+
+	// Copy the sector on the first access.
+	if( _copies[ position] == null) {
+
+	    Sector baseSector = _baseIndex.getSectorAt( position);
+
+	    if( baseSector == null) {
+
+		return null;
+	    }
+
+	    _copies[ position] = _image.copySector( baseSector);
+
+	    // Keep unsaved modifications of the base sector flagged in the copy.
+	    _copies[ position].setModified( baseSector.isModified());
+	}
+
+	return _copies[ position];
+    }
+
+    /**
+     * Check, if this overlay was already committed or rolled back.
+     *
+     * @return true, if the overlay cannot be used anymore.
+     */
+    public boolean isFinished() {
+
+	return _finished;
+    }
+
+    /**
+     * Drop all the modifications. The image is not changed.
+     */
+    public void rollback() {
+
+	checkNotFinished();
+
+	_finished = true;
+	_copies = null;
+    }
+}
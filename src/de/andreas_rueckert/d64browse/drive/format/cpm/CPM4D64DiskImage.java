@@ -34,7 +34,6 @@ import de.andreas_rueckert.d64browse.drive.format.DiskImageImpl;
 import de.andreas_rueckert.d64browse.drive.format.Sector;
 import de.andreas_rueckert.d64browse.util.CharsetUtils;
 import de.andreas_rueckert.NotYetImplementedException;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -54,6 +53,16 @@ public class CPM4D64DiskImage extends DiskImageImpl {
     
     // Static variables
 
+    /**
+     * The number of directory entries (2 blocks with 32 entries each).
+     */
+    final static int DIRECTORY_ENTRIES = 64;
+
+    /**
+     * The number of 128 byte records in a 1k block.
+     */
+    final static int RECORDS_PER_BLOCK = 8;
+
 
     // Instance variables
 
@@ -72,6 +81,12 @@ public class CPM4D64DiskImage extends DiskImageImpl {
      */
     private List<Integer> _freeBlockMap = null;
 
+    /**
+     * The translation table from record numbers to cp/m sectors (a d64 sector and the half of it).
+     * Record n of block b is at index b * 8 + n.
+     */
+    private CPM4D64Sector [] _recordTable;
+
 
     // Constructors
 
@@ -84,7 +99,7 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 
 	// Create the cp/m sectors as an overlay on top of the d64 image.
 	super( d64DiskImage.getFileName(), d64DiskImage.getSectors());
-	_sectors = createCPMsectors( d64DiskImage);
+	setSectors( createCPMsectors( d64DiskImage));
 
 	// Store a reference to the d64 image in this instance.
 	_d64DiskImage = d64DiskImage;
@@ -105,7 +120,9 @@ public class CPM4D64DiskImage extends DiskImageImpl {
     }
 
     /**
-     * Create a cp/m filesystem on top of a d64 diskimage.
+     * Create a cp/m filesystem on top of a d64 diskimage. The 1k blocks are made of 4 consecutive
+     * d64 sectors, starting at track 3 sector 0. Only the sectors 0 - 16 of each track are used and
+     * track 18 is skipped. The c64 cp/m uses no sector skew on top of this layout.
      *
      * @param d64DiskImage The d64 disk image.
      *
@@ -114,7 +131,7 @@ public class CPM4D64DiskImage extends DiskImageImpl {
     private List<Sector> createCPMsectors( D64DiskImage d64DiskImage) {
 
 	// Create an empty list for the result.
-	List<Sector> result = new ArrayList<Sector>();
+	List<CPM4D64Sector> result = new ArrayList<CPM4D64Sector>();
 
 	// Loop over the d64 sectors
 	for( Sector currentD64Sector : d64DiskImage.getSectors()) {
@@ -143,8 +160,11 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 	    
 	}
 
+	// The sectors were created in block order, so the list is the translation table for the records.
+	_recordTable = result.toArray( new CPM4D64Sector[ result.size()]);
+
 	// Return the created list of sectors.
-	return result;
+	return new ArrayList<Sector>( result);
     }
 
     /**
@@ -160,14 +180,14 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 	int newExtentIndex = getFreeExtentIndex();
 
 	// Get the sector data and the data offset of the new extent entry.
-	Sector extentSector = _d64DiskImage.getSector( 3, newExtentIndex / 4);
+	Sector extentSector = getRecordSector( newExtentIndex / 4);
 	int dataOffset = ( newExtentIndex % 4) * 32;
 
 	// Set the type of the extent to used by user 0.
 	extentSector.setDataByte( dataOffset + 0, (byte)0);
 	
 	// Set the extent index of this extent.
-	extentSector.setDataByte( dataOffset + 12, (byte)(( extentSector.getDataBytes()[ dataOffset + 12] & ( 255 - 31)) | ( extentIndex & 31)));
+	extentSector.setDataByte( dataOffset + 12, (byte)(( extentSector.getDataByte( dataOffset + 12) & ( 255 - 31)) | ( extentIndex & 31)));
 	extentSector.setDataByte( dataOffset + 14, (byte)( extentIndex / 32));  // Set the highbyte.
 
 	// Set the name of the file.
@@ -193,17 +213,12 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 	}
 	
 	
-	// Store the filename in the extent.
-	int currentCharIndex = 1;
-	for( char currentChar : filename.toCharArray()) {
-	    extentSector.setDataByte( dataOffset + currentCharIndex++, CharsetUtils.getInstance().ascii2petscii( currentChar));
-	}
-	
-	// Store the suffix in the extent.
-	currentCharIndex = 9;
-	for( char currentChar : suffix.toCharArray()) {
-	    extentSector.setDataByte( dataOffset + currentCharIndex++, CharsetUtils.getInstance().ascii2petscii( currentChar));
-	}
+	// Store the filename and the suffix in the extent.
+	byte [] nameBytes = new byte[ 8];
+	int nameLength = CharsetUtils.getInstance().encode( filename, nameBytes, 0);
+	extentSector.setDataBytes( dataOffset + 1, nameBytes, 0, nameLength);
+	nameLength = CharsetUtils.getInstance().encode( suffix, nameBytes, 0);
+	extentSector.setDataBytes( dataOffset + 9, nameBytes, 0, nameLength);
 
 	throw new NotYetImplementedException( "Creating an extent is not yet implemented");
 
@@ -305,22 +320,19 @@ public class CPM4D64DiskImage extends DiskImageImpl {
      */
     public int getFreeExtentIndex() {
 
-	// The track and sector pos of the currency directory sector.
-	int trackIndex = 3;  // CP/M dir starts at track 3 sector 0.
-	int sectorIndex = 0;
 	int currentExtentIndex = 0;  // The index of the current extent.
 
-	// The directory goes from sector 0 to sector 7.
-	while( sectorIndex < 8) {
+	// The directory fills the first 2 blocks, with 4 extents in each record.
+	for( int currentRecord = 0; currentRecord < DIRECTORY_ENTRIES / 4; ++currentRecord) {
 
-	    // Get the data of the current sector.
-	    byte [] sectorData = _d64DiskImage.getSector( trackIndex, sectorIndex).getDataBytes();
+	    // Get the current sector.
+	    Sector directorySector = getRecordSector( currentRecord);
 
 	    // Parse the entire sector for directory extents of 32 bytes each.
 	    for( int currentDataStart = 0; currentDataStart < 128; currentDataStart += 32) {
 
 		// Parse extent status. If it's 0xe5, this extent is not used.
-		int extentStatus = sectorData[ currentDataStart] & 0xff;
+		int extentStatus = directorySector.getDataByte( currentDataStart) & 0xff;
 		if( extentStatus == 0xe5) {
 
 		    return currentExtentIndex;
@@ -328,8 +340,6 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 
 		++currentExtentIndex;
 	    }
-
-	    ++sectorIndex;  // Get the next sector.
 	}
 
 	return -1;
@@ -337,7 +347,7 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 		
 
     /**
-     * Get an input stream for a file of this image.
+     * Get an input stream for a file of this image. The file is read record by record.
      *
      * @param directoryEntry The directory entry.
      *
@@ -345,56 +355,39 @@ public class CPM4D64DiskImage extends DiskImageImpl {
      */
     public InputStream getInputStream( DirectoryEntry directoryEntry) {
 
-	// Get all the blocks for the file.
-	byte [] blocks = ((CPMDirectoryEntry)directoryEntry).getAllBlocks();
-
-	// Count all the used blocks
-	int usedBlocks = 0;
-	for( byte currentBlock : blocks) {
-
-	    // If the block number is not 0,
-	    if( currentBlock != 0) {
-
-		// the block is used.
-		++usedBlocks;
-	    }
-	}
-
-	// Replace a sector for every used block in the result.
-	byte [] result = new byte[ usedBlocks * 8 * getUnitSize()];
-
-	// A pointer to the result.
-	int currentResultIndex = 0;
+	return getInputStream( directoryEntry, false);
+    }
 
-	// The number of tracks in this file system.
-	int nTracks = getMaxTrackIndex() + 1;
+    /**
+     * Get an input stream for a file of this image. The file is read record by record.
+     *
+     * @param directoryEntry The directory entry.
+     * @param textFile true, if the file is a text file, that should end at the first Ctrl-Z.
+     *
+     * @return An input stream for the file represented by this directory entry.
+     */
+    public InputStream getInputStream( DirectoryEntry directoryEntry, boolean textFile) {
 
-	// Get the sectors for each block.
-	for( byte currentBlock : blocks) {
-	    
-	    if( currentBlock != 0) {
+	return new CPMFileInputStream( this, (CPMDirectoryEntry)directoryEntry, textFile);
+    }
 
-		// System.out.println( "Adding block for input stream: " + currentBlock);
+    /**
+     * Get the cp/m sector of a record from the translation table.
+     *
+     * @param recordIndex The index of the record (block index * 8 + record in the block).
+     *
+     * @return The cp/m sector, that holds the record.
+     *
+     * @throws IndexOutOfBoundsException if the record is beyond the end of the disk.
+     */
+    Sector getRecordSector( int recordIndex) {
 
-		for( int currentBlockSector = currentBlock * 8; currentBlockSector < currentBlock * 8 + 8; ++currentBlockSector) {
+	if( ( recordIndex < 0) || ( recordIndex >= _recordTable.length)) {
 
-		    // Map the block sector to a track and sector index.
-		    int trackIndex = currentBlockSector / nTracks;
-		    int sectorIndex = currentBlockSector % nTracks;
-		
-		    // System.out.println( "Getting track / sector: " + trackIndex + " / " + sectorIndex);
-		    
-		    // Copy the bytes from the current sector to the result.
-		    System.arraycopy( getSector( trackIndex, sectorIndex).getDataBytes(), 0, result, currentResultIndex, getUnitSize());
-		    
-		    // Increment the pointer to the next record.
-		    currentResultIndex += getUnitSize();
-		}
-	    }
+	    throw new IndexOutOfBoundsException( "Record " + recordIndex + " is not on this disk");
 	}
 
-	// Return a byte input stream of the result;
-	return new ByteArrayInputStream( result);
+	return _recordTable[ recordIndex];
     }
 
     /**
@@ -438,50 +431,46 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 	// Create a buffer for the result.
 	CPMDirectory result = new CPMDirectory( this);
 
-	// The track and sector pos of the currency directory sector.
-	int trackIndex = 3;  // CP/M dir starts at track 3 sector 0.
-	int sectorIndex = 0;
+	// Buffers for the raw name bytes of an extent and the converted filename with separator.
+	byte [] nameBytes = new byte[ 11];
+	byte [] filenameBytes = new byte[ 12];
 
-	// The directory goes from sector 0 to sector 7.
-	while( sectorIndex < 8) {
+	// The directory fills the first 2 blocks, with 4 extents in each record.
+	for( int currentRecord = 0; currentRecord < DIRECTORY_ENTRIES / 4; ++currentRecord) {
 
-	    // Get the data of the current sector.
-	    byte [] sectorData = _d64DiskImage.getSector( trackIndex, sectorIndex).getDataBytes();
+	    // Get the current sector.
+	    Sector directorySector = getRecordSector( currentRecord);
 
 	    // Parse the entire sector for directory extents of 32 bytes each.
 	    for( int currentDataStart = 0; currentDataStart < 128; currentDataStart += 32) {
 
-		// Parse extent status. If it's 0xe5, this extent is not used.
-		int extentStatus = sectorData[ currentDataStart] & 0xff;
-		if( extentStatus != 0xe5) {
-		
-		    // Parse the file name of the extent.
-		    StringBuffer filenameBuffer = new StringBuffer();
-		    for( int currentCharIndex = 1; currentCharIndex < 9; ++currentCharIndex) {
+		// Parse extent status. If it's 0xe5, this extent is not used. Otherwise it's the user number
+		// of the file (0 - 31). Higher values are disk labels and timestamps, but no files.
+		int extentStatus = directorySector.getDataByte( currentDataStart) & 0xff;
+		if( extentStatus < 0x20) {
 		
-			String currentCharacter = CharsetUtils.getInstance().petscii2ascii( (byte)( sectorData[ currentDataStart + currentCharIndex] & 127));
-			if( ! currentCharacter.equals( " ")) {  // Trim filename.
-			    filenameBuffer.append( currentCharacter);
+		    // Parse the file name and the suffix of the extent without the attribute bits and spaces.
+		    directorySector.copyTo( currentDataStart + 1, nameBytes, 0, 11);
+		    int filenameLength = 0;
+		    for( int currentCharIndex = 0; currentCharIndex < 11; ++currentCharIndex) {
+
+			if( currentCharIndex == 8) {  // Add the separator before the suffix.
+			    filenameBytes[ filenameLength++] = (byte)'.';
 			}
-		    }
-		    
-		    filenameBuffer.append( ".");
-		    
-		    // Now parse the suffix.
-		    for( int currentCharIndex = 9; currentCharIndex < 12; ++currentCharIndex) {
-			
-			String currentCharacter = CharsetUtils.getInstance().petscii2ascii( (byte)( sectorData[ currentDataStart + currentCharIndex] & 127));
-			if( ! currentCharacter.equals( " ")) {  // Trim suffix.
-			    filenameBuffer.append( currentCharacter);
+
+			byte currentCharacter = (byte)( nameBytes[ currentCharIndex] & 127);
+			if( currentCharacter != (byte)' ') {  // Trim filename and suffix.
+			    filenameBytes[ filenameLength++] = currentCharacter;
 			}
 		    }
+		    String filename = CharsetUtils.getInstance().decode( filenameBytes, 0, filenameLength);
 		    
-		    // Compute the number of records, that this extent uses.
+		    // Compute the number of records, that this extent uses (0 - 128, 128 for a full extent).
 		    // For the correct formula see: http://www.seasip.demon.co.uk/Cpm/format22.html
-		    int nrecords = sectorData[ currentDataStart + 15] & 127;
+		    int nrecords = Math.min( directorySector.getDataByte( currentDataStart + 15) & 0xff, 128);
 
 		    // Now compute the extent number of this extent.
-		    int extentNumber = sectorData[ currentDataStart + 14] * 32 + ( sectorData[ currentDataStart + 12] & 31);
+		    int extentNumber = directorySector.getDataByte( currentDataStart + 14) * 32 + ( directorySector.getDataByte( currentDataStart + 12) & 31);
 
 		    // Just show the filename for debugging purposes.
 		    //System.out.println( "DEBUG: found cp/m file: " + filenameBuffer.toString());
@@ -491,16 +480,14 @@ public class CPM4D64DiskImage extends DiskImageImpl {
 		    int currentBlock = 0;
 		    for( int currentBlockIndex = 16; currentBlockIndex < 32; ++currentBlockIndex) {
 
-			blocks[ currentBlock++]= sectorData[ currentDataStart + currentBlockIndex];
+			blocks[ currentBlock++]= directorySector.getDataByte( currentDataStart + currentBlockIndex);
 		    }
 
 		    // Add the extent to the cp/m directory.
-		    result.addExtent( new CPMDirectoryExtent( filenameBuffer.toString(), extentNumber, nrecords, blocks));
+		    result.addExtent( new CPMDirectoryExtent( extentStatus, filename, extentNumber, nrecords, blocks));
 		    
 		}
 	    }
-
-	    ++sectorIndex;  // Get the next sector.
 	}
 
 	// Now delete and recreate all directory entries.
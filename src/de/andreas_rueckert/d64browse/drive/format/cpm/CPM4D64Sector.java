@@ -26,13 +26,16 @@
 package de.andreas_rueckert.d64browse.drive.format.cpm;
 
 import de.andreas_rueckert.d64browse.drive.format.d64.D64Sector;
-import de.andreas_rueckert.d64browse.drive.format.SectorImpl;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.nio.ByteBuffer;
 
 
 /**
  * Class to hold the data of a cp/m sector overlayed on top of a d64 sector.
+ * The sector is a view of one half of the d64 sector, so the data are not
+ * copied and writes go straight to the d64 sector.
  */
-class CPM4D64Sector extends SectorImpl {
+class CPM4D64Sector implements Sector {
 
     // Inner classes
 
@@ -47,27 +50,74 @@ class CPM4D64Sector extends SectorImpl {
      */
     private D64Sector _d64Sector;
 
+    /**
+     * The start of the cp/m sector in the d64 sector (0 or 128).
+     */
+    private int _dataStart;
+
+    /**
+     * The index of the sector on the cp/m track.
+     */
+    private int _sectorIndex;
+
+    /**
+     * The index of the cp/m track.
+     */
+    private int _trackIndex;
+
 
     // Constructors
 
     /**
-     * Create a new sector from some given data.
+     * Create a new sector as a view of a d64 sector.
      *
-     * @param data A buffer with the data.
-     * @param dataStart The start index of the data.
+     * @param d64Sector The d64 sector under the cp/m sector.
+     * @param dataStart The start index of the data in the d64 sector.
      * @param trackIndex The index of the track.
      * @param sectorIndex The index of the sector on the given track.
      */
     public CPM4D64Sector( D64Sector d64Sector, int dataStart, int trackIndex, int sectorIndex) {
 
 	// Store the parameter in the sector instance.
-	// d64 sectors are always 256 it seems.
-	super( d64Sector.getDataBytes(), dataStart, 128, trackIndex, sectorIndex);
+	_d64Sector = d64Sector;
+	_dataStart = dataStart;
+	_trackIndex = trackIndex;
+	_sectorIndex = sectorIndex;
     }
 
 
     // Methods
 
+    /**
+     * Copy the content of this sector to a given array.
+     *
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     */
+    public void copyTo( byte [] destination, int offset) {
+
+	copyTo( 0, destination, offset, getSize());
+    }
+
+    /**
+     * Copy a part of the content of this sector to a given array.
+     *
+     * @param position The position of the first byte to copy from this sector.
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     * @param length The number of bytes to copy.
+     */
+    public void copyTo( int position, byte [] destination, int offset, int length) {
+
+	// Don't read beyond the end of this sector.
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot copy " + length + " bytes from position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	_d64Sector.copyTo( _dataStart + position, destination, offset, length);
+    }
+
     /**
      * Get the d64 sector under this cp/m sector.
      *
@@ -77,4 +127,137 @@ class CPM4D64Sector extends SectorImpl {
 
 	return _d64Sector;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get a read-only view of the content of this sector. The data are not copied.
+     *
+     * @return A read-only buffer with the content of this sector.
+     */
+    public ByteBuffer getDataBuffer() {
+
+	ByteBuffer view = _d64Sector.getDataBuffer();
+	view.position( _dataStart);
+	view.limit( _dataStart + getSize());
+
+	return view.slice();
+    }
+
+    /**
+     * Get a single data byte of this sector.
+     *
+     * @param position The position of the byte.
+     *
+     * @return The data byte at the given position.
+     */
+    public byte getDataByte( int position) {
+
+	return _d64Sector.getDataByte( _dataStart + position);
+    }
+
+    /**
+     * Get the content of this sector.
+     *
+     * @return The content of this sector as a list of bytes.
+     */
+    public byte [] getDataBytes() {
+
+	// Create a buffer for the result.
+	byte [] result = new byte[ getSize()];
+
+	// Copy the bytes of this sector to the result.
+	copyTo( result, 0);
+
+	return result;  // Return the result buffer.
+    }
+
+    /**
+     * Get the error code of the drive for this sector.
+     *
+     * @return The error code of the d64 sector under this sector.
+     */
+    public int getErrorCode() {
+
+	return _d64Sector.getErrorCode();
+    }
+
+    /**
+     * Get the index (sector pos) of the sector on the track.
+     *
+     * @return The index (sector position) of the sector on the track.
+     */
+    public int getSectorIndex() {
+
+	return _sectorIndex;
+    }
+
+    /**
+     * Get the size of this sector.
+     *
+     * @return The size of this sector as an int.
+     */
+    public int getSize() {
+
+	return 128;  // A cp/m sector is half a d64 sector.
+    }
+
+    /**
+     * Get the index of the track of this sector.
+     *
+     * @return The index of the track of this sector.
+     */
+    public int getTrackIndex() {
+
+	return _trackIndex;
+    }
+
+    /**
+     * Check, if the data of this sector were modified since it was loaded or saved.
+     * The flag is kept by the d64 sector, so it is shared by both halves.
+     *
+     * @return true, if the d64 sector under this sector was modified.
+     */
+    public boolean isModified() {
+
+	return _d64Sector.isModified();
+    }
+
+    /**
+     * Set a data byte of the sector.
+     *
+     * @param pos The position of the byte to set.
+     * @param value The new value of the byte.
+     */
+    public void setDataByte( int position, byte value) {
+
+	_d64Sector.setDataByte( _dataStart + position, value);
+    }
+
+    /**
+     * Set a range of data bytes of the sector.
+     *
+     * @param position The position of the first byte to set.
+     * @param source The array with the new values.
+     * @param sourceOffset The start index in the source array.
+     * @param length The number of bytes to set.
+     */
+    public void setDataBytes( int position, byte [] source, int sourceOffset, int length) {
+
+	// Don't write beyond the end of this sector.
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot write " + length + " bytes to position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	_d64Sector.setDataBytes( _dataStart + position, source, sourceOffset, length);
+    }
+
+    /**
+     * Set the modified flag of this sector (i.e. to clear it, once the sector was saved).
+     *
+     * @param modified true, if the sector should be flagged as modified.
+     */
+    public void setModified( boolean modified) {
+
+	_d64Sector.setModified( modified);
+    }
+}
@@ -29,7 +29,10 @@ import de.andreas_rueckert.d64browse.drive.format.DirectoryEntryImpl;
 import de.andreas_rueckert.d64browse.drive.format.DirectoryImpl;
 import de.andreas_rueckert.d64browse.drive.format.DiskImage;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -81,11 +84,30 @@ class CPMDirectory extends DirectoryImpl {
      */
     public void createDirectoryEntriesFromExtents() {
 
-	// Loop over all the filenames of the extents.
-	for( String currentFilename : getExtentFilenames()) {
+	// Group the extents by user number and filename in 1 pass, in the order of the directory.
+	Map<String, List<CPMDirectoryExtent>> extentsByFile = new LinkedHashMap<String, List<CPMDirectoryExtent>>();
+	for( CPMDirectoryExtent currentExtent : _extents) {
+
+	    String fileKey = currentExtent.getUserNumber() + ":" + currentExtent.getFileName();
+	    List<CPMDirectoryExtent> currentExtentList = extentsByFile.get( fileKey);
+
+	    if( currentExtentList == null) {
+
+		currentExtentList = new ArrayList<CPMDirectoryExtent>();
+		extentsByFile.put( fileKey, currentExtentList);
+	    }
 
-	    // Now get all the extents for the current filename.
-	    List<CPMDirectoryExtent> currentExtentList = getExtentsForFilename( currentFilename);
+	    // Keep the list sorted by extent number. The extents are usually in order already,
+	    // so the insert position is found right at the end of the list.
+	    int insertIndex = currentExtentList.size();
+	    while( ( insertIndex > 0) && ( currentExtentList.get( insertIndex - 1).compareTo( currentExtent) > 0)) {
+
+		--insertIndex;
+	    }
+	    currentExtentList.add( insertIndex, currentExtent);
+	}
+
+	for( List<CPMDirectoryExtent> currentExtentList : extentsByFile.values()) {
 
 	    // Loop over the extents and add all the used units to get the total filesize.
 	    int nUnits = 0;
@@ -95,8 +117,8 @@ class CPMDirectory extends DirectoryImpl {
 		nUnits += currentExtent.getRecordCount();
 	    }
 
-	    // Now create a directory entry for this filename.
-	    addDirectoryEntry( new CPMDirectoryEntry( currentFilename, nUnits, currentExtentList, this));
+	    // Now create a directory entry for this file.
+	    addDirectoryEntry( new CPMDirectoryEntry( currentExtentList.get( 0).getFileName(), nUnits, currentExtentList, this));
 	}
     }
 
@@ -107,23 +129,16 @@ class CPMDirectory extends DirectoryImpl {
      */
     public List<String> getExtentFilenames() {
 
-	// Create a buffer for the result.
-	List<String> result = new ArrayList<String>();
+	// Collect the filenames in a set, that keeps the order of the extents.
+	LinkedHashSet<String> result = new LinkedHashSet<String>();
 
-	// Loop over the extents.
 	for( CPMDirectoryExtent currentExtent : _extents) {
 
-	    // if the filename of this extent is not already in the result,
-	    if( ! result.contains( currentExtent.getFileName())) {
-		
-		// add it to the result.
-		result.add( currentExtent.getFileName());
-	    }
-			    
+	    result.add( currentExtent.getFileName());
 	}
 
 	// Return the resulting list.
-	return result;
+	return new ArrayList<String>( result);
     }
 
     /**
@@ -123,4 +123,14 @@ public class CPMDirectoryEntry extends DirectoryEntryImpl {
 
 	return _extents;
     }
+
+    /**
+     * Get the user number of this file.
+     *
+     * @return The user number (0 - 31) of this file.
+     */
+    public int getUserNumber() {
+
+	return _extents.isEmpty() ? 0 : _extents.get( 0).getUserNumber();
+    }
 }
\ No newline at end of file
@@ -59,6 +59,11 @@ public class CPMDirectoryExtent implements Comparable<CPMDirectoryExtent> {
      */
     private int _recordCount;
 
+    /**
+     * The user number (0 - 31) of the file, that this extent belongs to.
+     */
+    private int _userNumber;
+
 
     // Constructors
 
@@ -72,7 +77,23 @@ public class CPMDirectoryExtent implements Comparable<CPMDirectoryExtent> {
      */
     public CPMDirectoryExtent( String filename, int extentNumber, int nrecords, byte [] blocks) {
 
+	// Files without a user number belong to user 0.
+	this( 0, filename, extentNumber, nrecords, blocks);
+    }
+
+    /**
+     * Create a new directory extent for a given user.
+     *
+     * @param userNumber The user number of the file, that this extent belongs to.
+     * @param filename The filename of the extent.
+     * @param extentNumer The number of this extent.
+     * @param nrecords The number of records, that this extent uses.
+     * @param blocks The memory allocation blocks of this extent.
+     */
+    public CPMDirectoryExtent( int userNumber, String filename, int extentNumber, int nrecords, byte [] blocks) {
+
 	// Store the data in the instance.
+	_userNumber = userNumber;
 	_filename = filename;
 	_extentNumber = extentNumber;
 	_recordCount = nrecords;
@@ -133,4 +154,14 @@ public class CPMDirectoryExtent implements Comparable<CPMDirectoryExtent> {
 
 	return _recordCount;
     }
+
+    /**
+     * Get the user number of the file, that this extent belongs to.
+     *
+     * @return The user number (0 - 31) of the file.
+     */
+    public int getUserNumber() {
+
+	return _userNumber;
+    }
 }
\ No newline at end of file
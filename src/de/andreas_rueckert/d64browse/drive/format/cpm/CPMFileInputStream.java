@@ -0,0 +1,274 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package de.andreas_rueckert.d64browse.drive.format.cpm;
+
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+
+/**
+ * Class to read a file from a cp/m image on a d64. The stream walks the extents of
+ * the file in order and fetches 1 record at a time, so the file is never buffered as
+ * a whole. It stops after the number of records, that each extent holds.
+ */
+class CPMFileInputStream extends InputStream {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The character, that marks the end of a cp/m text file (Ctrl-Z).
+     */
+    final static byte END_OF_TEXT = 0x1a;
+
+
+    // Instance variables
+
+    /**
+     * The extent, that is currently read.
+     */
+    private CPMDirectoryExtent _currentExtent = null;
+
+    /**
+     * The index of the next record to read in the current extent.
+     */
+    private int _currentExtentRecord = 0;
+
+    /**
+     * The record, that is currently read.
+     */
+    private Sector _currentRecord = null;
+
+    /**
+     * The end position (exclusive) of the file data in the current record.
+     */
+    private int _currentRecordEnd = 0;
+
+    /**
+     * The read position in the current record.
+     */
+    private int _currentRecordPos = 0;
+
+    /**
+     * Flag to indicate, that no records are left after the current record.
+     */
+    private boolean _endOfFile = false;
+
+    /**
+     * The remaining extents of the file.
+     */
+    private Iterator<CPMDirectoryExtent> _extents;
+
+    /**
+     * The image to read from.
+     */
+    private CPM4D64DiskImage _sourceImage;
+
+    /**
+     * Flag to indicate, that the file is a text file, that ends at the first Ctrl-Z.
+     */
+    private boolean _textFile;
+
+
+    // Constructors
+
+    /**
+     * Create a new input stream to read a file from a cp/m image.
+     *
+     * @param sourceImage The cp/m image to read from.
+     * @param directoryEntry The directory entry of the file with its extents sorted by extent number.
+     * @param textFile true, if the file is a text file, that should end at the first Ctrl-Z.
+     */
+    public CPMFileInputStream( CPM4D64DiskImage sourceImage, CPMDirectoryEntry directoryEntry, boolean textFile) {
+
+	_sourceImage = sourceImage;
+	_extents = directoryEntry.getExtents().iterator();
+	_textFile = textFile;
+    }
+
+
+    // Methods
+
+    /**
+     * Get the number of bytes, that can be read without moving to the next record.
+     *
+     * @return The number of bytes left in the current record.
+     */
+    public int available() {
+
+	return _currentRecord == null ? 0 : _currentRecordEnd - _currentRecordPos;
+    }
+
+    /**
+     * Closes this input stream.
+     */
+    public void close() {
+
+	_currentRecord = null;
+	_endOfFile = true;
+    }
+
+    /**
+     * Make the next record of the current extent the current record.
+     *
+     * @throws IOException if the record is not in an allocated block of the disk.
+     */
+    private void enterRecord() throws IOException {
+
+	// Translate the record of the extent to a record of the disk.
+	int blockIndex = _currentExtent.getBlocks()[ _currentExtentRecord / CPM4D64DiskImage.RECORDS_PER_BLOCK] & 0xff;
+
+	if( blockIndex == 0) {
+
+	    throw new IOException( "Record " + _currentExtentRecord + " of extent " + _currentExtent.getExtentNumber() + " is not in an allocated block.");
+	}
+
+	try {
+
+	    _currentRecord = _sourceImage.getRecordSector( blockIndex * CPM4D64DiskImage.RECORDS_PER_BLOCK
+							   + _currentExtentRecord % CPM4D64DiskImage.RECORDS_PER_BLOCK);
+
+	} catch( IndexOutOfBoundsException ioobe) {
+
+	    throw new IOException( "Block " + blockIndex + " of extent " + _currentExtent.getExtentNumber() + " is not on the disk.");
+	}
+
+	++_currentExtentRecord;
+	_currentRecordPos = 0;
+	_currentRecordEnd = _currentRecord.getSize();
+
+	// A text file ends at the first Ctrl-Z.
+	if( _textFile) {
+
+	    for( int currentPos = 0; currentPos < _currentRecord.getSize(); ++currentPos) {
+
+		if( _currentRecord.getDataByte( currentPos) == END_OF_TEXT) {
+
+		    _currentRecordEnd = currentPos;
+		    _endOfFile = true;
+
+		    break;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Move to the next record of the file, if the current record is completely read.
+     *
+     * @return true, if there are more bytes to read. False at the end of the file.
+     *
+     * @throws IOException if a record is not on the disk.
+     */
+    private boolean fill() throws IOException {
+
+	while( ( _currentRecord == null) || ( _currentRecordPos >= _currentRecordEnd)) {
+
+	    if( _endOfFile) {
+
+		_currentRecord = null;
+
+		return false;
+	    }
+
+	    // Move to the next extent, once all the records of the current extent are read.
+	    while( ( _currentExtent == null) || ( _currentExtentRecord >= _currentExtent.getRecordCount())) {
+
+		if( ! _extents.hasNext()) {  // This was the last extent.
+
+		    _currentRecord = null;
+		    _endOfFile = true;
+
+		    return false;
+		}
+
+		_currentExtent = _extents.next();
+		_currentExtentRecord = 0;
+	    }
+
+	    enterRecord();
+	}
+
+	return true;
+    }
+
+    /**
+     * Read the next byte of the file.
+     *
+     * @return The next byte or -1 at the end of the file.
+     *
+     * @throws IOException if a record is not on the disk.
+     */
+    public int read() throws IOException {
+
+	if( ! fill()) {
+
+	    return -1;
+	}
+
+	return _currentRecord.getDataByte( _currentRecordPos++) & 0xff;
+    }
+
+    /**
+     * Read up to len bytes into an array. The bytes are copied directly from the records.
+     *
+     * @param b The array to read to.
+     * @param off The offset in the array.
+     * @param len The maximum number of bytes to read.
+     *
+     * @return The number of read bytes or -1 at the end of the file.
+     *
+     * @throws IOException if a record is not on the disk.
+     */
+    public int read( byte [] b, int off, int len) throws IOException {
+
+	if( ( off < 0) || ( len < 0) || ( len > b.length - off)) {
+
+	    throw new IndexOutOfBoundsException();
+	}
+
+	if( len == 0) {
+
+	    return 0;
+	}
+
+	int bytesRead = 0;
+	while( ( bytesRead < len) && fill()) {
+
+	    // Copy as much as possible from the current record.
+	    int chunkLength = Math.min( len - bytesRead, _currentRecordEnd - _currentRecordPos);
+	    _currentRecord.copyTo( _currentRecordPos, b, off + bytesRead, chunkLength);
+
+	    _currentRecordPos += chunkLength;
+	    bytesRead += chunkLength;
+	}
+
+	return bytesRead == 0 ? -1 : bytesRead;
+    }
+}
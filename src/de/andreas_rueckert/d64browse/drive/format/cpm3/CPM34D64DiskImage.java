@@ -75,7 +75,7 @@ public class CPM34D64DiskImage extends DiskImageImpl {
 
 	// Create the cp/m sectors as an overlay on top of the d64 image.
 	super( d64DiskImage.getFileName(), d64DiskImage.getSectors());
-	_sectors = createCPM3sectors( d64DiskImage);
+	setSectors( createCPM3sectors( d64DiskImage));
 
 	// Store a reference to the d64 image in this instance.
 	_d64DiskImage = d64DiskImage;
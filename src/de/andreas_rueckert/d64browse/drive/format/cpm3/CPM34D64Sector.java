@@ -26,6 +26,7 @@
 package de.andreas_rueckert.d64browse.drive.format.cpm3;
 
 import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 
@@ -77,6 +78,108 @@ public class CPM34D64Sector implements Sector {
 
     
     // Methods
+
+    /**
+     * Copy the content of this sector to a given array.
+     *
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     */
+    public void copyTo( byte [] destination, int offset) {
+
+	// Just copy the 4 d64 sectors one after the other.
+	for( int i = 0; i < 4; ++i) {
+
+	    _d64Sectors.get(i).copyTo( destination, offset + i * 256);
+	}
+    }
+
+    /**
+     * Copy the content of this sector to a buffer. The 4 d64 sectors are gathered
+     * straight into the buffer, without an intermediate array.
+     *
+     * @param destination The buffer to copy to. Its position is advanced by the size of this sector.
+     */
+    public void copyTo( ByteBuffer destination) {
+
+	for( Sector d64Sector : _d64Sectors) {
+
+	    destination.put( d64Sector.getDataBuffer());
+	}
+    }
+
+    /**
+     * Copy a part of the content of this sector to a given array.
+     *
+     * @param position The position of the first byte to copy from this sector.
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     * @param length The number of bytes to copy.
+     */
+    public void copyTo( int position, byte [] destination, int offset, int length) {
+
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot copy " + length + " bytes from position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	// Copy the requested range from each d64 sector, that it touches.
+	while( length > 0) {
+
+	    int sectorOffset = position % 256;
+	    int chunkLength = Math.min( length, 256 - sectorOffset);
+
+	    _d64Sectors.get( position / 256).copyTo( sectorOffset, destination, offset, chunkLength);
+
+	    position += chunkLength;
+	    offset += chunkLength;
+	    length -= chunkLength;
+	}
+    }
+
+    /**
+     * Get a read-only view of the content of this sector.
+     * The 4 d64 sectors are not necessarily adjacent, so this buffer is a snapshot of the data.
+     *
+     * @return A read-only buffer with the content of this sector.
+     */
+    public ByteBuffer getDataBuffer() {
+
+	return ByteBuffer.wrap( getDataBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get read-only views of the 4 d64 sectors, that this sector is made of. The data are not copied,
+     * so the views can be written to a channel with a single gathering write.
+     *
+     * @return The views of the d64 sectors in the order of the data of this sector.
+     */
+    public ByteBuffer [] getDataBuffers() {
+
+	ByteBuffer [] result = new ByteBuffer[ _d64Sectors.size()];
+
+	for( int i = 0; i < result.length; ++i) {
+
+	    result[ i] = _d64Sectors.get( i).getDataBuffer();
+	}
+
+	return result;  // Return the views.
+    }
+
+    /**
+     * Get a single data byte of this sector.
+     *
+     * @param position The position of the byte.
+     *
+     * @return The data byte at the given position.
+     */
+    public byte getDataByte( int position) {
+
+	// Compute the d64 sector, in which the byte is,
+	// and get the byte from there.
+	return _d64Sectors.get( position / 256).getDataByte( position % 256);
+    }
+
     /**
      * Get the content of this sector.
      *
@@ -89,19 +192,29 @@ public class CPM34D64Sector implements Sector {
 	// 4 d64 sectors with 256 byte each are 1024 byte.
 	byte [] result = new byte[1024];
 
-	for( int i = 0; i < 4; ++i) {
-
-	    System.arraycopy( _d64Sectors.get(i).getDataBytes()
-			      , 0
-			      , result
-			      , i * 256
-			      , 256);
-	}
+	copyTo( result, 0);
 
 	// Return the create array.
 	return result;
     }
 
+    /**
+     * Get the error code of the drive for this sector.
+     *
+     * @return The first read error of the d64 sectors under this sector, or the code of the first d64 sector, if none of them has an error.
+     */
+    public int getErrorCode() {
+
+	for( Sector d64Sector : _d64Sectors) {
+
+	    if( d64Sector.getErrorCode() > ERROR_CODE_OK) {
+
+		return d64Sector.getErrorCode();
+	    }
+	}
+	return _d64Sectors.get( 0).getErrorCode();
+    }
+
     /**
      * Get the index (sector pos) of the sector on the track.
      *
@@ -129,6 +242,23 @@ public class CPM34D64Sector implements Sector {
 	return _trackIndex;
     }
 
+    /**
+     * Check, if the data of this sector were modified since it was loaded or saved.
+     *
+     * @return true, if any of the d64 sectors under this sector was modified.
+     */
+    public boolean isModified() {
+
+	for( Sector d64Sector : _d64Sectors) {
+
+	    if( d64Sector.isModified()) {
+
+		return true;
+	    }
+	}
+	return false;
+    }
+
     /**
      * Set a data byte of the sector.
      *
@@ -141,4 +271,47 @@ public class CPM34D64Sector implements Sector {
 	// and set the byte there.
 	_d64Sectors.get( position / 256).setDataByte( position % 256, value);
     }
+
+    /**
+     * Set a range of data bytes of the sector.
+     *
+     * @param position The position of the first byte to set.
+     * @param source The array with the new values.
+     * @param sourceOffset The start index in the source array.
+     * @param length The number of bytes to set.
+     */
+    public void setDataBytes( int position, byte [] source, int sourceOffset, int length) {
+
+	if( ( position < 0) || ( length < 0) || ( position + length > getSize())) {
+
+	    throw new IndexOutOfBoundsException( "Cannot write " + length + " bytes to position " + position + " of a " + getSize() + " byte sector");
+	}
+
+	// Write the range to each d64 sector, that it touches.
+	while( length > 0) {
+
+	    int sectorOffset = position % 256;
+	    int chunkLength = Math.min( length, 256 - sectorOffset);
+
+	    _d64Sectors.get( position / 256).setDataBytes( sectorOffset, source, sourceOffset, chunkLength);
+
+	    position += chunkLength;
+	    sourceOffset += chunkLength;
+	    length -= chunkLength;
+	}
+    }
+
+    /**
+     * Set the modified flag of this sector (i.e. to clear it, once the sector was saved).
+     *
+     * @param modified true, if the sector should be flagged as modified.
+     */
+    public void setModified( boolean modified) {
+
+	// The flags are stored in the d64 sectors under this sector.
+	for( Sector d64Sector : _d64Sectors) {
+
+	    d64Sector.setModified( modified);
+	}
+    }
 }
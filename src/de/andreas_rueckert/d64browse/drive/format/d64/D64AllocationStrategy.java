@@ -0,0 +1,61 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.util.List;
+
+
+/**
+ * Interface for the policies, that select the sectors for new files and directory sectors on a d64 image.
+ */
+public interface D64AllocationStrategy {
+
+    // Variables
+
+
+    // Methods
+
+    /**
+     * Select a free sector on the directory track to extend the directory.
+     *
+     * @param image The disk image.
+     * @param lastDirectorySector The current last sector of the directory chain.
+     *
+     * @return A free sector on the directory track or null, if the directory track is full.
+     */
+    public Sector selectDirectorySector( D64DiskImage image, Sector lastDirectorySector);
+
+    /**
+     * Select free sectors for a new file. The sectors are not allocated yet.
+     *
+     * @param image The disk image.
+     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     *
+     * @return The free sectors in the order, that the file should use them, or null, if there are not enough free sectors.
+     */
+    public List<Sector> selectFreeSectors( D64DiskImage image, int num);
+}
@@ -0,0 +1,315 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.drive.format.SectorIndex;
+import java.util.BitSet;
+
+
+/**
+ * The block availability map (BAM) of a d64 image as a bitmap of free blocks.
+ * The BAM sector is parsed once, then all allocations and frees only update
+ * the bitmap. The changed tracks are written back to the BAM sectors on request.
+ * The location of the BAM entry of each track comes from the geometry of the image, so the
+ * same bitmap works for 1541, 1571 and 1581 images.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/d64.html
+ */
+class D64BlockAvailabilityMap {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * A bit for each track, that was changed since the last write back.
+     */
+    private BitSet _dirtyTracks = new BitSet();
+
+    /**
+     * The bitmap of free blocks. A set bit is a free block.
+     */
+    private long [] _freeBlocks;
+
+    /**
+     * The geometry of the image with the locations of the BAM entries.
+     */
+    private DiskGeometry _geometry;
+
+    /**
+     * The number of blocks in the bitmap.
+     */
+    private int _nBlocks;
+
+    /**
+     * The bitmap of blocks, that are never used for file data (i.e. the directory track).
+     */
+    private long [] _reservedBlocks;
+
+    /**
+     * The index of the image sectors. The position of a sector in the index is its block index.
+     */
+    private SectorIndex _sectorIndex;
+
+
+    // Constructors
+
+    /**
+     * Parse the BAM of a d64 image.
+     *
+     * @param sectorIndex The index of the image sectors.
+     * @param geometry The geometry of the image.
+     */
+    D64BlockAvailabilityMap( SectorIndex sectorIndex, DiskGeometry geometry) {
+
+	_sectorIndex = sectorIndex;
+	_geometry = geometry;
+	_nBlocks = sectorIndex.size();
+	_freeBlocks = new long[ ( _nBlocks + 63) >>> 6];
+	_reservedBlocks = new long[ _freeBlocks.length];
+
+	for( int currentTrack = geometry.getMinTrackIndex(); currentTrack <= geometry.getMaxTrackIndex(); ++currentTrack) {
+
+	    int trackStart = sectorIndex.getPosition( currentTrack, 0);
+	    int nSectors = sectorIndex.getSectorsOnTrack( currentTrack);
+
+	    for( int currentSector = 0; currentSector < nSectors; ++currentSector) {
+
+		int blockIndex = trackStart + currentSector;
+
+		if( geometry.isReservedTrack( currentTrack)) {
+
+		    _reservedBlocks[ blockIndex >>> 6] |= 1L << blockIndex;
+		}
+	    }
+
+	    // Tracks without a BAM entry are never free.
+	    Sector bamSector = getBamSector( sectorIndex, geometry.getBamBitmapSector( currentTrack));
+	    if( bamSector == null) {
+
+		continue;
+	    }
+
+	    int bitmapOffset = geometry.getBamBitmapOffset( currentTrack);
+
+	    for( int currentSector = 0; currentSector < nSectors; ++currentSector) {
+
+		int blockIndex = trackStart + currentSector;
+
+		if( ( bamSector.getDataByte( bitmapOffset + ( currentSector >>> 3)) & ( 1 << ( currentSector & 7))) != 0) {
+
+		    _freeBlocks[ blockIndex >>> 6] |= 1L << blockIndex;
+		}
+	    }
+	}
+    }
+
+
+    // Methods
+
+    /**
+     * Mark a block as used.
+     *
+     * @param blockIndex The index of the block.
+     */
+    void allocate( int blockIndex) {
+
+	_freeBlocks[ blockIndex >>> 6] &= ~( 1L << blockIndex);
+	markTrackDirty( blockIndex);
+    }
+
+    /**
+     * Mark a block as free.
+     *
+     * @param blockIndex The index of the block.
+     */
+    void free( int blockIndex) {
+
+	_freeBlocks[ blockIndex >>> 6] |= 1L << blockIndex;
+	markTrackDirty( blockIndex);
+    }
+
+    /**
+     * Get a BAM sector of the image.
+     *
+     * @param sectorIndex The index of the image sectors.
+     * @param bamSector The index of the BAM sector in the geometry or -1.
+     *
+     * @return The BAM sector or null, if there is no such sector.
+     */
+    private Sector getBamSector( SectorIndex sectorIndex, int bamSector) {
+
+	if( bamSector == -1) {
+
+	    return null;
+	}
+
+	return sectorIndex.getSector( _geometry.getBamSectorTrack( bamSector), _geometry.getBamSectorIndex( bamSector));
+    }
+
+    /**
+     * Get the number of free blocks, that can store file data.
+     *
+     * @return The number of free blocks outside the directory track.
+     */
+    int getFreeBlockCount() {
+
+	int result = 0;
+
+	for( int currentWord = 0; currentWord < _freeBlocks.length; ++currentWord) {
+
+	    result += Long.bitCount( _freeBlocks[ currentWord] & ~_reservedBlocks[ currentWord]);
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the sector index, that this BAM was parsed from.
+     *
+     * @return The sector index, that this BAM was parsed from.
+     */
+    SectorIndex getSectorIndex() {
+
+	return _sectorIndex;
+    }
+
+    /**
+     * Check, if a block is free.
+     *
+     * @param blockIndex The index of the block.
+     *
+     * @return true, if the block is free. False otherwise.
+     */
+    boolean isFree( int blockIndex) {
+
+	return ( _freeBlocks[ blockIndex >>> 6] & ( 1L << blockIndex)) != 0;
+    }
+
+    /**
+     * Remember, that the track of a block has to be written back to the BAM.
+     *
+     * @param blockIndex The index of the block.
+     */
+    private void markTrackDirty( int blockIndex) {
+
+	Sector sector = _sectorIndex.getSectorAt( blockIndex);
+
+	if( ( sector != null) && ( _geometry.getBamBitmapSector( sector.getTrackIndex()) != -1)) {
+
+	    _dirtyTracks.set( sector.getTrackIndex());
+	}
+    }
+
+    /**
+     * Find the next free block, that can store file data.
+     *
+     * @param fromBlockIndex The block index to start the search with.
+     *
+     * @return The index of the next free block, or -1, if there are no more free blocks.
+     */
+    int nextFreeBlock( int fromBlockIndex) {
+
+	if( ( fromBlockIndex < 0) || ( fromBlockIndex >= _nBlocks)) {
+
+	    return -1;
+	}
+
+	int currentWord = fromBlockIndex >>> 6;
+
+	// Ignore the blocks before the start block in the first word.
+	long freeBits = _freeBlocks[ currentWord] & ~_reservedBlocks[ currentWord] & ( -1L << fromBlockIndex);
+
+	while( freeBits == 0L) {
+
+	    if( ++currentWord == _freeBlocks.length) {
+
+		return -1;
+	    }
+
+	    freeBits = _freeBlocks[ currentWord] & ~_reservedBlocks[ currentWord];
+	}
+
+	int result = ( currentWord << 6) + Long.numberOfTrailingZeros( freeBits);
+
+	return result < _nBlocks ? result : -1;
+    }
+
+    /**
+     * Write the changed tracks back to the BAM sectors.
+     *
+     * @param bamSectors The BAM sectors of the image or copies of them, in the order of the geometry.
+     *
+     * @return true, if a BAM sector was modified. False otherwise.
+     */
+    boolean writeBack( Sector [] bamSectors) {
+
+	if( _dirtyTracks.isEmpty()) {
+
+	    return false;
+	}
+
+	for( int currentTrack = _dirtyTracks.nextSetBit( 0); currentTrack >= 0; currentTrack = _dirtyTracks.nextSetBit( currentTrack + 1)) {
+
+	    int trackStart = _sectorIndex.getPosition( currentTrack, 0);
+	    int nSectors = _sectorIndex.getSectorsOnTrack( currentTrack);
+	    int freeCount = 0;
+	    long bitmap = 0L;
+
+	    for( int currentSector = 0; currentSector < nSectors; ++currentSector) {
+
+		if( isFree( trackStart + currentSector)) {
+
+		    bitmap |= 1L << currentSector;
+		    ++freeCount;
+		}
+	    }
+
+	    // Store the number of free sectors and the bitmap of this track.
+	    Sector bitmapSector = bamSectors[ _geometry.getBamBitmapSector( currentTrack)];
+	    int bitmapOffset = _geometry.getBamBitmapOffset( currentTrack);
+	    for( int currentByte = 0; currentByte < ( nSectors + 7) >>> 3; ++currentByte) {
+
+		bitmapSector.setDataByte( bitmapOffset + currentByte, (byte)( bitmap >>> ( 8 * currentByte)));
+	    }
+
+	    if( _geometry.getBamCountSector( currentTrack) != -1) {
+
+		bamSectors[ _geometry.getBamCountSector( currentTrack)].setDataByte( _geometry.getBamCountOffset( currentTrack), (byte)freeCount);
+	    }
+	}
+
+	_dirtyTracks.clear();
+
+	return true;
+    }
+}
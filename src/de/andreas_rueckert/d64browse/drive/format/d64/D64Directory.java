@@ -0,0 +1,235 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.DirectoryImpl;
+import de.andreas_rueckert.d64browse.drive.format.DiskImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Class to hold a parsed d64 directory. In addition to the entries, it knows the
+ * unused entry slots (deleted files with type 0 and unused entries of the directory
+ * sectors), so new files can reuse them.
+ */
+public class D64Directory extends DirectoryImpl {
+
+    // Inner classes
+
+    /**
+     * The position of an unused entry in the directory sectors.
+     */
+    public static class EntrySlot {
+
+	/**
+	 * The offset of the entry in the directory sector.
+	 */
+	private final int _entryOffset;
+
+	/**
+	 * The index of the directory sector on its track.
+	 */
+	private final int _sectorIndex;
+
+	/**
+	 * The track index of the directory sector.
+	 */
+	private final int _trackIndex;
+
+
+	/**
+	 * Create a new slot.
+	 *
+	 * @param trackIndex The track index of the directory sector.
+	 * @param sectorIndex The index of the directory sector on its track.
+	 * @param entryOffset The offset of the entry in the directory sector.
+	 */
+	EntrySlot( int trackIndex, int sectorIndex, int entryOffset) {
+
+	    _trackIndex = trackIndex;
+	    _sectorIndex = sectorIndex;
+	    _entryOffset = entryOffset;
+	}
+
+
+	/**
+	 * Get the offset of the entry in the directory sector.
+	 *
+	 * @return The offset of the entry (a multiple of 32).
+	 */
+	public int getEntryOffset() {
+
+	    return _entryOffset;
+	}
+
+	/**
+	 * Get the index of the directory sector on its track.
+	 *
+	 * @return The index of the directory sector on its track.
+	 */
+	public int getSectorIndex() {
+
+	    return _sectorIndex;
+	}
+
+	/**
+	 * Get the track index of the directory sector.
+	 *
+	 * @return The track index of the directory sector.
+	 */
+	public int getTrackIndex() {
+
+	    return _trackIndex;
+	}
+    }
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The error, that stopped the parsing of the directory chain, or null, if the chain is ok.
+     */
+    private String _chainError = null;
+
+    /**
+     * The unused entry slots in the order of the directory chain.
+     */
+    private List<EntrySlot> _freeSlots = new ArrayList<EntrySlot>();
+
+    /**
+     * The index of the last sector of the directory chain on its track.
+     */
+    private int _lastSectorIndex = 0;
+
+    /**
+     * The track index of the last sector of the directory chain.
+     */
+    private int _lastTrackIndex = 0;
+
+
+    // Constructors
+
+    /**
+     * Create a new directory for a given disk image.
+     *
+     * @param diskImage The disk image, this directory belongs to.
+     */
+    public D64Directory( DiskImage diskImage) {
+
+	super( diskImage);
+    }
+
+
+    // Methods
+
+    /**
+     * Add an unused entry slot to this directory.
+     *
+     * @param trackIndex The track index of the directory sector.
+     * @param sectorIndex The index of the directory sector on its track.
+     * @param entryOffset The offset of the entry in the directory sector.
+     */
+    void addFreeSlot( int trackIndex, int sectorIndex, int entryOffset) {
+
+	_freeSlots.add( new EntrySlot( trackIndex, sectorIndex, entryOffset));
+    }
+
+    /**
+     * Get the error, that stopped the parsing of the directory chain.
+     *
+     * @return The error message or null, if the whole directory chain was parsed.
+     */
+    public String getChainError() {
+
+	return _chainError;
+    }
+
+    /**
+     * Get the first unused entry slot, that a new file should use.
+     *
+     * @return The first unused entry slot or null, if all the slots of the directory sectors are used.
+     */
+    public EntrySlot getFreeSlot() {
+
+	return _freeSlots.isEmpty() ? null : _freeSlots.get( 0);
+    }
+
+    /**
+     * Get all the unused entry slots.
+     *
+     * @return The unused entry slots in the order of the directory chain.
+     */
+    public List<EntrySlot> getFreeSlots() {
+
+	return Collections.unmodifiableList( _freeSlots);
+    }
+
+    /**
+     * Get the index of the last sector of the directory chain on its track.
+     *
+     * @return The index of the last directory sector on its track.
+     */
+    public int getLastSectorIndex() {
+
+	return _lastSectorIndex;
+    }
+
+    /**
+     * Get the track index of the last sector of the directory chain.
+     *
+     * @return The track index of the last directory sector.
+     */
+    public int getLastTrackIndex() {
+
+	return _lastTrackIndex;
+    }
+
+    /**
+     * Set the error, that stopped the parsing of the directory chain.
+     *
+     * @param chainError The error message.
+     */
+    void setChainError( String chainError) {
+
+	_chainError = chainError;
+    }
+
+    /**
+     * Set the last sector of the directory chain, so the chain can be extended.
+     *
+     * @param trackIndex The track index of the last directory sector.
+     * @param sectorIndex The index of the last directory sector on its track.
+     */
+    void setLastSector( int trackIndex, int sectorIndex) {
+
+	_lastTrackIndex = trackIndex;
+	_lastSectorIndex = sectorIndex;
+    }
+}
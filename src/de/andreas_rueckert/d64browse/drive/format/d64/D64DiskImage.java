@@ -25,17 +25,27 @@
 
 package de.andreas_rueckert.d64browse.drive.format.d64;
 
-import de.andreas_rueckert.d64browse.drive.format.Directory;
 import de.andreas_rueckert.d64browse.drive.format.DirectoryEntry;
 import de.andreas_rueckert.d64browse.drive.format.DirectoryEntryImpl;
-import de.andreas_rueckert.d64browse.drive.format.DirectoryImpl;
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
 import de.andreas_rueckert.d64browse.drive.format.DiskImageImpl;
 import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.drive.format.SectorIndex;
+import de.andreas_rueckert.d64browse.drive.format.SectorJournal;
+import de.andreas_rueckert.d64browse.drive.format.SectorOverlay;
 import de.andreas_rueckert.d64browse.util.CharsetUtils;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 
@@ -48,6 +58,35 @@ public class D64DiskImage extends DiskImageImpl {
 
     // Inner classes
 
+    /**
+     * A parsed directory together with the sectors, that it was parsed from.
+     */
+    private static class DirectorySnapshot {
+
+	/**
+	 * The parsed directory.
+	 */
+	private final D64Directory _directory;
+
+	/**
+	 * The sectors, that the directory was parsed from.
+	 */
+	private final SectorIndex _sectorIndex;
+
+
+	/**
+	 * Create a new snapshot of a directory.
+	 *
+	 * @param directory The parsed directory.
+	 * @param sectorIndex The sectors, that the directory was parsed from.
+	 */
+	DirectorySnapshot( D64Directory directory, SectorIndex sectorIndex) {
+
+	    _directory = directory;
+	    _sectorIndex = sectorIndex;
+	}
+    }
+
     
     // Static variables
 
@@ -55,9 +94,29 @@ public class D64DiskImage extends DiskImageImpl {
     // Instance variables
 
     /**
-     * The current root directory.
+     * The policy to select the sectors for new files.
      */
-    private Directory _directory = null;
+    private D64AllocationStrategy _allocationStrategy = new D64LinearAllocationStrategy();
+
+    /**
+     * The error info of the image (1 error code per block, in block order) or null, if the image has no error info.
+     */
+    private ByteBuffer _errorInfo;
+
+    /**
+     * The layout of the tracks, the directory and the BAM of this image.
+     */
+    private DiskGeometry _geometry;
+
+    /**
+     * The current root directory and the sectors, it was parsed from.
+     */
+    private volatile DirectorySnapshot _directorySnapshot = null;
+
+    /**
+     * The bitmap of free blocks, parsed from the BAM of the current sectors on first use.
+     */
+    private volatile D64BlockAvailabilityMap _blockAvailabilityMap = null;
 
 
     // Constructors
@@ -70,38 +129,77 @@ public class D64DiskImage extends DiskImageImpl {
      */
     public D64DiskImage( String filename, List<Sector> sectorList) {
 
+	// Without a given geometry, this is a standard 35 track 1541 image.
+	this( filename, sectorList, DiskGeometry.D64);
+    }
+
+    /**
+     * Create a new image from a list of sectors with a given geometry.
+     *
+     * @param filename The filename of the image.
+     * @param sectorList The list of sectors.
+     * @param geometry The layout of the tracks, the directory and the BAM.
+     */
+    public D64DiskImage( String filename, List<Sector> sectorList, DiskGeometry geometry) {
+
+	this( filename, sectorList, geometry, null);
+    }
+
+    /**
+     * Create a new image from a list of sectors with a given geometry and error info.
+     *
+     * @param filename The filename of the image.
+     * @param sectorList The list of sectors.
+     * @param geometry The layout of the tracks, the directory and the BAM.
+     * @param errorInfo The error codes of the blocks, that were appended to the image file, or null.
+     */
+    public D64DiskImage( String filename, List<Sector> sectorList, DiskGeometry geometry, ByteBuffer errorInfo) {
+
 	// Use the constructor of the base class.
 	super( filename, sectorList);
+
+	_geometry = geometry;
+	_errorInfo = errorInfo;
     }
     
 
     // Methods
 
+    /**
+     * Create a private copy of a sector for an overlay.
+     *
+     * @param sector The sector to copy.
+     *
+     * @return A copy of the sector, that does not share its data with the original sector.
+     */
+    protected Sector copySector( Sector sector) {
+
+	// The copy keeps the error code of the original sector, even if it was decoded (i.e. from a G64 track).
+	ByteBuffer errorInfo = ByteBuffer.wrap( new byte [] { (byte)sector.getErrorCode() });
+	return new D64Sector( ByteBuffer.wrap( sector.getDataBytes()), 0, sector.getTrackIndex(), sector.getSectorIndex(), errorInfo, 0);
+    }
+
     /**
      * Create a new directory entry in the d64.
      *
+     * @param overlay The overlay with the sectors to modify.
+     * @param currentImage A view of the image with the changes of the overlay.
      * @param directoryEntry The directory entry of the file to add.
      * @param usedSectors The sectors, that the new file will use on the d64.
+     *
+     * @return true, if the entry was created. False otherwise.
      */
-    private void createD64DirectoryEntry( DirectoryEntry directoryEntry, List<Sector> usedSectors) {
-
-	// Get the position of the new directory entry to create.
-	// Just count the existing known directory entries for now.
-	int newEntryPos = getDirectory().getDirectoryEntries().size();
-
-	// A d64 directory sector has 8 entries per sector, so calculate the sector and offset.
-	int entrySector = 1 + newEntryPos / 8;
-	int entryOffset = 32 * ( newEntryPos % 8);
-
-	// Fetch the sector with the directory entries.
-	Sector directorySector = getSector( 18, entrySector);  // Sector 0 contains the BAM.
+    private boolean createD64DirectoryEntry( SectorOverlay overlay
+					     , D64DiskImage currentImage
+					     , DirectoryEntry directoryEntry
+					     , List<Sector> usedSectors) {
 
 	// Check, if the filename is C= compliant.
 	if( ! directoryEntry.getFileName().endsWith( ".PRG")) {
 
 	    System.err.println( "Can only store .PRG files for now");
 
-	    return;
+	    return false;
 	}
 
 	// Remove the suffix of the filename.
@@ -111,28 +209,65 @@ public class D64DiskImage extends DiskImageImpl {
 	    filename = filename.substring( 0, 16);
 	}
 
+	Sector directorySector;
+	int entryOffset;
+
+	// Reuse the first deleted or unused entry of the directory, if there is one.
+	D64Directory.EntrySlot freeSlot = currentImage.getDirectory().getFreeSlot();
+	if( freeSlot != null) {
+
+	    directorySector = overlay.getSector( freeSlot.getTrackIndex(), freeSlot.getSectorIndex());
+	    entryOffset = freeSlot.getEntryOffset();
+
+	} else {  // All the entries are used, so append a new directory sector to the chain.
+
+	    Sector lastDirectorySector = overlay.getSector( currentImage.getDirectory().getLastTrackIndex()
+							    , currentImage.getDirectory().getLastSectorIndex());
+	    Sector selectedSector = _allocationStrategy.selectDirectorySector( currentImage, lastDirectorySector);
+
+	    if( selectedSector == null) {
+
+		System.err.println( "No free sector left to extend the directory");
+
+		return false;
+	    }
+
+	    // Link the new sector and mark it as the end of the directory.
+	    directorySector = overlay.getSector( selectedSector.getTrackIndex(), selectedSector.getSectorIndex());
+	    currentImage.allocateSector( selectedSector);
+	    lastDirectorySector.setDataByte( 0, (byte)directorySector.getTrackIndex());
+	    lastDirectorySector.setDataByte( 1, (byte)directorySector.getSectorIndex());
+	    directorySector.setDataBytes( 0, new byte[ 256], 0, 256);
+	    directorySector.setDataByte( 1, (byte)0xff);
+
+	    entryOffset = 0;
+	}
+
+	// Clear the old data of a deleted entry, but keep the link to the next directory sector.
+	directorySector.setDataBytes( entryOffset + 2, new byte[ 30], 0, 30);
+
 	// Now set the data of the entry.
 	directorySector.setDataByte( entryOffset + 2, (byte)0x82);  // Set type to .prg
 	
-	// Copy the name into the directory.
-	int currentCharIndex = 5;
-	for( char currentChar : filename.toCharArray()) {
-
-	    directorySector.setDataByte( currentCharIndex++, CharsetUtils.getInstance().ascii2petscii( currentChar));
+	// Convert the name to petscii and pad it with 0xa0, if it is too short.
+	byte [] filenameBytes = new byte[ 16];
+	int currentCharIndex = CharsetUtils.getInstance().encode( filename, filenameBytes, 0);
+	while( currentCharIndex < 16) {
+	    filenameBytes[ currentCharIndex++] = (byte)0xa0;
 	}
 
-	// Pad the file with 0xa0, if it is too short.
-	while( currentCharIndex < 20) {
-	    directorySector.setDataByte( currentCharIndex++, (byte)0xa0);
-	}
+	// Copy the name into the directory.
+	directorySector.setDataBytes( entryOffset + 5, filenameBytes, 0, 16);
 	 
 	// Set the position of the first sector.
-	directorySector.setDataByte( 3, (byte)( usedSectors.get( 0).getTrackIndex()));
-	directorySector.setDataByte( 4, (byte)( usedSectors.get( 0).getSectorIndex()));
+	directorySector.setDataByte( entryOffset + 3, (byte)( usedSectors.get( 0).getTrackIndex()));
+	directorySector.setDataByte( entryOffset + 4, (byte)( usedSectors.get( 0).getSectorIndex()));
 
 	// Set the length of the file.
-	directorySector.setDataByte( 0x1e, (byte)( usedSectors.size() % 256));
-	directorySector.setDataByte( 0x1f, (byte)( usedSectors.size() / 256));
+	directorySector.setDataByte( entryOffset + 0x1e, (byte)( usedSectors.size() % 256));
+	directorySector.setDataByte( entryOffset + 0x1f, (byte)( usedSectors.size() / 256));
+
+	return true;
     }
 
     /**
@@ -140,104 +275,136 @@ public class D64DiskImage extends DiskImageImpl {
      *
      * @return The current root directory.
      */
-    public Directory getDirectory() {
+    public D64Directory getDirectory() {
+
+	SectorIndex currentSectors = getSectorIndex();
+	DirectorySnapshot snapshot = _directorySnapshot;
 
-	if( _directory == null) {  // If the current directory was not already parsed,
+	// If the current directory was not already parsed from the current sectors,
+	if( ( snapshot == null) || ( snapshot._sectorIndex != currentSectors)) {
  
- 	    _directory = parseDirectory();   // parse it.
+	    snapshot = new DirectorySnapshot( parseDirectory( currentSectors), currentSectors);   // parse it.
+	    _directorySnapshot = snapshot;
 	}
 
-	return _directory;  // Return the current root directory.
+	return snapshot._directory;  // Return the current root directory.
     }
 
     /**
-     * Get the free disk space as bytes.
+     * Mark a sector as used in the BAM. This modifies the image directly, so it must not
+     * be used on images, that are shared between threads.
      *
-     * @return The free disk space as bytes.
+     * @param sector The sector to allocate.
      */
-    public long getFreeDiskSpace() {
+    public void allocateSector( Sector sector) {
 
-	// Get the data of the BAM.
-	byte [] bamData = getSector( 18, 0).getDataBytes();
+	getBlockAvailabilityMap().allocate( getSectorIndex().getPosition( sector.getTrackIndex(), sector.getSectorIndex()));
+    }
 
-	long result = 0L;  // Buffer for the result.
+    /**
+     * Get the policy to select the sectors for new files.
+     *
+     * @return The current allocation strategy.
+     */
+    public D64AllocationStrategy getAllocationStrategy() {
 
-	// Just count the set bits from 0x04 to 0x8f.
-	for( int currentByteIndex = 0x04; currentByteIndex <= 0x8f; ++currentByteIndex) {
-	    
-	    // Get the current byte from the BAM.
-	    byte currentBamByte = bamData[ currentByteIndex];
+	return _allocationStrategy;
+    }
 
-	    // Count the set bits in the current byte.
-	    for( int currentBit = 1; currentBit <= 0x80; currentBit <<= 1) {
+    /**
+     * Get the bitmap of free blocks. The BAM is parsed on the first call and after the
+     * sectors of the image were replaced.
+     *
+     * @return The bitmap of free blocks.
+     */
+    D64BlockAvailabilityMap getBlockAvailabilityMap() {
 
-		if( ( currentBamByte & currentBit) != 0) {  // Is this block available?
+	SectorIndex currentSectors = getSectorIndex();
+	D64BlockAvailabilityMap blockAvailabilityMap = _blockAvailabilityMap;
 
-		    // Yes => add this free sector to the result;
-		    result += getUnitSize();
-		}
-	    }
+	// If the BAM was not parsed from the current sectors yet,
+	if( ( blockAvailabilityMap == null) || ( blockAvailabilityMap.getSectorIndex() != currentSectors)) {
+
+	    blockAvailabilityMap = new D64BlockAvailabilityMap( currentSectors, _geometry);  // parse it.
+	    _blockAvailabilityMap = blockAvailabilityMap;
 	}
 
-	return result; // Return the result.
+	return blockAvailabilityMap;
     }
 
     /**
-     * Get a given number of free sector (to store a new file).
-     *
-     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     * Mark a sector as free in the BAM. This modifies the image directly, so it must not
+     * be used on images, that are shared between threads.
      *
-     * @return A list of free sectors or null, if there are not enough free sectors available.
+     * @param sector The sector to free.
      */
-    public List<Sector> getFreeSectors( int num) {
-
-	// Get the data of the BAM.
-	byte [] bamData = getSector( 18, 0).getDataBytes();
+    public void freeSector( Sector sector) {
 
-	List<Sector> result = new ArrayList<Sector>();  // Buffer for the result.
-
-	// If the user requested 0 sectors, just return the empty list.
-	if( num == 0) {
+	getBlockAvailabilityMap().free( getSectorIndex().getPosition( sector.getTrackIndex(), sector.getSectorIndex()));
+    }
 
-	    return result;
+    /**
+     * Check, if this image has error info, so the sectors can report read errors.
+     *
+     * @return true, if the image file has error info appended.
+     */
+    public boolean hasErrorInfo() {
 
-	}
+	return _errorInfo != null;
+    }
 
-	// Just count the set bits from 0x04 to 0x8f.
-	int currentBlockIndex = 0;
-	for( int currentByteIndex = 0x04; currentByteIndex <= 0x8f; ++currentByteIndex) {
-	    
-	    // Get the current byte from the BAM.
-	    byte currentBamByte = bamData[ currentByteIndex];
+    /**
+     * Check, if a sector is marked as free in the BAM.
+     *
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the track.
+     *
+     * @return true, if the sector exists and is free. False otherwise.
+     */
+    public boolean isFreeSector( int trackIndex, int sectorIndex) {
 
-	    // Count the set bits in the current byte.
-	    for( int currentBit = 1; currentBit <= 0x80; currentBit <<= 1) {
+	int blockIndex = getSectorIndex().getPosition( trackIndex, sectorIndex);
 
-		if( ( currentBamByte & currentBit) != 0) {  // Is this block available?
+	return ( blockIndex != -1) && getBlockAvailabilityMap().isFree( blockIndex);
+    }
 
-		    // Yes => add this free sector to the result;
-		    Sector nextFreeSector = getSectorForBlockIndex( currentBlockIndex++);
+    /**
+     * Get the geometry of this image.
+     *
+     * @return The layout of the tracks, the directory and the BAM of this image.
+     */
+    public DiskGeometry getGeometry() {
 
-		    // If this sector exists, add it to the result.
-		    if( nextFreeSector != null) {
+	return _geometry;
+    }
 
-			result.add( nextFreeSector);
-		    }
+    /**
+     * Get the free disk space as bytes.
+     *
+     * @return The free disk space as bytes.
+     */
+    public long getFreeDiskSpace() {
 
-		    // If the number of free sectors is sufficient, return the result.
-		    if( result.size() == num) {
+	// The directory track is not counted, like the 'blocks free' of the 1541.
+	return (long)getBlockAvailabilityMap().getFreeBlockCount() * getUnitSize();
+    }
 
-			return result;
-		    }
-		}
-	    }
-	}	
+    /**
+     * Get a given number of free sector (to store a new file).
+     *
+     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     *
+     * @return A list of free sectors or null, if there are not enough free sectors available.
+     */
+    public List<Sector> getFreeSectors( int num) {
 
-	return null;  // Not enough free sectors found.
+	// Let the allocation strategy select the sectors.
+	return _allocationStrategy.selectFreeSectors( this, num);
     }
 
     /**
-     * Get an input stream to read a file from the image.
+     * Get an input stream to read a file from the image. The stream follows the sector
+     * chain of the file, so the file is not loaded into memory at once.
      *
      * @param directoryEntry The directory entry of the file.
      *
@@ -250,45 +417,23 @@ public class D64DiskImage extends DiskImageImpl {
 	    return null;
 	}
 
-	// A pointer to the current sector.
-	D64Sector sectorBuffer;
+	try {
 
-	// Create a byte buffer for the file content.
-	byte [] fileContent = new byte[ directoryEntry.getFileSizeAsBytes()];
+	    return new D64FileInputStream( this
+					   , ((D64DirectoryEntry)directoryEntry).getStartTrack()
+					   , ((D64DirectoryEntry)directoryEntry).getStartSector());
 
-	// Get the first sector of the file and add it to the result.
-	System.arraycopy( ( sectorBuffer = (D64Sector)getSector( ((D64DirectoryEntry)directoryEntry).getStartTrack()
-						      , ((D64DirectoryEntry)directoryEntry).getStartSector())).getDataBytes()
-			  , 2
-			  , fileContent
-			  , 0
-			  , getUnitSize());
+	} catch( IOException ioe) {
 
-	// Loop over the sectors of the file and add them to the buffer.
-	int currentFileContentIndex = getUnitSize();
-	for( int currentSectorIndex = 1; currentSectorIndex < directoryEntry.getFileSizeAsUnits(); ++currentSectorIndex) {
-	    
-	    // Get the next track and sector from the current sector.
-	    int nextTrack = sectorBuffer.getNextTrack();
-	    int nextSector = sectorBuffer.getNextSector();
-
-	    // Add the next sector to the result.
-	    System.arraycopy( ( sectorBuffer = (D64Sector)getSector( nextTrack, nextSector)).getDataBytes()
-			      , 2
-			      , fileContent
-			      , currentFileContentIndex
-			      , getUnitSize());
-
-	    // Point to the next block in the result buffer.
-	    currentFileContentIndex += getUnitSize();
-	}
+	    System.err.println( "Cannot read file " + directoryEntry.getFileName() + " : " + ioe);
 
-	// Now create an input stream from the file content.
-	return new ByteArrayInputStream( fileContent);
+	    return null;
+	}
     }
 
     /**
-     * Write a new file to the disk image.
+     * Write a new file to the disk image. The file is written to an overlay, that is committed,
+     * when the stream is closed. So other threads see the complete file or nothing.
      *
      * @param directoryEntry The directory entry for the new file. Pass filename and filesize via this entry.
      *
@@ -296,17 +441,55 @@ public class D64DiskImage extends DiskImageImpl {
      */
     public OutputStream getOutputStream( DirectoryEntry directoryEntry) {
 
+	// Work on private copies of the sectors, so readers don't see a half written file.
+	SectorOverlay overlay = createOverlay();
+
+	OutputStream result = createOutputStream( directoryEntry, overlay, true);
+
+	if( result == null) {  // The file cannot be written, so drop the changes.
+
+	    overlay.rollback();
+	}
+
+	return result;
+    }
+
+    /**
+     * Write a new file to an overlay of the disk image. Closing the stream does not commit
+     * the overlay, so several files can be written and then committed or rolled back at once.
+     *
+     * @param directoryEntry The directory entry for the new file. Pass filename and filesize via this entry.
+     * @param overlay The overlay to write to.
+     *
+     * @return An output stream to write to the overlay or null, if the file cannot be written.
+     *         The overlay might contain partial changes then and should be rolled back.
+     */
+    public OutputStream getOutputStream( DirectoryEntry directoryEntry, SectorOverlay overlay) {
+
+	return createOutputStream( directoryEntry, overlay, false);
+    }
+
+    /**
+     * Create the sectors and the directory entry of a new file in an overlay.
+     *
+     * @param directoryEntry The directory entry for the new file.
+     * @param overlay The overlay to write to.
+     * @param commitOnClose true, if the overlay should be committed, when the stream is closed.
+     *
+     * @return An output stream to write to the overlay or null, if the file cannot be written.
+     */
+    private OutputStream createOutputStream( DirectoryEntry directoryEntry, SectorOverlay overlay, boolean commitOnClose) {
+
 	// Check, if this directory entry is a directory itself.
 	if( directoryEntry.isDirectory()) {
 
 	    return null;  // Cannot create subdirectories yet.
 	}
 
-	// Start with a check, if there are still free directory entries to store a new file.
-	if( getDirectory().getDirectoryEntries().size() >= 144) {
-
-	    return null;  // No free directory entries, it seems.
-	}
+	// Look at the image with the changes of the overlay, so the files of an overlay don't collide.
+	D64DiskImage currentImage = new D64DiskImage( getFileName(), overlay.getCurrentIndex().getSectors(), _geometry, _errorInfo);
+	currentImage.setAllocationStrategy( _allocationStrategy);
+	SectorIndex currentSectors = currentImage.getSectorIndex();
 
 	// Now try get free filespace for the new file.
 	int neededSectors = directoryEntry.getFileSizeAsBytes() / getUnitSize();
@@ -316,19 +499,39 @@ public class D64DiskImage extends DiskImageImpl {
 	}
 
 	// Now try to allocate enough free sectors for the file.
-	List<Sector> availableSectors = getFreeSectors( neededSectors);
+	List<Sector> availableSectors = currentImage.getFreeSectors( neededSectors);
 
 	if( availableSectors == null) {  // Sectors cannot be allocated?
 
 	    return null;  // => Cannot write file.
 	}
 
+	// Mark the sectors as used in the BAM of the overlay and fetch their copies from the overlay.
+	D64BlockAvailabilityMap blockAvailabilityMap = currentImage.getBlockAvailabilityMap();
+	List<Sector> fileSectors = new ArrayList<Sector>( availableSectors.size());
+	for( Sector currentSector : availableSectors) {
+
+	    blockAvailabilityMap.allocate( currentSectors.getPosition( currentSector.getTrackIndex(), currentSector.getSectorIndex()));
+	    fileSectors.add( overlay.getSector( currentSector.getTrackIndex(), currentSector.getSectorIndex()));
+	}
+
 	// Create directory entry for the file and the sectors to allocate.
-	createD64DirectoryEntry( directoryEntry, availableSectors);
+	if( ! createD64DirectoryEntry( overlay, currentImage, directoryEntry, fileSectors)) {
+
+	    return null;
+	}
+
+	// Update the BAM sectors.
+	Sector [] bamSectors = new Sector[ _geometry.getBamSectorCount()];
+	for( int currentBamSector = 0; currentBamSector < bamSectors.length; ++currentBamSector) {
+
+	    bamSectors[ currentBamSector] = overlay.getSector( _geometry.getBamSectorTrack( currentBamSector), _geometry.getBamSectorIndex( currentBamSector));
+	}
+	blockAvailabilityMap.writeBack( bamSectors);
 
 	// Link all the sectors of this file.
 	Sector lastSector = null;
-	for( Sector currentSector : availableSectors) {
+	for( Sector currentSector : fileSectors) {
 	    
 	    if( lastSector != null) {  // If this is not the first sector.
 
@@ -344,14 +547,23 @@ public class D64DiskImage extends DiskImageImpl {
 	lastSector.setDataByte( 0, (byte)0);
 	lastSector.setDataByte( 1, (byte)0);
 	
-	// Set the image to modified.
-	setModified( true);
-	
 	// Return OutputStream for file to write.
-	return new D64FileOutputStream( availableSectors, directoryEntry, this);
+	return new D64FileOutputStream( fileSectors, directoryEntry, this, overlay, commitOnClose);
     }
 
 
+    /**
+     * Get the number of sectors on a given track.
+     *
+     * @param trackIndex The index of the track.
+     *
+     * @return The number of sectors on this track, or 0, if the track does not exist.
+     */
+    public int getSectorsOnTrack( int trackIndex) {
+
+	return getSectorIndex().getSectorsOnTrack( trackIndex);
+    }
+
     /**
      * Get the size of the image as bytes.
      *
@@ -387,20 +599,54 @@ public class D64DiskImage extends DiskImageImpl {
      *
      * @return A directory object.
      */
-    public Directory parseDirectory() {
+    public D64Directory parseDirectory() {
+
+	return parseDirectory( getSectorIndex());
+    }
+
+    /**
+     * Parse the directory from a given set of sectors of this image.
+     *
+     * @param sectors The sectors to parse.
+     *
+     * @return A directory object.
+     */
+    private D64Directory parseDirectory( SectorIndex sectors) {
 
 	// Create a buffer for the result.
-	Directory result = new DirectoryImpl( this);
+	D64Directory result = new D64Directory( this);
+
+	// A buffer for the petscii bytes of a filename.
+	byte [] filenameBytes = new byte[ 16];
 
 	// The track and sector pos of the currency directory sector.
-	int trackIndex = 18;
-	int sectorIndex = 1;
+	int trackIndex = _geometry.getDirectoryTrack();
+	int sectorIndex = _geometry.getDirectorySector();
+
+	// The positions of the visited directory sectors, so a looping chain is detected.
+	BitSet visitedSectors = new BitSet( sectors.size());
 
-	// The directory starts at track 18, sector 1 and normally continues to sector 18.
+	// The directory starts at the first directory sector of the geometry (18/1 on a 1541 disk).
 	while( ( trackIndex != 0) && (sectorIndex != 0)) {
 
-	    // Get the data of the current sector.
-	    byte [] sectorData = getSector( trackIndex, sectorIndex).getDataBytes();
+	    // Get the current sector.
+	    Sector directorySector = sectors.getSector( trackIndex, sectorIndex);
+
+	    // Stop at a broken or looping chain, but keep the entries parsed so far.
+	    if( directorySector == null) {
+
+		result.setChainError( "Broken directory chain: track " + trackIndex + " sector " + sectorIndex + " does not exist.");
+		break;
+	    }
+	    int position = sectors.getPosition( trackIndex, sectorIndex);
+	    if( visitedSectors.get( position)) {
+
+		result.setChainError( "Looping directory chain at track " + trackIndex + " sector " + sectorIndex + ".");
+		break;
+	    }
+	    visitedSectors.set( position);
+
+	    result.setLastSector( trackIndex, sectorIndex);
 
 	    // Parse the directory entries in this sector.
 	    for( int currentEntry = 0; currentEntry < 8; ++currentEntry) {
@@ -409,62 +655,212 @@ public class D64DiskImage extends DiskImageImpl {
 		int entryOffset = 32 * currentEntry;
 
 		// Check, if this entry is a deleted file.
-		if( sectorData[ entryOffset + 2] == 0) {  
-
-		    continue;  // This entry is deleted.
-		}
+		if( directorySector.getDataByte( entryOffset + 2) == 0) {  
 
-		// Get the name of the filename.
-		StringBuffer filenameBuffer = new StringBuffer();
+		    // This entry is deleted, so a new file can use it.
+		    result.addFreeSlot( trackIndex, sectorIndex, entryOffset);
 
-		for( int filenameIndex = 5; filenameIndex <= 14; ++filenameIndex) {
-
-		    // Get the current byte of the filename.
-		    byte currentFilenameChar = sectorData[ entryOffset + filenameIndex];
+		    continue;
+		}
 
-		    if( currentFilenameChar == 0xa0) {  // This is a padding byte. Filename is complete.
-			
-			break;
+		// Get the name of the filename (16 bytes at 0x05, padded with 0xa0).
+		directorySector.copyTo( entryOffset + 5, filenameBytes, 0, 16);
 
-		    } else {  // Convert this petscii char and add it to the filename.
-			
-			filenameBuffer.append( CharsetUtils.getInstance().petscii2ascii( currentFilenameChar));
-		    }
+		int filenameLength = 0;
+		while( ( filenameLength < 16) && ( filenameBytes[ filenameLength] != (byte)0xa0)) {
+		    ++filenameLength;
 		}
 
+		// Convert the petscii bytes of the filename at once.
+		String filename = CharsetUtils.getInstance().decode( filenameBytes, 0, filenameLength);
+
 		// Get the type of the file.
-		byte currentFileType = (byte)( sectorData[ entryOffset + 2] & (byte)7);
+		byte currentFileType = (byte)( directorySector.getDataByte( entryOffset + 2) & (byte)7);
 		String currentFileTypeName = "";
 
 		switch( currentFileType) {
 		case 1: currentFileTypeName = "SEQ"; break;
 		case 2: currentFileTypeName = "PRG"; break;
-                case 3: currentFileTypeName = "USR"; break;
+		case 3: currentFileTypeName = "USR"; break;
 		case 4: currentFileTypeName = "REL"; break;
 		}
 
 		// Try to approximate the filesize. The c64 only stores blocks of 254 bytes and not 
 		// the actual filesize in bytes.
-		int filesize = sectorData[ entryOffset + 0x1e] + ( 256 * sectorData[ entryOffset + 0x1f]);
+		int filesize = ( directorySector.getDataByte( entryOffset + 0x1e) & 0xff) + ( 256 * ( directorySector.getDataByte( entryOffset + 0x1f) & 0xff));
 		
 		// Create a directory entry and add it to the result.
-		result.addDirectoryEntry( new D64DirectoryEntry( filenameBuffer.toString()
+		result.addDirectoryEntry( new D64DirectoryEntry( filename
 								 , filesize
 								 , currentFileTypeName
-								 , sectorData[ entryOffset + 3]  // Track index of the first sector.
-								 , sectorData[ entryOffset + 4]  // Sector index of the first sector.
+								 , directorySector.getDataByte( entryOffset + 3)  // Track index of the first sector.
+								 , directorySector.getDataByte( entryOffset + 4)  // Sector index of the first sector.
 								 , result));
 	    }
 
 	    // Get the track and sector of the next directory sector from the current sector;
-	    trackIndex = sectorData[ 0];
-	    sectorIndex = sectorData[ 1];
+	    trackIndex = directorySector.getDataByte( 0);
+	    sectorIndex = directorySector.getDataByte( 1);
 	}
 
 	// Return the parsed directory.
 	return result;
     }
 
+    /**
+     * Write the sectors, that were modified since the last save, back to the image file.
+     * Adjacent modified sectors are written as 1 run with a single positioned write.
+     * The runs are written through a journal, so an interrupted save is completed,
+     * when the image is parsed the next time.
+     *
+     * @throws IOException if the image file cannot be written.
+     */
+    public void save() throws IOException {
+
+	SectorIndex sectors = getSectorIndex();
+	List<Sector> savedSectors = new ArrayList<Sector>();
+
+	SectorJournal journal = new SectorJournal( Paths.get( getFileName()));
+	int currentPos = 0;
+	while( currentPos < sectors.size()) {
+
+	    if( ! sectors.getSectorAt( currentPos).isModified()) {
+
+		++currentPos;
+		continue;
+	    }
+
+	    // Find the end of the run of modified sectors.
+	    int runEnd = currentPos + 1;
+	    while( ( runEnd < sectors.size()) && sectors.getSectorAt( runEnd).isModified()) {
+
+		++runEnd;
+	    }
+
+	    // The sectors are stored in block order, so the file offset is just the block index * 256.
+	    int sectorSize = sectors.getSectorAt( currentPos).getSize();
+	    byte [] runData = new byte[ ( runEnd - currentPos) * sectorSize];
+	    for( int runPos = currentPos; runPos < runEnd; ++runPos) {
+
+		Sector currentSector = sectors.getSectorAt( runPos);
+
+		// Clear the flag before the data are copied, so a concurrent change is saved the next time.
+		currentSector.setModified( false);
+		currentSector.copyTo( runData, ( runPos - currentPos) * sectorSize);
+		savedSectors.add( currentSector);
+	    }
+	    journal.add( (long)currentPos * sectorSize, runData);
+
+	    currentPos = runEnd;
+	}
+
+	try {
+
+	    journal.commit();
+
+	} catch( IOException ioe) {
+
+	    // The sectors were not saved, so flag them again.
+	    for( Sector savedSector : savedSectors) {
+
+		savedSector.setModified( true);
+	    }
+	    throw ioe;
+	}
+
+	setModified( false);
+    }
+
+    /**
+     * Write the complete image to a file. The image is written to a temporary file first,
+     * that replaces the target file at once, so the target is never left half written.
+     *
+     * @param filename The name of the target file.
+     *
+     * @throws IOException if the target file cannot be written.
+     */
+    public void saveAs( String filename) throws IOException {
+
+	SectorIndex sectors = getSectorIndex();
+	Path targetFile = Paths.get( filename).toAbsolutePath();
+
+	// If the image file itself is replaced, all the sectors are saved afterwards.
+	boolean replacesImage = targetFile.equals( Paths.get( getFileName()).toAbsolutePath());
+	List<Sector> savedSectors = new ArrayList<Sector>();
+
+	// Copy all the sectors into 1 buffer.
+	int sectorSize = sectors.getSectorAt( 0).getSize();
+	int errorInfoSize = hasErrorInfo() ? sectors.size() : 0;
+	byte [] imageData = new byte[ sectors.size() * sectorSize + errorInfoSize];
+	for( int currentPos = 0; currentPos < sectors.size(); ++currentPos) {
+
+	    Sector currentSector = sectors.getSectorAt( currentPos);
+
+	    // Clear the flag before the data are copied, so a concurrent change is saved the next time.
+	    if( replacesImage && currentSector.isModified()) {
+
+		currentSector.setModified( false);
+		savedSectors.add( currentSector);
+	    }
+	    currentSector.copyTo( imageData, currentPos * sectorSize);
+
+	    // Keep the error info behind the sectors. The codes are taken from the sectors, since
+	    // copied or decoded sectors (i.e. from a G64 file) are not in the error info of the file.
+	    if( errorInfoSize > 0) {
+
+		imageData[ sectors.size() * sectorSize + currentPos] = (byte)currentSector.getErrorCode();
+	    }
+	}
+
+	// Write the temporary file in the target directory, so it can be renamed atomically.
+	Path tempFile = Files.createTempFile( targetFile.getParent(), targetFile.getFileName().toString(), ".tmp");
+	try {
+
+	    try( FileChannel tempChannel = FileChannel.open( tempFile, StandardOpenOption.WRITE)) {
+
+		ByteBuffer buffer = ByteBuffer.wrap( imageData);
+		while( buffer.hasRemaining()) {
+
+		    tempChannel.write( buffer);
+		}
+		tempChannel.force( true);
+	    }
+
+	    // A journal of the old file must not be replayed on the new file.
+	    SectorJournal.discard( targetFile);
+
+	    Files.move( tempFile, targetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+	} catch( IOException ioe) {
+
+	    // The sectors were not saved, so flag them again.
+	    for( Sector savedSector : savedSectors) {
+
+		savedSector.setModified( true);
+	    }
+	    throw ioe;
+
+	} finally {
+
+	    Files.deleteIfExists( tempFile);
+	}
+
+	if( replacesImage) {
+
+	    setModified( false);
+	}
+    }
+
+    /**
+     * Set the policy to select the sectors for new files.
+     *
+     * @param allocationStrategy The new allocation strategy.
+     */
+    public void setAllocationStrategy( D64AllocationStrategy allocationStrategy) {
+
+	_allocationStrategy = allocationStrategy;
+    }
+
     /**
      * Translate a block index to a sector.
      *
@@ -472,35 +868,34 @@ public class D64DiskImage extends DiskImageImpl {
      *
      * @return The sector with the track/sector combination for this block index, if it exists. null otherwise.
      */
-    private Sector getSectorForBlockIndex( int blockIndex) {
-
-	// The block index of the first sector of each track.
-	int [] trackStart = {    0,  21,  42,  63,  84, 105, 126, 147
-			     , 168, 189, 210, 231, 252, 273, 294, 315
-			     , 336, 357, 376, 395, 414, 433, 452, 471
-			     , 490, 508, 526, 544, 562, 580, 598, 615
-			     , 632, 649, 666, 683, 700, 717, 734, 751
-			     , 768 };
-	int currentTrackIndex = 0;
-	for( int currentTrackStart : trackStart) {
-	    
-	    if( blockIndex < currentTrackStart) {
-		break;
-	    }
+    Sector getSectorForBlockIndex( int blockIndex) {
 
-	    ++currentTrackIndex;  // Check the next track
+	// The sectors are indexed in block order, so just look the block up.
+	return getSectorIndex().getSectorAt( blockIndex);
+    }
+
+    /**
+     * Write pending changes of the block availability map back to the BAM sector. This
+     * modifies the image directly, so it must not be used on images, that are shared between threads.
+     */
+    public void writeBam() {
+
+	D64BlockAvailabilityMap blockAvailabilityMap = _blockAvailabilityMap;
+
+	if( blockAvailabilityMap == null) {
+	    return;
 	}
 
-	// Check, if the track is within a reasonable range.
-	if( ( currentTrackIndex < 1) || ( currentTrackIndex > 40)) {
-	    
-	    return null;  // Ignore tracks > 40 for now.
+	// Collect the BAM sectors in the order of the geometry.
+	Sector [] bamSectors = new Sector[ _geometry.getBamSectorCount()];
+	for( int currentBamSector = 0; currentBamSector < bamSectors.length; ++currentBamSector) {
+
+	    bamSectors[ currentBamSector] = blockAvailabilityMap.getSectorIndex().getSector( _geometry.getBamSectorTrack( currentBamSector), _geometry.getBamSectorIndex( currentBamSector));
 	}
 
-	// Calculate the sector offset.
-	int sectorIndex = blockIndex - trackStart[ currentTrackIndex - 1];
-	
-	// Try to find the sector with the given track and sector index in this image.
-	return getSector( currentTrackIndex, sectorIndex);
+	if( blockAvailabilityMap.writeBack( bamSectors)) {
+
+	    setModified( true);
+	}
     }
 }
@@ -0,0 +1,248 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.SectorIndex;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Class to read a file from a d64 disk image. The stream follows the track/sector
+ * links of the file one sector at a time, so the file is never buffered as a whole.
+ * Sectors with a read error in the error info of the image are counted while the chain is
+ * followed, so bad files can be flagged without a second pass.
+ */
+public class D64FileInputStream extends InputStream {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The number of sectors of the file so far, that have a read error in the error info.
+     */
+    private int _badSectorCount = 0;
+
+    /**
+     * The sector, that is currently read.
+     */
+    private D64Sector _currentSector;
+
+    /**
+     * The end position (exclusive) of the file data in the current sector.
+     */
+    private int _currentSectorEnd;
+
+    /**
+     * The read position in the current sector.
+     */
+    private int _currentSectorPos;
+
+    /**
+     * The number of sectors, that can still be visited. Used to stop on looping chains.
+     */
+    private int _remainingHops;
+
+    /**
+     * The sectors of the disk image, when the stream was opened. So the file is read
+     * consistently, even if the image is modified in the meantime.
+     */
+    private SectorIndex _sourceSectors;
+
+
+    // Constructors
+
+    /**
+     * Create a new input stream to read a file from a d64 image.
+     *
+     * @param sourceImage The disk image to read from.
+     * @param startTrack The track index of the first sector of the file.
+     * @param startSector The sector index of the first sector of the file.
+     *
+     * @throws IOException if the first sector does not exist.
+     */
+    public D64FileInputStream( D64DiskImage sourceImage, int startTrack, int startSector) throws IOException {
+
+	// Keep the current sectors of the image.
+	_sourceSectors = sourceImage.getSectorIndex();
+
+	// A chain cannot have more sectors than the image.
+	_remainingHops = _sourceSectors.size();
+
+	// Start with the first sector of the file.
+	enterSector( startTrack, startSector);
+    }
+
+
+    // Methods
+
+    /**
+     * Get the number of bytes, that can be read without moving to the next sector.
+     *
+     * @return The number of bytes left in the current sector.
+     */
+    public int available() {
+
+	return _currentSector == null ? 0 : _currentSectorEnd - _currentSectorPos;
+    }
+
+    /**
+     * Get the number of sectors with read errors, that the stream has entered so far.
+     * When the stream is read to the end, this is the number of bad sectors of the file.
+     *
+     * @return The number of bad sectors of the file so far.
+     */
+    public int getBadSectorCount() {
+
+	return _badSectorCount;
+    }
+
+    /**
+     * Closes this input stream.
+     */
+    public void close() {
+
+	_currentSector = null;
+    }
+
+    /**
+     * Make a given sector the current sector and compute the range of the file data in it.
+     *
+     * @param trackIndex The track index of the sector.
+     * @param sectorIndex The sector index of the sector.
+     *
+     * @throws IOException if the sector does not exist or the chain is looping.
+     */
+    private void enterSector( int trackIndex, int sectorIndex) throws IOException {
+
+	if( --_remainingHops < 0) {
+
+	    throw new IOException( "Sector chain of file is longer than the image. Looping chain?");
+	}
+
+	_currentSector = (D64Sector)_sourceSectors.getSector( trackIndex, sectorIndex);
+
+	if( _currentSector == null) {
+
+	    throw new IOException( "Broken sector chain: track " + trackIndex + " sector " + sectorIndex + " does not exist.");
+	}
+
+	// Just flag bad sectors. Their data are still read, like the data of a copy protected original.
+	if( _currentSector.hasReadError()) {
+
+	    ++_badSectorCount;
+	}
+
+	// The file data start after the link to the next sector.
+	_currentSectorPos = 2;
+
+	// In the last sector of a file, the sector link holds the index of the last used byte.
+	_currentSectorEnd = _currentSector.getNextTrack() == 0 ? Math.max( 2, _currentSector.getNextSector() + 1) : 256;
+    }
+
+    /**
+     * Move to the next sector of the file, if the current sector is completely read.
+     *
+     * @return true, if there are more bytes to read. False at the end of the file.
+     *
+     * @throws IOException if the sector chain is broken.
+     */
+    private boolean fill() throws IOException {
+
+	while( ( _currentSector != null) && ( _currentSectorPos >= _currentSectorEnd)) {
+
+	    if( _currentSector.getNextTrack() == 0) {  // This was the last sector.
+
+		_currentSector = null;
+
+	    } else {
+
+		enterSector( _currentSector.getNextTrack(), _currentSector.getNextSector());
+	    }
+	}
+
+	return _currentSector != null;
+    }
+
+    /**
+     * Read the next byte of the file.
+     *
+     * @return The next byte or -1 at the end of the file.
+     *
+     * @throws IOException if the sector chain is broken.
+     */
+    public int read() throws IOException {
+
+	if( ! fill()) {
+
+	    return -1;
+	}
+
+	return _currentSector.getDataByte( _currentSectorPos++) & 0xff;
+    }
+
+    /**
+     * Read up to len bytes into an array. The bytes are copied directly from the sector buffers.
+     *
+     * @param b The array to read to.
+     * @param off The offset in the array.
+     * @param len The maximum number of bytes to read.
+     *
+     * @return The number of read bytes or -1 at the end of the file.
+     *
+     * @throws IOException if the sector chain is broken.
+     */
+    public int read( byte [] b, int off, int len) throws IOException {
+
+	if( ( off < 0) || ( len < 0) || ( len > b.length - off)) {
+
+	    throw new IndexOutOfBoundsException();
+	}
+
+	if( len == 0) {
+
+	    return 0;
+	}
+
+	int bytesRead = 0;
+	while( ( bytesRead < len) && fill()) {
+
+	    // Copy as much as possible from the current sector.
+	    int chunkLength = Math.min( len - bytesRead, _currentSectorEnd - _currentSectorPos);
+	    _currentSector.copyTo( _currentSectorPos, b, off + bytesRead, chunkLength);
+
+	    _currentSectorPos += chunkLength;
+	    bytesRead += chunkLength;
+	}
+
+	return bytesRead == 0 ? -1 : bytesRead;
+    }
+}
@@ -27,13 +27,16 @@ package de.andreas_rueckert.d64browse.drive.format.d64;
 
 import de.andreas_rueckert.d64browse.drive.format.DirectoryEntry;
 import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.drive.format.SectorOverlay;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 
 
 /**
- * Class to write to a d64 disk image.
+ * Class to write to a d64 disk image. The data are written to the sectors of an overlay,
+ * that is optionally committed, when the stream is closed.
  */
 class D64FileOutputStream extends OutputStream {
     
@@ -42,6 +45,11 @@ class D64FileOutputStream extends OutputStream {
 
     // Static variables
 
+    /**
+     * Zero bytes to pad the last sector of a file.
+     */
+    private final static byte [] ZERO_PADDING = new byte[ 256];
+
 
     // Instance variables
 
@@ -50,11 +58,26 @@ class D64FileOutputStream extends OutputStream {
      */
     private int _bytesWritten = 0;
 
+    /**
+     * Flag to indicate, that the stream was closed.
+     */
+    private boolean _closed = false;
+
+    /**
+     * Flag to indicate, that the overlay is committed, when the stream is closed.
+     */
+    private boolean _commitOnClose;
+
     /**
      * The directory entry of the new file.
      */
     DirectoryEntry _directoryEntry;
 
+    /**
+     * The overlay with the modified sectors.
+     */
+    private SectorOverlay _overlay;
+
     /**
      * The disk image to write to.
      */
@@ -74,34 +97,68 @@ class D64FileOutputStream extends OutputStream {
      * @param usedSectors The list of sectors to use.
      * @param directoryEntry The directory entry of the file.
      * @param targetImage The disk image to write to.
+     * @param overlay The overlay with the sectors to use.
+     * @param commitOnClose true, if the overlay should be committed, when the stream is closed.
      */
     public D64FileOutputStream( List<Sector> usedSectors
 				, DirectoryEntry directoryEntry
-				, D64DiskImage targetImage) {
+				, D64DiskImage targetImage
+				, SectorOverlay overlay
+				, boolean commitOnClose) {
 
 	// Store the parameters in the instance.
 	_usedSectors = usedSectors;
 	_directoryEntry = directoryEntry;
 	_targetImage = targetImage;
+	_overlay = overlay;
+	_commitOnClose = commitOnClose;
     }
 
     
     // Methods
 
     /**
-     * Closes this output stream and releases any system resources associated with this stream.
+     * Closes this output stream and publishes the file in the image, if the overlay should be committed.
+     *
+     * @throws IOException if the image was modified by another thread in the meantime.
      */
-    public void close() {
+    public void close() throws IOException {
+
+	// Closing the stream a second time has no effect.
+	if( _closed) {
+
+	    return;
+	}
+	_closed = true;
+
+	int unitSize = _targetImage.getUnitSize();
 
 	// Pad the rest of the last sector with 0.
-	if( ( _bytesWritten % _targetImage.getUnitSize()) != 0) {
+	if( ( _bytesWritten % unitSize) != 0) {
 	    
-	    Sector lastFileSector = _usedSectors.get( _bytesWritten / _targetImage.getUnitSize());
-	    
-	    // Loop over the rest of the sector.
-	    for( int currentSectorOffset = _bytesWritten % _targetImage.getUnitSize(); currentSectorOffset < 256; ++currentSectorOffset) {
+	    Sector lastFileSector = _usedSectors.get( _bytesWritten / unitSize);
+	    int currentSectorOffset = 2 + ( _bytesWritten % unitSize);
+
+	    lastFileSector.setDataBytes( currentSectorOffset, ZERO_PADDING, 0, 256 - currentSectorOffset);
+	}
+
+	// The link of the last sector holds the index of the last used byte in this sector.
+	int usedInLastSector = _bytesWritten - ( _usedSectors.size() - 1) * unitSize;
+	if( ( usedInLastSector > 0) && ( usedInLastSector <= unitSize)) {
+
+	    _usedSectors.get( _usedSectors.size() - 1).setDataByte( 1, (byte)( usedInLastSector + 1));
+	}
+
+	// Now publish the file, the directory and the BAM at once.
+	if( _commitOnClose) {
 
-		lastFileSector.setDataByte( currentSectorOffset, (byte)0);
+	    try {
+
+		_overlay.commit();
+
+	    } catch( ConcurrentModificationException cme) {
+
+		throw new IOException( "Cannot store file " + _directoryEntry.getFileName() + " : " + cme.getMessage());
 	    }
 	}
     }
@@ -132,11 +189,32 @@ class D64FileOutputStream extends OutputStream {
      */
     public void write( byte [] b, int off, int len) throws IOException {
 
-	// Just loop over the array.
-	for( int currentByteCount = 0; currentByteCount < len; ++currentByteCount) {
-	    
-	    // Just use the single byte version of write to write to the file.
-	    write( (int)b[ off++]);
+	if( ( off < 0) || ( len < 0) || ( len > b.length - off)) {
+
+	    throw new IndexOutOfBoundsException();
+	}
+
+	// Check, if the data still fit into the file.
+	if( _bytesWritten + len > _directoryEntry.getFileSizeAsBytes()) {
+
+	    throw new IOException( "File " + _directoryEntry.getFileName() + " would exceed its size of " + _directoryEntry.getFileSizeAsBytes() + " bytes.");
+	}
+
+	int unitSize = _targetImage.getUnitSize();
+
+	// Copy the data in runs, that fill the rest of the current sector.
+	while( len > 0) {
+
+	    int sectorIndex = _bytesWritten / unitSize;
+	    int sectorOffset = _bytesWritten % unitSize;
+	    int chunkLength = Math.min( len, unitSize - sectorOffset);
+
+	    // Leave the first 2 bytes of the sector for the link to the next sector.
+	    _usedSectors.get( sectorIndex).setDataBytes( 2 + sectorOffset, b, off, chunkLength);
+
+	    off += chunkLength;
+	    len -= chunkLength;
+	    _bytesWritten += chunkLength;
 	}
     }
 
@@ -25,11 +25,17 @@
 
 package de.andreas_rueckert.d64browse.drive.format.d64;
 
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
 import de.andreas_rueckert.d64browse.drive.format.ImageParser;
 import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.drive.format.SectorJournal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,7 +61,81 @@ public class D64ImageParser extends ImageParser {
     // Methods
 
     /**
-     * Parse a file with a given filename.
+     * Complete an interrupted save of an image or just report it.
+     *
+     * @param path The path of the image file.
+     * @param recoverJournal true, if a pending journal should be replayed.
+     *
+     * @throws IOException if the journal cannot be replayed.
+     */
+    private static void checkJournal( Path path, boolean recoverJournal) throws IOException {
+
+	if( recoverJournal) {
+
+	    SectorJournal.recover( path);
+
+	} else if( SectorJournal.isPending( path)) {
+
+	    System.err.println( "Image " + path + " has a journal of an interrupted save. Open it with recovery to complete the save.");
+	}
+    }
+
+    /**
+     * Create the sectors of an image with a given geometry on top of the image data.
+     *
+     * @param data The data of the image.
+     * @param geometry The layout of the tracks in the image.
+     * @param errorInfo The error codes of the blocks or null, if the image has no error info.
+     *
+     * @return The list of sectors in block order.
+     */
+    private static List<Sector> createSectors( ByteBuffer data, DiskGeometry geometry, ByteBuffer errorInfo) {
+
+	List<Sector> resultBuffer = new ArrayList<Sector>( geometry.getTotalSectors());
+	for( int currentTrackIndex = geometry.getMinTrackIndex(); currentTrackIndex <= geometry.getMaxTrackIndex(); ++currentTrackIndex) {
+
+	    for( int currentSectorIndex = 0; currentSectorIndex < geometry.getSectorsOnTrack( currentTrackIndex); ++currentSectorIndex) {
+
+		// Create a new sector at the offset from the geometry table and add it to the result.
+		// The error code is only looked up in the error info, when it is requested.
+		resultBuffer.add( new D64Sector( data
+						 , (int)geometry.getByteOffset( currentTrackIndex, currentSectorIndex)
+						 , currentTrackIndex
+						 , currentSectorIndex
+						 , errorInfo
+						 , geometry.getBlockIndex( currentTrackIndex, currentSectorIndex)));
+	    }
+	}
+
+	return resultBuffer;
+    }
+
+    /**
+     * Get the error info, that is appended to the sectors of an image.
+     *
+     * @param data The data of the image file.
+     * @param geometry The geometry of the image.
+     *
+     * @return A view of the error codes (1 byte per block) or null, if the image has no error info.
+     */
+    private static ByteBuffer getErrorInfo( ByteBuffer data, DiskGeometry geometry) {
+
+	if( ! geometry.hasErrorInfo( data.capacity())) {
+
+	    return null;
+	}
+
+	// The error codes follow the last sector. Just create a view, so nothing is copied.
+	ByteBuffer errorInfo = data.duplicate();
+	errorInfo.position( (int)geometry.getImageSize());
+	errorInfo.limit( errorInfo.position() + geometry.getTotalSectors());
+
+	return errorInfo.slice();
+    }
+
+    /**
+     * Parse a file with a given filename without changing the file. A journal of an
+     * interrupted save is only reported.
      *
      * @param filename The name of the image file.
      *
@@ -65,54 +145,89 @@ public class D64ImageParser extends ImageParser {
      */
     public static D64DiskImage parse( String filename) throws IOException {
 
+	return parse( filename, false);
+    }
+
+    /**
+     * Parse a file with a given filename. The geometry (35, 40 or 42 track 1541, 1571 or 1581)
+     * is derived from the size of the file. Error info behind the sectors is kept, so the
+     * sectors can report their error codes.
+     *
+     * @param filename The name of the image file.
+     * @param recoverJournal true, if a journal of an interrupted save should be replayed first.
+     *
+     * @return A list of sectors representing the file.
+     *
+     * @throws IOException if the file cannot be parsed.
+     */
+    public static D64DiskImage parse( String filename, boolean recoverJournal) throws IOException {
+
 	// Get a path to the file.
 	Path path = Paths.get( filename);
 
+	// Complete an interrupted save first, if the user asked for it.
+	checkJournal( path, recoverJournal);
+
 	// Read all bytes from the files.
 	byte [] data = Files.readAllBytes(path);
 
-	// Check, if this is a 1541 image with 683 sectors.
-	if( data.length != (683 * 256)) {
+	// Get the geometry of the image from its size.
+	DiskGeometry geometry = DiskGeometry.forImageSize( data.length);
+	if( geometry == null) {
 
-	    throw new IOException( "D64ImageParser.parse() : This is not a 683 sector 1541 image. Cannot parse other files at the moment.");
+	    throw new IOException( "D64ImageParser.parse() : Unknown image size " + data.length + ". Cannot parse this file.");
 	}
 
-	// Now generate the sectors for the file.
-	int sectorsPerTrack = 21;
-	int currentTrackIndex = 1;
-	int currentSectorIndex = 0;
-	int currentByteIndex = 0;
-	List<Sector> resultBuffer = new ArrayList<Sector>();
-	for( int sectorCount = 0; sectorCount < 683; ++sectorCount) {
-	    
-	    // Create a new sector and add it to the result.
-	    resultBuffer.add( new D64Sector( data, currentByteIndex, currentTrackIndex, currentSectorIndex));
+	// Now create an image from the parsed sectors and return it.
+	ByteBuffer imageData = ByteBuffer.wrap( data);
+	ByteBuffer errorInfo = getErrorInfo( imageData, geometry);
+	return new D64DiskImage( filename, createSectors( imageData, geometry, errorInfo), geometry, errorInfo);
+    }
+
+    /**
+     * Parse a file with a given filename by mapping it into memory. Nothing is read, until
+     * the sectors are actually accessed.
+     *
+     * If the image is opened writable, all changes of the sectors go directly to the file.
+     * Otherwise the mapping is read-only and setting a data byte of a sector throws a
+     * ReadOnlyBufferException.
+     *
+     * @param filename The name of the image file.
+     * @param writable true, if changes should be written to the file.
+     *
+     * @return A list of sectors representing the file.
+     *
+     * @throws IOException if the file cannot be parsed.
+     */
+    public static D64DiskImage parseMapped( String filename, boolean writable) throws IOException {
+
+	// Get a path to the file.
+	Path path = Paths.get( filename);
 
-	    // Compute the new sector, track etc.
-	    currentByteIndex += 256;
-	    if( ++currentSectorIndex == sectorsPerTrack) {
+	// Complete an interrupted save first, but never modify an image, that is opened read-only.
+	checkJournal( path, writable);
 
-		// Start a new track.                                             .
-		currentSectorIndex = 0;
-		++currentTrackIndex;
+	// Open the file and map it. The mapping stays valid after the channel is closed.
+	FileChannel channel = writable ? FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+	    : FileChannel.open( path, StandardOpenOption.READ);
+	try {
 
-		// Adjust the sectors per track if necessary.
-		if( currentTrackIndex == 18) { 
+	    // Get the geometry of the image from its size.
+	    DiskGeometry geometry = DiskGeometry.forImageSize( channel.size());
+	    if( geometry == null) {
 
-		    sectorsPerTrack = 19;
+		throw new IOException( "D64ImageParser.parseMapped() : Unknown image size " + channel.size() + ". Cannot parse this file.");
+	    }
 
-		} else if( currentTrackIndex == 25) {
+	    MappedByteBuffer data = channel.map( writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size());
 
-		    sectorsPerTrack = 18;
+	    // Now create an image from the mapped sectors and return it.
+	    ByteBuffer errorInfo = getErrorInfo( data, geometry);
+	    return new D64DiskImage( filename, createSectors( data, geometry, errorInfo), geometry, errorInfo);
 
-		} else if( currentTrackIndex == 31) {
+	} finally {
 
-		    sectorsPerTrack = 17;
-		}
-	    }
+	    channel.close();
 	}
-
-	// Now create an image from the parsed sectors and return it.
-	return new D64DiskImage( filename, resultBuffer);
     }
-}
\ No newline at end of file
+}
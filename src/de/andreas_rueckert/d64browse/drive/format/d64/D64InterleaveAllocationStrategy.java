@@ -0,0 +1,336 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Allocation strategy, that follows the policy of the 1541 DOS. A file starts on the
+ * track next to the directory track and continues outwards. On a track, the sectors
+ * are used with a fixed interleave, so the drive doesn't have to wait a whole revolution
+ * for the next sector of a file.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/d64.html
+ */
+public class D64InterleaveAllocationStrategy implements D64AllocationStrategy {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The default interleave of the 1541 DOS for data sectors.
+     */
+    public final static int DEFAULT_DATA_INTERLEAVE = 10;
+
+    /**
+     * The default interleave of the 1541 DOS for directory sectors.
+     */
+    public final static int DEFAULT_DIRECTORY_INTERLEAVE = 3;
+
+
+    // Instance variables
+
+    /**
+     * The interleave for data sectors.
+     */
+    private int _dataInterleave;
+
+    /**
+     * The interleave for directory sectors.
+     */
+    private int _directoryInterleave;
+
+
+    // Constructors
+
+    /**
+     * Create a new strategy with the default interleaves of the 1541 DOS.
+     */
+    public D64InterleaveAllocationStrategy() {
+
+	this( DEFAULT_DATA_INTERLEAVE, DEFAULT_DIRECTORY_INTERLEAVE);
+    }
+
+    /**
+     * Create a new strategy with given interleaves.
+     *
+     * @param dataInterleave The interleave for data sectors.
+     * @param directoryInterleave The interleave for directory sectors.
+     */
+    public D64InterleaveAllocationStrategy( int dataInterleave, int directoryInterleave) {
+
+	if( ( dataInterleave < 1) || ( directoryInterleave < 1)) {
+
+	    throw new IllegalArgumentException( "The interleave must be at least 1");
+	}
+
+	_dataInterleave = dataInterleave;
+	_directoryInterleave = directoryInterleave;
+    }
+
+
+    // Methods
+
+    /**
+     * Find a free sector on a track, starting with a given sector.
+     *
+     * @param image The disk image.
+     * @param trackIndex The index of the track.
+     * @param startSector The sector to start the search with.
+     * @param selected The sectors, that were already selected for this file.
+     *
+     * @return The index of the free sector or -1, if the track is full.
+     */
+    private int findFreeSectorOnTrack( D64DiskImage image, int trackIndex, int startSector, BitSet selected) {
+
+	int nSectors = image.getSectorsOnTrack( trackIndex);
+
+	// Search upwards from the start sector and wrap around at the end of the track.
+	for( int i = 0; i < nSectors; ++i) {
+
+	    int currentSector = ( startSector + i) % nSectors;
+
+	    if( image.isFreeSector( trackIndex, currentSector) && ! selected.get( selectionKey( image, trackIndex, currentSector))) {
+
+		return currentSector;
+	    }
+	}
+
+	return -1;  // No free sector on this track.
+    }
+
+    /**
+     * Get the data interleave.
+     *
+     * @return The interleave for data sectors.
+     */
+    public int getDataInterleave() {
+
+	return _dataInterleave;
+    }
+
+    /**
+     * Get the directory interleave.
+     *
+     * @return The interleave for directory sectors.
+     */
+    public int getDirectoryInterleave() {
+
+	return _directoryInterleave;
+    }
+
+    /**
+     * Compute the sector, that follows a given sector with a given interleave.
+     * Like the 1541 DOS, the sector is moved back by one, if the addition wraps around.
+     *
+     * @param sectorIndex The index of the current sector.
+     * @param interleave The interleave.
+     * @param nSectors The number of sectors on the track.
+     *
+     * @return The index of the following sector.
+     */
+    private static int nextInterleavedSector( int sectorIndex, int interleave, int nSectors) {
+
+	int result = sectorIndex + interleave;
+
+	if( result >= nSectors) {
+
+	    result -= nSectors;
+
+	    if( result > 0) {
+
+		--result;
+	    }
+	}
+
+	return result % nSectors;
+    }
+
+    /**
+     * Compute the order, in which the tracks are used for a file. The file starts on the track
+     * with free sectors, that is closest to the directory track (checking the lower track first),
+     * moves away from the directory track and continues on the other half of the disk, if an edge is reached.
+     *
+     * @param image The disk image.
+     * @param lowestTrack The lowest data track.
+     * @param highestTrack The highest data track.
+     *
+     * @return The track indexes in the order of use.
+     */
+    private List<Integer> createTrackOrder( D64DiskImage image, int lowestTrack, int highestTrack) {
+
+	int directoryTrack = image.getGeometry().getDirectoryTrack();
+	BitSet noSelection = new BitSet();
+
+	// Find the first track with free sectors, alternating below and above the directory track.
+	int firstTrack = directoryTrack - 1;
+	for( int distance = 1; ( directoryTrack - distance >= lowestTrack) || ( directoryTrack + distance <= highestTrack); ++distance) {
+
+	    if( ( directoryTrack - distance >= lowestTrack)
+		&& ( findFreeSectorOnTrack( image, directoryTrack - distance, 0, noSelection) != -1)) {
+
+		firstTrack = directoryTrack - distance;
+		break;
+	    }
+
+	    if( ( directoryTrack + distance <= highestTrack)
+		&& ( findFreeSectorOnTrack( image, directoryTrack + distance, 0, noSelection) != -1)) {
+
+		firstTrack = directoryTrack + distance;
+		break;
+	    }
+	}
+
+	List<Integer> result = new ArrayList<Integer>();
+
+	if( firstTrack < directoryTrack) {
+
+	    for( int currentTrack = firstTrack; currentTrack >= lowestTrack; --currentTrack) {
+		result.add( currentTrack);
+	    }
+	    for( int currentTrack = directoryTrack + 1; currentTrack <= highestTrack; ++currentTrack) {
+		result.add( currentTrack);
+	    }
+	    for( int currentTrack = directoryTrack - 1; currentTrack > firstTrack; --currentTrack) {
+		result.add( currentTrack);
+	    }
+
+	} else {
+
+	    for( int currentTrack = firstTrack; currentTrack <= highestTrack; ++currentTrack) {
+		result.add( currentTrack);
+	    }
+	    for( int currentTrack = directoryTrack - 1; currentTrack >= lowestTrack; --currentTrack) {
+		result.add( currentTrack);
+	    }
+	    for( int currentTrack = directoryTrack + 1; currentTrack < firstTrack; ++currentTrack) {
+		result.add( currentTrack);
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Select a free sector on the directory track with the directory interleave.
+     *
+     * @param image The disk image.
+     * @param lastDirectorySector The current last sector of the directory chain.
+     *
+     * @return A free sector on the directory track or null, if the directory track is full.
+     */
+    public Sector selectDirectorySector( D64DiskImage image, Sector lastDirectorySector) {
+
+	int directoryTrack = image.getGeometry().getDirectoryTrack();
+	int nSectors = image.getSectorsOnTrack( directoryTrack);
+	int startSector = lastDirectorySector == null ? 1 : nextInterleavedSector( lastDirectorySector.getSectorIndex(), _directoryInterleave, nSectors);
+
+	// Sector 0 holds the BAM, so it's never used for the directory.
+	for( int i = 0; i < nSectors; ++i) {
+
+	    int currentSector = ( startSector + i) % nSectors;
+
+	    if( ( currentSector != 0) && image.isFreeSector( directoryTrack, currentSector)) {
+
+		return image.getSector( directoryTrack, currentSector);
+	    }
+	}
+
+	return null;  // The directory track is full.
+    }
+
+    /**
+     * Select free sectors for a new file like the 1541 DOS.
+     *
+     * @param image The disk image.
+     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     *
+     * @return The free sectors in the order, that the file should use them, or null, if there are not enough free sectors.
+     */
+    public List<Sector> selectFreeSectors( D64DiskImage image, int num) {
+
+	List<Sector> result = new ArrayList<Sector>();
+
+	if( num == 0) {
+
+	    return result;
+	}
+
+	// Tracks without an entry in the BAM are never free, so they are skipped anyway.
+	int lowestTrack = Math.max( 1, image.getMinTrackIndex());
+	int highestTrack = image.getMaxTrackIndex();
+
+	// Remember the sectors, that are already selected, since they are not allocated yet.
+	BitSet selected = new BitSet();
+
+	int currentSector = 0;
+	for( int currentTrack : createTrackOrder( image, lowestTrack, highestTrack)) {
+
+	    int nSectors = image.getSectorsOnTrack( currentTrack);
+
+	    // Use the sectors of this track until it is full.
+	    while( ( nSectors > 0) && ( ( num == -1) || ( result.size() < num))) {
+
+		// The first sector of a file starts at sector 0, all the following use the interleave.
+		int startSector = result.isEmpty() ? 0 : nextInterleavedSector( currentSector, _dataInterleave, nSectors);
+		int freeSector = findFreeSectorOnTrack( image, currentTrack, startSector, selected);
+
+		if( freeSector == -1) {  // This track is full, so continue on the next track.
+
+		    break;
+		}
+
+		selected.set( selectionKey( image, currentTrack, freeSector));
+		result.add( image.getSector( currentTrack, freeSector));
+		currentSector = freeSector;
+	    }
+	}
+
+	// If all free sectors were requested, return them. Otherwise there might not be enough.
+	return ( num == -1) || ( result.size() == num) ? result : null;
+    }
+
+    /**
+     * Compute a key for a track/sector combination in the set of selected sectors. The position
+     * in the flat sector array is used, so tracks with more than 32 sectors (i.e. on a 1581 disk) don't collide.
+     *
+     * @param image The disk image.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector.
+     *
+     * @return A unique key for this track and sector.
+     */
+    private static int selectionKey( D64DiskImage image, int trackIndex, int sectorIndex) {
+
+	return image.getSectorIndex().getPosition( trackIndex, sectorIndex);
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.d64;
+
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Allocation strategy, that just uses the free sectors in ascending block order.
+ */
+public class D64LinearAllocationStrategy implements D64AllocationStrategy {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+
+    // Constructors
+
+
+    // Methods
+
+    /**
+     * Select the first free sector on the directory track.
+     *
+     * @param image The disk image.
+     * @param lastDirectorySector The current last sector of the directory chain.
+     *
+     * @return A free sector on the directory track or null, if the directory track is full.
+     */
+    public Sector selectDirectorySector( D64DiskImage image, Sector lastDirectorySector) {
+
+	int directoryTrack = image.getGeometry().getDirectoryTrack();
+
+	for( int currentSector = 1; currentSector < image.getSectorsOnTrack( directoryTrack); ++currentSector) {
+
+	    if( image.isFreeSector( directoryTrack, currentSector)) {
+
+		return image.getSector( directoryTrack, currentSector);
+	    }
+	}
+
+	return null;  // The directory track is full.
+    }
+
+    /**
+     * Select free sectors for a new file in ascending block order.
+     *
+     * @param image The disk image.
+     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     *
+     * @return The free sectors or null, if there are not enough free sectors.
+     */
+    public List<Sector> selectFreeSectors( D64DiskImage image, int num) {
+
+	List<Sector> result = new ArrayList<Sector>();  // Buffer for the result.
+
+	// If the user requested 0 sectors, just return the empty list.
+	if( num == 0) {
+
+	    return result;
+	}
+
+	// Walk over the free blocks of the bitmap.
+	D64BlockAvailabilityMap blockAvailabilityMap = image.getBlockAvailabilityMap();
+	for( int currentBlockIndex = blockAvailabilityMap.nextFreeBlock( 0)
+		 ; currentBlockIndex != -1
+		 ; currentBlockIndex = blockAvailabilityMap.nextFreeBlock( currentBlockIndex + 1)) {
+
+	    result.add( image.getSectorForBlockIndex( currentBlockIndex));
+
+	    // If the number of free sectors is sufficient, return the result.
+	    if( result.size() == num) {
+
+		return result;
+	    }
+	}
+
+	// If all free sectors were requested, return them. Otherwise there are not enough.
+	return num == -1 ? result : null;
+    }
+}
@@ -26,6 +26,7 @@
 package de.andreas_rueckert.d64browse.drive.format.d64;
 
 import de.andreas_rueckert.d64browse.drive.format.SectorImpl;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -43,6 +44,16 @@ public class D64Sector extends SectorImpl {
 
     // Instance variables
 
+    /**
+     * The error info of the image (1 error code per block) or null, if the image has no error info.
+     */
+    private ByteBuffer _errorInfo = null;
+
+    /**
+     * The index of the error code of this sector in the error info.
+     */
+    private int _errorIndex = 0;
+
 
     // Constructors
 
@@ -61,9 +72,51 @@ public class D64Sector extends SectorImpl {
 	super( data, dataStart, 256, trackIndex, sectorIndex);
     }
 
+    /**
+     * Create a new sector as a view on a byte buffer, with the error code at a given
+     * index of the error info of the image. The error code is only read, when it is requested.
+     *
+     * @param data A byte buffer with the data.
+     * @param dataStart The start index of the data.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     * @param errorInfo The error info of the image or null, if the image has no error info.
+     * @param errorIndex The index of the error code of this sector in the error info (the block index).
+     */
+    public D64Sector( ByteBuffer data, int dataStart, int trackIndex, int sectorIndex, ByteBuffer errorInfo, int errorIndex) {
+
+	super( data, dataStart, 256, trackIndex, sectorIndex);
+
+	_errorInfo = errorInfo;
+	_errorIndex = errorIndex;
+    }
+
+    /**
+     * Create a new sector as a view on a byte buffer (i.e. a mapped image file).
+     *
+     * @param data A byte buffer with the data.
+     * @param dataStart The start index of the data.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     */
+    public D64Sector( ByteBuffer data, int dataStart, int trackIndex, int sectorIndex) {
+
+	super( data, dataStart, 256, trackIndex, sectorIndex);
+    }
+
 
     // Methods
 
+    /**
+     * Get the error code of the drive for this sector from the error info of the image.
+     *
+     * @return The error code of this sector or ERROR_CODE_NONE, if the image has no error info.
+     */
+    public int getErrorCode() {
+
+	return _errorInfo == null ? ERROR_CODE_NONE : _errorInfo.get( _errorIndex) & 0xff;
+    }
+
     /**
      * Get the sector index of the following sector of a file.
      *
@@ -71,7 +124,7 @@ public class D64Sector extends SectorImpl {
      */
     public int getNextSector() {
 
-	return getDataBytes()[ 1];
+	return getDataByte( 1) & 0xff;
     }
 
     /**
@@ -81,6 +134,16 @@ public class D64Sector extends SectorImpl {
      */
     public int getNextTrack() {
 
-	return getDataBytes()[ 0];
+	return getDataByte( 0) & 0xff;
+    }
+
+    /**
+     * Check, if the drive reported a read error for this sector.
+     *
+     * @return true, if the error info of the image flags this sector as bad.
+     */
+    public boolean hasReadError() {
+
+	return getErrorCode() > ERROR_CODE_OK;
     }
 }
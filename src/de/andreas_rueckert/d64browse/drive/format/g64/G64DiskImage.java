@@ -0,0 +1,105 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.g64;
+
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.drive.format.d64.D64DiskImage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+
+/**
+ * A G64 image with the decoded sectors of a 1541 disk. The sectors can be browsed and
+ * modified like the sectors of a d64 image, but the GCR data are never written. So the
+ * image can only be saved as a d64 image to another file.
+ */
+public class G64DiskImage extends D64DiskImage {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+
+    // Constructors
+
+    /**
+     * Create a new image from the sectors of a G64 file.
+     *
+     * @param filename The filename of the G64 image.
+     * @param sectorList The list of decoded sectors.
+     * @param geometry The geometry of the decoded disk.
+     */
+    public G64DiskImage( String filename, List<Sector> sectorList, DiskGeometry geometry) {
+
+	super( filename, sectorList, geometry);
+    }
+
+
+    // Methods
+
+    /**
+     * Check, if this image has error info. The decoder finds the errors of all the sectors.
+     *
+     * @return Always true.
+     */
+    public boolean hasErrorInfo() {
+
+	return true;
+    }
+
+    /**
+     * G64 images cannot be saved in place, since the GCR data are not encoded again.
+     *
+     * @throws IOException always.
+     */
+    public void save() throws IOException {
+
+	throw new IOException( "G64DiskImage.save() : G64 images cannot be saved. Use saveAs() to write a d64 image.");
+    }
+
+    /**
+     * Write the decoded sectors as a d64 image with the error info of the decoder to another file.
+     *
+     * @param filename The name of the target file.
+     *
+     * @throws IOException if the target is the G64 file itself or cannot be written.
+     */
+    public void saveAs( String filename) throws IOException {
+
+	if( Paths.get( filename).toAbsolutePath().equals( Paths.get( getFileName()).toAbsolutePath())) {
+
+	    throw new IOException( "G64DiskImage.saveAs() : Cannot replace the G64 file " + filename + " with a d64 image.");
+	}
+
+	super.saveAs( filename);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.g64;
+
+import de.andreas_rueckert.d64browse.drive.format.DiskGeometry;
+import de.andreas_rueckert.d64browse.drive.format.ImageParser;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Class to parse G64 files with the raw GCR data of a 1541 disk. The tracks are only
+ * decoded, when their sectors are accessed.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/g64.html
+ */
+public class G64ImageParser extends ImageParser {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The signature at the start of a G64 file.
+     */
+    private final static String SIGNATURE = "GCR-1541";
+
+    /**
+     * The offset of the track offset table.
+     */
+    private final static int TRACK_TABLE_OFFSET = 0x0c;
+
+
+    // Instance variables
+
+
+    // Constructors
+
+
+    // Methods
+
+    /**
+     * Get the offset of the data of a track in the G64 file.
+     *
+     * @param data The data of the G64 file.
+     * @param nHalfTracks The number of half tracks in the file.
+     * @param trackIndex The index of the (full) track.
+     *
+     * @return The offset of the track data or 0, if the track is not in the file.
+     */
+    private static int getTrackOffset( byte [] data, int nHalfTracks, int trackIndex) {
+
+	// The table has an entry for each half track, starting with track 1.
+	int halfTrack = 2 * ( trackIndex - 1);
+	if( halfTrack >= nHalfTracks) {
+
+	    return 0;
+	}
+
+	return readInt( data, TRACK_TABLE_OFFSET + 4 * halfTrack);
+    }
+
+    /**
+     * Parse a file with a given filename. Only the header and the track table are checked here.
+     *
+     * @param filename The name of the G64 file.
+     *
+     * @return The image with the sectors of the file.
+     *
+     * @throws IOException if the file cannot be parsed.
+     */
+    public static G64DiskImage parse( String filename) throws IOException {
+
+	byte [] data = Files.readAllBytes( Paths.get( filename));
+
+	// Check the signature.
+	if( ( data.length < TRACK_TABLE_OFFSET) || ! new String( data, 0, SIGNATURE.length(), "ISO-8859-1").equals( SIGNATURE)) {
+
+	    throw new IOException( "G64ImageParser.parse() : This is not a G64 image.");
+	}
+
+	int nHalfTracks = data[ 9] & 0xff;
+	if( data.length < TRACK_TABLE_OFFSET + 8 * nHalfTracks) {
+
+	    throw new IOException( "G64ImageParser.parse() : The track table is truncated.");
+	}
+
+	// Use the geometry, that has room for the highest track in the file.
+	int highestTrack = 0;
+	for( int currentTrack = 1; currentTrack <= 42; ++currentTrack) {
+
+	    if( getTrackOffset( data, nHalfTracks, currentTrack) != 0) {
+
+		highestTrack = currentTrack;
+	    }
+	}
+	DiskGeometry geometry = highestTrack > 40 ? DiskGeometry.D64_42 : ( highestTrack > 35 ? DiskGeometry.D64_40 : DiskGeometry.D64);
+
+	// The decoded sectors are stored in 1 buffer in block order, like a d64 file.
+	byte [] sectorBuffer = new byte[ (int)geometry.getImageSize()];
+	List<Sector> sectors = new ArrayList<Sector>( geometry.getTotalSectors());
+
+	for( int currentTrack = geometry.getMinTrackIndex(); currentTrack <= geometry.getMaxTrackIndex(); ++currentTrack) {
+
+	    // Each track starts with its length in bytes.
+	    int trackOffset = getTrackOffset( data, nHalfTracks, currentTrack);
+	    int gcrLength = 0;
+	    if( trackOffset != 0) {
+
+		if( ( trackOffset < 0) || ( trackOffset + 2 > data.length)) {
+
+		    throw new IOException( "G64ImageParser.parse() : Track " + currentTrack + " is beyond the end of the file.");
+		}
+		gcrLength = ( data[ trackOffset] & 0xff) | ( ( data[ trackOffset + 1] & 0xff) << 8);
+
+		if( trackOffset + 2 + gcrLength > data.length) {
+
+		    throw new IOException( "G64ImageParser.parse() : Track " + currentTrack + " is truncated.");
+		}
+	    }
+
+	    int nSectors = geometry.getSectorsOnTrack( currentTrack);
+	    int [] sectorOffsets = new int[ nSectors];
+	    for( int currentSector = 0; currentSector < nSectors; ++currentSector) {
+
+		sectorOffsets[ currentSector] = (int)geometry.getByteOffset( currentTrack, currentSector);
+	    }
+
+	    G64Track track = new G64Track( currentTrack, data, trackOffset + 2, gcrLength, sectorBuffer, sectorOffsets);
+
+	    for( int currentSector = 0; currentSector < nSectors; ++currentSector) {
+
+		sectors.add( new G64Sector( sectorBuffer, sectorOffsets[ currentSector], track, currentTrack, currentSector));
+	    }
+	}
+
+	return new G64DiskImage( filename, sectors, geometry);
+    }
+
+    /**
+     * Read a 32 bit little endian int from the file data.
+     *
+     * @param data The data of the file.
+     * @param offset The offset of the int.
+     *
+     * @return The int value.
+     */
+    private static int readInt( byte [] data, int offset) {
+
+	return ( data[ offset] & 0xff) | ( ( data[ offset + 1] & 0xff) << 8) | ( ( data[ offset + 2] & 0xff) << 16) | ( ( data[ offset + 3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.g64;
+
+import de.andreas_rueckert.d64browse.drive.format.d64.D64Sector;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A sector of a G64 image. The data are in the sector buffer of the image, like the
+ * data of a d64 sector, but the track is decoded from GCR, when the sector is accessed
+ * for the first time.
+ */
+class G64Sector extends D64Sector {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The track with the GCR data of this sector.
+     */
+    private G64Track _track;
+
+
+    // Constructors
+
+    /**
+     * Create a new sector of a G64 image.
+     *
+     * @param sectorBuffer The sector buffer of the image.
+     * @param dataStart The start index of the sector data in the sector buffer.
+     * @param track The track with the GCR data of this sector.
+     * @param trackIndex The index of the track.
+     * @param sectorIndex The index of the sector on the given track.
+     */
+    G64Sector( byte [] sectorBuffer, int dataStart, G64Track track, int trackIndex, int sectorIndex) {
+
+	super( sectorBuffer, dataStart, trackIndex, sectorIndex);
+
+	_track = track;
+    }
+
+
+    // Methods
+
+    /**
+     * Copy the content of this sector to a given array.
+     *
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     */
+    public void copyTo( byte [] destination, int offset) {
+
+	_track.ensureDecoded();
+
+	super.copyTo( destination, offset);
+    }
+
+    /**
+     * Copy a part of the content of this sector to a given array.
+     *
+     * @param position The position of the first byte to copy from this sector.
+     * @param destination The array to copy to.
+     * @param offset The start index in the destination array.
+     * @param length The number of bytes to copy.
+     */
+    public void copyTo( int position, byte [] destination, int offset, int length) {
+
+	_track.ensureDecoded();
+
+	super.copyTo( position, destination, offset, length);
+    }
+
+    /**
+     * Get a read-only view of the content of this sector.
+     *
+     * @return A read-only buffer with the content of this sector.
+     */
+    public ByteBuffer getDataBuffer() {
+
+	_track.ensureDecoded();
+
+	return super.getDataBuffer();
+    }
+
+    /**
+     * Get a single data byte of this sector.
+     *
+     * @param position The position of the byte.
+     *
+     * @return The data byte at the given position.
+     */
+    public byte getDataByte( int position) {
+
+	_track.ensureDecoded();
+
+	return super.getDataByte( position);
+    }
+
+    /**
+     * Get the content of this sector.
+     *
+     * @return The content of this sector as a list of bytes.
+     */
+    public byte [] getDataBytes() {
+
+	_track.ensureDecoded();
+
+	return super.getDataBytes();
+    }
+
+    /**
+     * Get the error code of the drive for this sector, as it was found while decoding the track.
+     *
+     * @return The error code of this sector.
+     */
+    public int getErrorCode() {
+
+	return _track.getErrorCode( getSectorIndex());
+    }
+
+    /**
+     * Set a data byte of the sector. Only the decoded data are changed, not the GCR data.
+     *
+     * @param position The position of the byte to set.
+     * @param value The new value of the byte.
+     */
+    public void setDataByte( int position, byte value) {
+
+	_track.ensureDecoded();
+
+	super.setDataByte( position, value);
+    }
+
+    /**
+     * Set a range of data bytes of the sector. Only the decoded data are changed, not the GCR data.
+     *
+     * @param position The position of the first byte to set.
+     * @param source The array with the new values.
+     * @param sourceOffset The start index in the source array.
+     * @param length The number of bytes to set.
+     */
+    public void setDataBytes( int position, byte [] source, int sourceOffset, int length) {
+
+	_track.ensureDecoded();
+
+	super.setDataBytes( position, source, sourceOffset, length);
+    }
+}
@@ -0,0 +1,481 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.g64;
+
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import java.util.Arrays;
+
+
+/**
+ * A track of a G64 image with the raw GCR data. The track is decoded, when one of its
+ * sectors is accessed for the first time. The decoded sector data are written to the
+ * sector buffer of the image, so they are only decoded once.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/g64.html
+ */
+class G64Track {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The error code for a sector without header ('20, READ ERROR').
+     */
+    final static int ERROR_HEADER_NOT_FOUND = 2;
+
+    /**
+     * The error code for a track without sync marks ('21, READ ERROR').
+     */
+    final static int ERROR_NO_SYNC = 3;
+
+    /**
+     * The error code for a sector without data block ('22, READ ERROR').
+     */
+    final static int ERROR_DATA_NOT_FOUND = 4;
+
+    /**
+     * The error code for a data block with a wrong checksum ('23, READ ERROR').
+     */
+    final static int ERROR_DATA_CHECKSUM = 5;
+
+    /**
+     * The error code for a data block with invalid GCR codes ('24, READ ERROR').
+     */
+    final static int ERROR_GCR = 6;
+
+    /**
+     * The error code for a header with a wrong checksum ('27, READ ERROR').
+     */
+    final static int ERROR_HEADER_CHECKSUM = 9;
+
+    /**
+     * The id of a header block.
+     */
+    private final static int HEADER_BLOCK_ID = 0x08;
+
+    /**
+     * The id of a data block.
+     */
+    private final static int DATA_BLOCK_ID = 0x07;
+
+    /**
+     * The number of GCR bytes of a header block (8 decoded bytes).
+     */
+    private final static int HEADER_GCR_LENGTH = 10;
+
+    /**
+     * The number of GCR bytes of a data block (id, 256 data bytes, checksum and 2 off bytes).
+     */
+    private final static int DATA_GCR_LENGTH = 325;
+
+    /**
+     * The minimum number of 1 bits of a sync mark.
+     */
+    private final static int SYNC_BITS = 10;
+
+    /**
+     * The maximum distance in bits from the end of a header to the sync of its data block.
+     */
+    private final static int MAX_HEADER_GAP_BITS = 100 * 8;
+
+    /**
+     * The 5 bit GCR codes of the nibbles 0 - 15.
+     */
+    private final static int [] GCR_ENCODE = { 0x0a, 0x0b, 0x12, 0x13, 0x0e, 0x0f, 0x16, 0x17
+					       , 0x09, 0x19, 0x1a, 0x1b, 0x0d, 0x1d, 0x1e, 0x15 };
+
+    /**
+     * A table to decode 10 GCR bits (2 codes) to a byte at once. Invalid codes are -1.
+     */
+    private final static short [] GCR_DECODE = createDecodeTable();
+
+
+    // Instance variables
+
+    /**
+     * Flag, if the track was decoded already.
+     */
+    private volatile boolean _decoded = false;
+
+    /**
+     * The error codes of the sectors of this track.
+     */
+    private byte [] _errorCodes;
+
+    /**
+     * The raw GCR data of the track, followed by a copy of the first bytes, so words can be read across the end of the track.
+     */
+    private byte [] _gcrData;
+
+    /**
+     * The number of GCR bytes of the track (0, if the track is not in the image).
+     */
+    private int _gcrLength;
+
+    /**
+     * The sector buffer of the image, that the decoded sectors are written to.
+     */
+    private byte [] _sectorBuffer;
+
+    /**
+     * The offsets of the sectors of this track in the sector buffer.
+     */
+    private int [] _sectorOffsets;
+
+    /**
+     * The index of this track.
+     */
+    private int _trackIndex;
+
+
+    // Constructors
+
+    /**
+     * Create a new track from the raw data of a G64 image.
+     *
+     * @param trackIndex The index of the track.
+     * @param imageData The data of the G64 image.
+     * @param gcrStart The start of the GCR data of the track in the image data.
+     * @param gcrLength The number of GCR bytes of the track (0, if the track is not in the image).
+     * @param sectorBuffer The sector buffer of the image for the decoded sectors.
+     * @param sectorOffsets The offsets of the sectors of this track in the sector buffer.
+     */
+    G64Track( int trackIndex, byte [] imageData, int gcrStart, int gcrLength, byte [] sectorBuffer, int [] sectorOffsets) {
+
+	_trackIndex = trackIndex;
+	_gcrLength = gcrLength;
+	_sectorBuffer = sectorBuffer;
+	_sectorOffsets = sectorOffsets;
+	_errorCodes = new byte[ sectorOffsets.length];
+
+	// Copy the track and append the start of the track, so a word can be read at every position.
+	_gcrData = new byte[ gcrLength + 16];
+	System.arraycopy( imageData, gcrStart, _gcrData, 0, gcrLength);
+	for( int currentByte = 0; ( gcrLength > 0) && ( currentByte < 16); ++currentByte) {
+
+	    _gcrData[ gcrLength + currentByte] = _gcrData[ currentByte % gcrLength];
+	}
+    }
+
+
+    // Methods
+
+    /**
+     * Create the table to decode 2 GCR codes to a byte.
+     *
+     * @return The decode table.
+     */
+    private static short [] createDecodeTable() {
+
+	// Decode a single 5 bit code first.
+	int [] nibbles = new int[ 32];
+	Arrays.fill( nibbles, -1);
+	for( int currentNibble = 0; currentNibble < 16; ++currentNibble) {
+
+	    nibbles[ GCR_ENCODE[ currentNibble]] = currentNibble;
+	}
+
+	short [] result = new short[ 1024];
+	for( int currentCode = 0; currentCode < 1024; ++currentCode) {
+
+	    int highNibble = nibbles[ currentCode >>> 5];
+	    int lowNibble = nibbles[ currentCode & 0x1f];
+
+	    result[ currentCode] = (short)( ( ( highNibble < 0) || ( lowNibble < 0)) ? -1 : ( highNibble << 4) | lowNibble);
+	}
+
+	return result;
+    }
+
+    /**
+     * Decode a block of GCR bytes, 40 bits (5 GCR bytes to 4 bytes) at a time.
+     *
+     * @param bitPosition The bit position of the block on the track.
+     * @param destination The array for the decoded bytes.
+     * @param length The number of decoded bytes (a multiple of 4).
+     *
+     * @return true, if all the codes were valid.
+     */
+    private boolean decodeBlock( long bitPosition, byte [] destination, int length) {
+
+	boolean valid = true;
+
+	for( int currentByte = 0; currentByte < length; currentByte += 4) {
+
+	    long group = readBits40( bitPosition);
+	    bitPosition += 40;
+
+	    for( int currentPair = 0; currentPair < 4; ++currentPair) {
+
+		int decoded = GCR_DECODE[ (int)( group >>> ( 30 - 10 * currentPair)) & 0x3ff];
+
+		valid &= decoded >= 0;
+		destination[ currentByte + currentPair] = (byte)decoded;
+	    }
+	}
+
+	return valid;
+    }
+
+    /**
+     * Decode the track, if it was not decoded yet. The sectors, that are found, are written to
+     * the sector buffer and the error codes of all sectors are set.
+     */
+    private synchronized void decode() {
+
+	// Another thread might have decoded the track, while this thread waited for the lock.
+	if( _decoded) {
+
+	    return;
+	}
+
+	// Sectors, that are not found, have no header.
+	Arrays.fill( _errorCodes, (byte)( _gcrLength == 0 ? ERROR_NO_SYNC : ERROR_HEADER_NOT_FOUND));
+
+	long trackBits = 8L * _gcrLength;
+	long firstSync = trackBits == 0 ? -1 : findSync( 0, trackBits);
+
+	if( firstSync == -1) {
+
+	    // Without a sync, no sector can be read.
+	    Arrays.fill( _errorCodes, (byte)ERROR_NO_SYNC);
+
+	} else {
+
+	    byte [] header = new byte[ 8];
+	    byte [] dataBlock = new byte[ 260];
+
+	    // Visit all the syncs of 1 revolution.
+	    long endBit = firstSync + trackBits;
+	    for( long currentSync = firstSync; currentSync != -1; currentSync = findSync( currentSync, endBit)) {
+
+		// Check, if a valid header follows the sync.
+		if( ! decodeBlock( currentSync, header, 8) || ( header[ 0] != HEADER_BLOCK_ID)) {
+
+		    continue;
+		}
+
+		int sectorIndex = header[ 2] & 0xff;
+		if( ( ( header[ 3] & 0xff) != _trackIndex) || ( sectorIndex >= _sectorOffsets.length)) {
+
+		    continue;  // Not a sector of this track.
+		}
+
+		if( ( header[ 1] ^ header[ 2] ^ header[ 3] ^ header[ 4] ^ header[ 5]) != 0) {
+
+		    _errorCodes[ sectorIndex] = (byte)ERROR_HEADER_CHECKSUM;
+		    continue;
+		}
+
+		// The data block follows after the next sync.
+		long headerEnd = currentSync + 8 * HEADER_GCR_LENGTH;
+		long dataSync = findSync( headerEnd, headerEnd + MAX_HEADER_GAP_BITS);
+		if( ( dataSync == -1) || ! decodeBlock( dataSync, dataBlock, 4) || ( dataBlock[ 0] != DATA_BLOCK_ID)) {
+
+		    _errorCodes[ sectorIndex] = (byte)ERROR_DATA_NOT_FOUND;
+		    continue;
+		}
+
+		boolean validCodes = decodeBlock( dataSync, dataBlock, dataBlock.length);
+
+		// The checksum is the xor of the data bytes.
+		int checksum = 0;
+		for( int currentByte = 1; currentByte <= 256; ++currentByte) {
+
+		    checksum ^= dataBlock[ currentByte];
+		}
+
+		// Keep the data even with an error, like a nibbler does.
+		System.arraycopy( dataBlock, 1, _sectorBuffer, _sectorOffsets[ sectorIndex], 256);
+
+		if( ! validCodes) {
+
+		    _errorCodes[ sectorIndex] = (byte)ERROR_GCR;
+
+		} else if( ( checksum & 0xff) != ( dataBlock[ 257] & 0xff)) {
+
+		    _errorCodes[ sectorIndex] = (byte)ERROR_DATA_CHECKSUM;
+
+		} else {
+
+		    _errorCodes[ sectorIndex] = (byte)Sector.ERROR_CODE_OK;
+		}
+	    }
+	}
+
+	_decoded = true;
+    }
+
+    /**
+     * Make sure, that the track is decoded. Only the first access locks the track, since
+     * the volatile flag is checked before the lock.
+     */
+    void ensureDecoded() {
+
+	if( ! _decoded) {
+
+	    decode();
+	}
+    }
+
+    /**
+     * Find the next sync mark on the track. The bits are checked a word at a time, so only
+     * the words with a run of at least 10 1 bits are checked bit by bit.
+     *
+     * @param startBit The bit position to start the search at (may be beyond the track length for the next revolution).
+     * @param endBit The bit position, where the search ends (exclusive).
+     *
+     * @return The bit position of the first bit after the sync or -1, if there is no sync in the range.
+     */
+    private long findSync( long startBit, long endBit) {
+
+	long trackBits = 8L * _gcrLength;
+
+	// Skip the rest of a sync, that the search starts in.
+	long bitPosition = startBit;
+	while( ( bitPosition < endBit) && ( getBit( bitPosition) == 1)) {
+
+	    ++bitPosition;
+	}
+
+	// Check 64 bit words at steps of 48 bits, so every run of 10 bits is completely in 1 word.
+	for( long wordStart = bitPosition & ~7L; wordStart < endBit; wordStart += 48) {
+
+	    long word = readWord( (int)( ( wordStart >>> 3) % _gcrLength));
+
+	    // Ignore the bits before the start position.
+	    if( wordStart < bitPosition) {
+
+		word &= -1L >>> ( bitPosition - wordStart);
+	    }
+
+	    // Find the runs of 10 1 bits. A set bit marks the start of a run.
+	    long runs2 = word & ( word << 1);
+	    long runs4 = runs2 & ( runs2 << 2);
+	    long runs8 = runs4 & ( runs4 << 4);
+	    long runs10 = runs8 & ( runs2 << 8);
+
+	    if( runs10 == 0L) {
+
+		continue;
+	    }
+
+	    long syncStart = wordStart + Long.numberOfLeadingZeros( runs10);
+	    if( syncStart >= endBit) {
+
+		return -1;
+	    }
+
+	    // Find the end of the sync. A sync around the whole track is no sync.
+	    long syncEnd = syncStart + SYNC_BITS;
+	    while( getBit( syncEnd) == 1) {
+
+		if( ++syncEnd - syncStart > trackBits) {
+
+		    return -1;
+		}
+	    }
+
+	    return syncEnd;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Get a bit of the track.
+     *
+     * @param bitPosition The position of the bit (may be beyond the track length for the next revolution).
+     *
+     * @return The bit at the given position (0 or 1).
+     */
+    private int getBit( long bitPosition) {
+
+	int byteIndex = (int)( ( bitPosition >>> 3) % _gcrLength);
+
+	return ( _gcrData[ byteIndex] >>> ( 7 - (int)( bitPosition & 7))) & 1;
+    }
+
+    /**
+     * Get the error code of a sector of this track. The track is decoded, if necessary.
+     *
+     * @param sectorIndex The index of the sector.
+     *
+     * @return The error code of the sector.
+     */
+    int getErrorCode( int sectorIndex) {
+
+	ensureDecoded();
+
+	return _errorCodes[ sectorIndex];
+    }
+
+    /**
+     * Get the number of GCR bytes of the track.
+     *
+     * @return The number of GCR bytes of the track (0, if the track is not in the image).
+     */
+    int getGcrLength() {
+
+	return _gcrLength;
+    }
+
+    /**
+     * Read 40 bits (5 GCR bytes) at a bit position of the track.
+     *
+     * @param bitPosition The position of the first bit (may be beyond the track length for the next revolution).
+     *
+     * @return The 40 bits in the lower bits of a long.
+     */
+    private long readBits40( long bitPosition) {
+
+	// Read 6 bytes, so the 40 bits are in the word for every bit offset.
+	long word = readWord( (int)( ( bitPosition >>> 3) % _gcrLength)) >>> 16;
+
+	return ( word >>> ( 8 - (int)( bitPosition & 7))) & 0xffffffffffL;
+    }
+
+    /**
+     * Read 8 bytes of the track as a big endian word.
+     *
+     * @param byteIndex The index of the first byte in the track.
+     *
+     * @return The word with the first byte in the highest bits.
+     */
+    private long readWord( int byteIndex) {
+
+	long result = 0L;
+
+	for( int currentByte = 0; currentByte < 8; ++currentByte) {
+
+	    result = ( result << 8) | ( _gcrData[ byteIndex + currentByte] & 0xff);
+	}
+
+	return result;
+    }
+}
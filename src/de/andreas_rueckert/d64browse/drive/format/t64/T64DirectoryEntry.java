@@ -0,0 +1,157 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.t64;
+
+import de.andreas_rueckert.d64browse.drive.format.Directory;
+import de.andreas_rueckert.d64browse.drive.format.DirectoryEntryImpl;
+
+
+/**
+ * This class holds the info on a file of a T64 tape archive. The size of the file in
+ * bytes includes the 2 bytes of the load address, like a PRG file on a disk.
+ */
+public class T64DirectoryEntry extends DirectoryEntryImpl {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The offset of the file data in the T64 file.
+     */
+    private int _dataOffset;
+
+    /**
+     * The end address (exclusive) of the file in the c64 memory, after the fix of a bad end address.
+     */
+    private int _endAddress;
+
+    /**
+     * The name of the file type.
+     */
+    private String _fileTypeName;
+
+    /**
+     * The load address of the file in the c64 memory.
+     */
+    private int _startAddress;
+
+
+    // Constructors
+
+    /**
+     * Create an entry for a file of a T64 archive.
+     *
+     * @param filename The name of the file.
+     * @param fileTypeName The name of the file type (i.e. PRG).
+     * @param startAddress The load address of the file.
+     * @param endAddress The end address (exclusive) of the file.
+     * @param dataOffset The offset of the file data in the T64 file.
+     * @param directory The directory, this entry belongs to.
+     */
+    public T64DirectoryEntry( String filename
+			      , String fileTypeName
+			      , int startAddress
+			      , int endAddress
+			      , int dataOffset
+			      , Directory directory) {
+
+	// The unit of a T64 image is a byte, and the file starts with the load address.
+	super( filename, 2 + endAddress - startAddress, directory);
+
+	_fileTypeName = fileTypeName;
+	_startAddress = startAddress;
+	_endAddress = endAddress;
+	_dataOffset = dataOffset;
+    }
+
+
+    // Methods
+
+    /**
+     * Get the number of data bytes of the file in the T64 file (without the load address).
+     *
+     * @return The number of data bytes.
+     */
+    public int getDataLength() {
+
+	return _endAddress - _startAddress;
+    }
+
+    /**
+     * Get the offset of the file data in the T64 file.
+     *
+     * @return The offset of the file data.
+     */
+    public int getDataOffset() {
+
+	return _dataOffset;
+    }
+
+    /**
+     * Get the end address (exclusive) of the file.
+     *
+     * @return The end address of the file.
+     */
+    public int getEndAddress() {
+
+	return _endAddress;
+    }
+
+    /**
+     * Get the file name of a T64 file.
+     *
+     * @return The name of the file with the type, like the name of a d64 file.
+     */
+    public String getFileName() {
+
+	return super.getFileName() + "." + getFileTypeName();
+    }
+
+    /**
+     * Get the name of the file type.
+     *
+     * @return The name of the file type.
+     */
+    public String getFileTypeName() {
+
+	return _fileTypeName;
+    }
+
+    /**
+     * Get the load address of the file.
+     *
+     * @return The load address of the file.
+     */
+    public int getStartAddress() {
+
+	return _startAddress;
+    }
+}
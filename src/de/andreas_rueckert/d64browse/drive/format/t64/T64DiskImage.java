@@ -0,0 +1,417 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.t64;
+
+import de.andreas_rueckert.d64browse.drive.format.Directory;
+import de.andreas_rueckert.d64browse.drive.format.DirectoryEntry;
+import de.andreas_rueckert.d64browse.drive.format.DirectoryImpl;
+import de.andreas_rueckert.d64browse.drive.format.DiskImage;
+import de.andreas_rueckert.d64browse.drive.format.Sector;
+import de.andreas_rueckert.d64browse.util.CharsetUtils;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A T64 tape archive. The archive has no sectors, just a directory with the offsets of
+ * the files in the T64 file. The files are read as slices of the (mapped) T64 file.
+ * T64 archives are read-only.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/t64.html
+ */
+public class T64DiskImage implements DiskImage {
+
+    // Inner classes
+
+
+    // Static variables
+
+    /**
+     * The end address, that some old converters wrote for all the files.
+     */
+    private final static int BAD_END_ADDRESS = 0xc3c6;
+
+    /**
+     * The size of the header of a T64 file.
+     */
+    final static int HEADER_SIZE = 0x40;
+
+    /**
+     * The size of a directory entry.
+     */
+    final static int ENTRY_SIZE = 0x20;
+
+
+    // Instance variables
+
+    /**
+     * The data of the T64 file.
+     */
+    private ByteBuffer _data;
+
+    /**
+     * The directory of the archive.
+     */
+    private DirectoryImpl _directory;
+
+    /**
+     * The filename of the T64 file.
+     */
+    private String _filename;
+
+    /**
+     * Flag to indicate, if this image was modified.
+     */
+    private volatile boolean _modified = false;
+
+    /**
+     * The name of the tape.
+     */
+    private String _tapeName;
+
+
+    // Constructors
+
+    /**
+     * Create a new T64 archive from the data of a T64 file and parse its directory.
+     *
+     * @param filename The filename of the T64 file.
+     * @param data The data of the T64 file (i.e. a mapped file).
+     */
+    public T64DiskImage( String filename, ByteBuffer data) {
+
+	_filename = filename;
+	_data = data;
+
+	_tapeName = decodeName( HEADER_SIZE - 24, 24);
+	_directory = parseDirectory();
+    }
+
+
+    // Methods
+
+    /**
+     * Decode a petscii name, that is padded with spaces or shifted spaces.
+     *
+     * @param offset The offset of the name in the T64 file.
+     * @param length The maximum length of the name.
+     *
+     * @return The decoded name.
+     */
+    private String decodeName( int offset, int length) {
+
+	byte [] nameBytes = new byte[ length];
+	for( int currentChar = 0; currentChar < length; ++currentChar) {
+
+	    nameBytes[ currentChar] = _data.get( offset + currentChar);
+	}
+
+	// Strip the padding.
+	while( ( length > 0) && ( ( nameBytes[ length - 1] == (byte)0x20) || ( nameBytes[ length - 1] == (byte)0xa0) || ( nameBytes[ length - 1] == 0))) {
+
+	    --length;
+	}
+
+	return CharsetUtils.getInstance().decode( nameBytes, 0, length);
+    }
+
+    /**
+     * Get a read-only slice of the T64 file with the data of a file (without the load address).
+     * The data are not copied.
+     *
+     * @param directoryEntry The directory entry of the file.
+     *
+     * @return A read-only buffer with the data of the file.
+     */
+    public ByteBuffer getDataBuffer( T64DirectoryEntry directoryEntry) {
+
+	ByteBuffer result = _data.duplicate();
+	result.limit( directoryEntry.getDataOffset() + directoryEntry.getDataLength());
+	result.position( directoryEntry.getDataOffset());
+
+	return result.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the current root directory of this image.
+     *
+     * @return The directory of the archive.
+     */
+    public Directory getDirectory() {
+
+	return _directory;
+    }
+
+    /**
+     * Get the filename of this disk image.
+     *
+     * @return The filename of this disk image.
+     */
+    public String getFileName() {
+
+	return _filename;
+    }
+
+    /**
+     * Get the free disk space as bytes.
+     *
+     * @return Always 0, since files cannot be added to a T64 archive.
+     */
+    public long getFreeDiskSpace() {
+
+	return 0L;
+    }
+
+    /**
+     * Get a given number of free sector (to store a new file).
+     *
+     * @param num The number of requested sectors or -1 if all free sectors should be returned.
+     *
+     * @return Always null, since a T64 archive has no sectors.
+     */
+    public List<Sector> getFreeSectors( int num) {
+
+	return null;
+    }
+
+    /**
+     * Get an input stream for a given directory entry. The stream reads the load address
+     * and then the file data directly from the T64 file.
+     *
+     * @param directoryEntry The directory entry of the file.
+     *
+     * @return An input stream to read the file.
+     */
+    public InputStream getInputStream( DirectoryEntry directoryEntry) {
+
+	T64DirectoryEntry t64Entry = (T64DirectoryEntry)directoryEntry;
+
+	return new T64FileInputStream( t64Entry.getStartAddress(), getDataBuffer( t64Entry));
+    }
+
+    /**
+     * Get the maximum track index.
+     *
+     * @return Always -1, since a T64 archive has no sectors.
+     */
+    public int getMaxTrackIndex() {
+
+	return -1;
+    }
+
+    /**
+     * Get the minimum track number.
+     *
+     * @return Always -1, since a T64 archive has no sectors.
+     */
+    public int getMinTrackIndex() {
+
+	return -1;
+    }
+
+    /**
+     * Write a new file to the disk image.
+     *
+     * @param directoryEntry The directory entry for the new file.
+     *
+     * @return Always null, since T64 archives are read-only.
+     */
+    public OutputStream getOutputStream( DirectoryEntry directoryEntry) {
+
+	System.err.println( "Cannot store file " + directoryEntry.getFileName() + " : T64 archives are read-only.");
+
+	return null;
+    }
+
+    /**
+     * Get all the sectors of this image.
+     *
+     * @return An empty list, since a T64 archive has no sectors.
+     */
+    public List<Sector> getSectors() {
+
+	return Collections.<Sector>emptyList();
+    }
+
+    /**
+     * Get the size of the image as bytes.
+     *
+     * @return The size of the T64 file as bytes.
+     */
+    public int getSize() {
+
+	return _data.capacity();
+    }
+
+    /**
+     * Get the name of the tape.
+     *
+     * @return The name of the tape from the header.
+     */
+    public String getTapeName() {
+
+	return _tapeName;
+    }
+
+    /**
+     * Get the name of the native unit, this format uses.
+     *
+     * @return The name of native unit, this format uses.
+     */
+    public String getUnitName() {
+
+	return "Byte(s)";
+    }
+
+    /**
+     * Get the size of this unit as bytes.
+     *
+     * @return The size of this unit as bytes.
+     */
+    public int getUnitSize() {
+
+	return 1;  // The files of a T64 archive have exact sizes.
+    }
+
+    /**
+     * Check, if this disk image was modified.
+     *
+     * @return true, if this disk image was modified. False otherwise.
+     */
+    public boolean isModified() {
+
+	return _modified;
+    }
+
+    /**
+     * Parse the directory of this archive. Many T64 files have wrong end addresses (i.e.
+     * from old converters) or a wrong number of used entries, so the length of each file is
+     * limited to the start of the next file. Only the directory is read for this.
+     *
+     * @return The directory of the archive.
+     */
+    private DirectoryImpl parseDirectory() {
+
+	DirectoryImpl result = new DirectoryImpl( this);
+	int fileSize = _data.capacity();
+
+	// The number of used entries is often 0, so check all the entries, that fit in the file.
+	int maxEntries = ( _data.get( 0x22) & 0xff) | ( ( _data.get( 0x23) & 0xff) << 8);
+	int usedEntries = ( _data.get( 0x24) & 0xff) | ( ( _data.get( 0x25) & 0xff) << 8);
+	int nEntries = Math.min( Math.max( maxEntries, usedEntries), ( fileSize - HEADER_SIZE) / ENTRY_SIZE);
+
+	// Collect the data offsets of the used entries, so the end of each file can be found.
+	int [] dataOffsets = new int[ nEntries];
+	int nDataOffsets = 0;
+	for( int currentEntry = 0; currentEntry < nEntries; ++currentEntry) {
+
+	    int entryOffset = HEADER_SIZE + ENTRY_SIZE * currentEntry;
+
+	    if( _data.get( entryOffset) != 0) {
+
+		dataOffsets[ nDataOffsets++] = readInt( entryOffset + 8);
+	    }
+	}
+	Arrays.sort( dataOffsets, 0, nDataOffsets);
+
+	for( int currentEntry = 0; currentEntry < nEntries; ++currentEntry) {
+
+	    int entryOffset = HEADER_SIZE + ENTRY_SIZE * currentEntry;
+
+	    // Skip the free entries.
+	    if( _data.get( entryOffset) == 0) {
+
+		continue;
+	    }
+
+	    int startAddress = ( _data.get( entryOffset + 2) & 0xff) | ( ( _data.get( entryOffset + 3) & 0xff) << 8);
+	    int endAddress = ( _data.get( entryOffset + 4) & 0xff) | ( ( _data.get( entryOffset + 5) & 0xff) << 8);
+	    int dataOffset = readInt( entryOffset + 8);
+	    String filename = decodeName( entryOffset + 0x10, 16);
+
+	    if( ( dataOffset < HEADER_SIZE) || ( dataOffset > fileSize)) {
+
+		System.err.println( "T64 file " + _filename + " : data of " + filename + " are not in the file.");
+		continue;
+	    }
+
+	    // The data of this file end at the start of the next file or at the end of the T64 file.
+	    int nextIndex = Arrays.binarySearch( dataOffsets, 0, nDataOffsets, dataOffset + 1);
+	    nextIndex = nextIndex < 0 ? -nextIndex - 1 : nextIndex;
+	    int availableLength = ( nextIndex < nDataOffsets ? dataOffsets[ nextIndex] : fileSize) - dataOffset;
+
+	    // Fix a bad end address with the available length. Old converters wrote 0xc3c6 for all the files.
+	    int length = endAddress - startAddress;
+	    if( ( length <= 0) || ( length > availableLength) || ( endAddress == BAD_END_ADDRESS)) {
+
+		length = Math.min( availableLength, 0x10000 - startAddress);
+	    }
+
+	    // Only the type of 1541 files is stored, all the others are programs.
+	    int fileType = _data.get( entryOffset + 1) & 0xff;
+	    String fileTypeName = "PRG";
+	    if( ( fileType & 0x80) != 0) {
+
+		switch( fileType & 7) {
+		case 0: fileTypeName = "DEL"; break;
+		case 1: fileTypeName = "SEQ"; break;
+		case 3: fileTypeName = "USR"; break;
+		case 4: fileTypeName = "REL"; break;
+		}
+	    }
+
+	    result.addDirectoryEntry( new T64DirectoryEntry( filename, fileTypeName, startAddress, startAddress + length, dataOffset, result));
+	}
+
+	return result;
+    }
+
+    /**
+     * Read a 32 bit little endian int from the T64 file.
+     *
+     * @param offset The offset of the int.
+     *
+     * @return The int value.
+     */
+    private int readInt( int offset) {
+
+	return ( _data.get( offset) & 0xff) | ( ( _data.get( offset + 1) & 0xff) << 8) | ( ( _data.get( offset + 2) & 0xff) << 16) | ( ( _data.get( offset + 3) & 0xff) << 24);
+    }
+
+    /**
+     * Set the modified flag of this disk image.
+     *
+     * @param modified The new value of the modified flag.
+     */
+    public void setModified( boolean modified) {
+
+	_modified = modified;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.t64;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Class to read a file from a T64 archive. The stream returns the load address and then
+ * the file data straight from a slice of the mapped T64 file, so the file is never buffered.
+ */
+class T64FileInputStream extends InputStream {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+    /**
+     * The slice of the T64 file with the data of the file.
+     */
+    private ByteBuffer _data;
+
+    /**
+     * The load address of the file (the first 2 bytes of the stream).
+     */
+    private int _loadAddress;
+
+    /**
+     * The number of bytes of the load address, that were read already.
+     */
+    private int _loadAddressPos = 0;
+
+
+    // Constructors
+
+    /**
+     * Create a new input stream for a file of a T64 archive.
+     *
+     * @param loadAddress The load address of the file.
+     * @param data A slice of the T64 file with the data of the file.
+     */
+    T64FileInputStream( int loadAddress, ByteBuffer data) {
+
+	_loadAddress = loadAddress;
+	_data = data;
+    }
+
+
+    // Methods
+
+    /**
+     * Get the number of bytes, that can still be read.
+     *
+     * @return The number of remaining bytes of the file.
+     */
+    public int available() {
+
+	return 2 - _loadAddressPos + _data.remaining();
+    }
+
+    /**
+     * Read the next byte of the file.
+     *
+     * @return The next byte or -1 at the end of the file.
+     */
+    public int read() {
+
+	// The file starts with the load address, low byte first.
+	if( _loadAddressPos < 2) {
+
+	    return ( _loadAddress >>> ( 8 * _loadAddressPos++)) & 0xff;
+	}
+
+	return _data.hasRemaining() ? _data.get() & 0xff : -1;
+    }
+
+    /**
+     * Read up to len bytes into an array.
+     *
+     * @param b The array to read to.
+     * @param off The offset in the array.
+     * @param len The maximum number of bytes to read.
+     *
+     * @return The number of read bytes or -1 at the end of the file.
+     */
+    public int read( byte [] b, int off, int len) {
+
+	if( ( off < 0) || ( len < 0) || ( len > b.length - off)) {
+
+	    throw new IndexOutOfBoundsException();
+	}
+
+	if( len == 0) {
+
+	    return 0;
+	}
+
+	int bytesRead = 0;
+	while( ( bytesRead < len) && ( _loadAddressPos < 2)) {
+
+	    b[ off + bytesRead++] = (byte)read();
+	}
+
+	// Copy the data directly from the mapped file.
+	int chunkLength = Math.min( len - bytesRead, _data.remaining());
+	_data.get( b, off + bytesRead, chunkLength);
+	bytesRead += chunkLength;
+
+	return bytesRead == 0 ? -1 : bytesRead;
+    }
+
+    /**
+     * Skip some bytes of the file.
+     *
+     * @param n The number of bytes to skip.
+     *
+     * @return The number of skipped bytes.
+     */
+    public long skip( long n) {
+
+	long skipped = 0;
+	while( ( skipped < n) && ( _loadAddressPos < 2)) {
+
+	    ++_loadAddressPos;
+	    ++skipped;
+	}
+
+	int dataSkip = (int)Math.min( n - skipped, _data.remaining());
+	_data.position( _data.position() + dataSkip);
+
+	return skipped + dataSkip;
+    }
+}
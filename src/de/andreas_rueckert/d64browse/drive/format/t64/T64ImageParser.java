@@ -0,0 +1,106 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.drive.format.t64;
+
+import de.andreas_rueckert.d64browse.drive.format.ImageParser;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Class to parse T64 tape archives. The file is mapped into memory, so the files of the
+ * archive can be extracted without copying the whole archive.
+ *
+ * @see http://unusedino.de/ec64/technical/formats/t64.html
+ */
+public class T64ImageParser extends ImageParser {
+
+    // Inner classes
+
+
+    // Static variables
+
+
+    // Instance variables
+
+
+    // Constructors
+
+
+    // Methods
+
+    /**
+     * Check, if the header of a file has a T64 signature. Some converters wrote 'C64S tape file',
+     * others 'C64 tape image file', so only the start of the signature is checked.
+     *
+     * @param data The data of the file.
+     *
+     * @return true, if the data start with a T64 signature.
+     */
+    private static boolean hasSignature( MappedByteBuffer data) {
+
+	return ( data.get( 0) == 'C') && ( data.get( 1) == '6') && ( data.get( 2) == '4')
+	    && ( ( data.get( 3) == ' ') || ( data.get( 3) == 'S'));
+    }
+
+    /**
+     * Parse a T64 file with a given filename. The file is mapped read-only.
+     *
+     * @param filename The name of the T64 file.
+     *
+     * @return The archive with the directory of the file.
+     *
+     * @throws IOException if the file cannot be parsed.
+     */
+    public static T64DiskImage parse( String filename) throws IOException {
+
+	// Open the file and map it. The mapping stays valid after the channel is closed.
+	FileChannel channel = FileChannel.open( Paths.get( filename), StandardOpenOption.READ);
+	try {
+
+	    if( ( channel.size() < T64DiskImage.HEADER_SIZE) || ( channel.size() > Integer.MAX_VALUE)) {
+
+		throw new IOException( "T64ImageParser.parse() : Bad file size " + channel.size() + ". Cannot parse this file.");
+	    }
+
+	    MappedByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+	    if( ! hasSignature( data)) {
+
+		throw new IOException( "T64ImageParser.parse() : This is not a T64 archive.");
+	    }
+
+	    return new T64DiskImage( filename, data);
+
+	} finally {
+
+	    channel.close();
+	}
+    }
+}
@@ -25,18 +25,29 @@
 
 package de.andreas_rueckert.d64browse.util;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * Class to convert character sets.
+ *
+ * The instance is immutable and created by the class loader, so it can be used by any
+ * number of threads without locking.
  */
 public class CharsetUtils {
 
     // Inner classes 
 
+    /**
+     * Holder for the only instance. The class loader initializes it on the first call of
+     * getInstance(), and guarantees, that all threads see the completely built instance.
+     */
+    private static class InstanceHolder {
+
+	/**
+	 * The only instance of the CharsetUtils class (singleton pattern).
+	 */
+	private final static CharsetUtils INSTANCE = new CharsetUtils();
+    }
+
 
     // Static variables
 
@@ -44,19 +55,14 @@ public class CharsetUtils {
     // Instance variables
 
     /**
-     * A mapping from ascii to petscii.
+     * The codec for the conversions (the upper case/graphics charset).
      */
-    Map< Character, Byte> _asciiPetsciiMapping = new HashMap< Character, Byte>();
+    private final PetsciiCodec _codec = PetsciiCodec.UPPER;
 
     /**
-     * The only instance of this class (singleton pattern).
+     * The decoded petscii chars as strings, so petscii2ascii doesn't create new strings.
      */
-    private static CharsetUtils _instance = null;
-
-    /**
-     * Mapping from petscii to ascii.
-     */
-    List< String> _petsciiAsciiMapping = new ArrayList< String>();
+    private final String [] _petsciiStrings = new String[ 256];
 
 
     // Constructors
@@ -68,44 +74,11 @@ public class CharsetUtils {
      */
     private CharsetUtils() {
 
-	// Init the petscii mapping.
+	// Cache the strings for the single char conversions.
 	for( int i = 0; i < 256; ++i) {
 
-	    _petsciiAsciiMapping.add( "<petscii char " + i + " >");
+	    _petsciiStrings[ i] = String.valueOf( _codec.decode( (byte)i));
 	}
-
-	// Now set the known characters.
-	_petsciiAsciiMapping.set( 32, " ");
-	_petsciiAsciiMapping.set( 65, "A");
-	_petsciiAsciiMapping.set( 66, "B");
-	_petsciiAsciiMapping.set( 67, "C");
-	_petsciiAsciiMapping.set( 68, "D");
-	_petsciiAsciiMapping.set( 69, "E");
-	_petsciiAsciiMapping.set( 70, "F");
-	_petsciiAsciiMapping.set( 71, "G");
-	_petsciiAsciiMapping.set( 72, "H");
-	_petsciiAsciiMapping.set( 73, "I");
-	_petsciiAsciiMapping.set( 74, "J");
-	_petsciiAsciiMapping.set( 75, "K");
-	_petsciiAsciiMapping.set( 76, "L");
-	_petsciiAsciiMapping.set( 77, "M");
-	_petsciiAsciiMapping.set( 78, "N");
-	_petsciiAsciiMapping.set( 79, "O");
-	_petsciiAsciiMapping.set( 80, "P");
-	_petsciiAsciiMapping.set( 81, "Q");
-	_petsciiAsciiMapping.set( 82, "R");
-	_petsciiAsciiMapping.set( 83, "S");
-	_petsciiAsciiMapping.set( 84, "T");
-	_petsciiAsciiMapping.set( 85, "U");
-	_petsciiAsciiMapping.set( 86, "V");
-	_petsciiAsciiMapping.set( 87, "W");
-	_petsciiAsciiMapping.set( 88, "X");
-	_petsciiAsciiMapping.set( 89, "Y");
-	_petsciiAsciiMapping.set( 90, "Z");
-	_petsciiAsciiMapping.set( 160, " ");
-
-	// Revert the mapping for ascii => petscii conversions.
-	_asciiPetsciiMapping = revertMapping( _petsciiAsciiMapping);
     }
 
 
@@ -116,21 +89,39 @@ public class CharsetUtils {
      *
      * @param character The character to convert.
      *
-     * @return The character as a petscii character, if it exists in the mapping.
+     * @return The character as a petscii character, if it exists in the mapping. The '%' character otherwise.
      */
     public byte ascii2petscii( char character) {
 
-	// Get the mapped character from the ascii => petscii mapping.
-	Byte mappedByte =  _asciiPetsciiMapping.get( new Character( character));
-	
-	if( mappedByte == null) {
+	return _codec.encode( character);
+    }
 
-	    return (byte)37;  // The '%' character as a placeholder.
+    /**
+     * Convert a range of petscii bytes to a string.
+     *
+     * @param data The buffer with the petscii bytes.
+     * @param offset The offset of the first byte in the buffer.
+     * @param length The number of bytes to convert.
+     *
+     * @return The converted string.
+     */
+    public String decode( byte [] data, int offset, int length) {
 
-	} else {
+	return _codec.decode( data, offset, length);
+    }
 
-	    return mappedByte.byteValue();  // Returned the mapped character.
-	}
+    /**
+     * Convert a string to petscii bytes.
+     *
+     * @param text The text to convert.
+     * @param buffer The buffer for the petscii bytes.
+     * @param offset The offset of the first byte in the buffer.
+     *
+     * @return The number of stored bytes.
+     */
+    public int encode( CharSequence text, byte [] buffer, int offset) {
+
+	return _codec.encode( text, buffer, offset);
     }
 
     /**
@@ -140,12 +131,7 @@ public class CharsetUtils {
      */
     public static CharsetUtils getInstance() {
 
-	if( _instance == null) {  // If there is no instance yet,
-
-	    _instance = new CharsetUtils();
-	}
-
-	return _instance;
+	return InstanceHolder.INSTANCE;
     }
 
     /**
@@ -158,32 +144,6 @@ public class CharsetUtils {
     public String petscii2ascii( byte petsciiByte) {
 	
 	// Convert the signed byte to an int and remove the byte sign.
-	return _petsciiAsciiMapping.get( petsciiByte & 0xFF);
-    }	
-
-    /**
-     * Revert the petscii mapping to an ascii mapping.
-     *
-     * @param orgMapping The original mapping.
-     *
-     * @return The reverted mapping.
-     */
-    Map< Character, Byte> revertMapping( List<String> orgMapping) {
-
-	// Create a mapping buffer for the result.
-	Map< Character, Byte> result = new HashMap< Character, Byte>();
-
-	// Loop over the original mapping.
-	for( int i = 0; i < orgMapping.size(); ++i) {
-
-	    // If this entry is not empty,
-	    if( ! orgMapping.get( i).equals( "<petscii char " + i + " >")) {
-
-		// map it to an entry in the reverted mapping (just the 1st character).
-		result.put( orgMapping.get( i).charAt(0), new Byte( (byte)i));
-	    }
-	}
-
-	return result;  // Return the reverted mapping.
+	return _petsciiStrings[ petsciiByte & 0xFF];
     }
 }
\ No newline at end of file
@@ -0,0 +1,360 @@
+/**
+ * Java tool for C= disk images
+ *
+ * Copyright (c) 2014 the authors:
+ * 
+ * @author Andreas Rueckert <mail@andreas-rueckert.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the "Software"), 
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT 
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION 
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package de.andreas_rueckert.d64browse.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Table driven conversion between the C= charsets and java characters.
+ *
+ * There is a codec for the upper case/graphics and the lower/upper case charset, for petscii
+ * and for screen codes. The codecs just look up the characters in 2 tables, so there is no
+ * boxing or object allocation per character. Graphics characters without a unicode
+ * equivalent are mapped to the private use area (U+E000 + code for the upper case charset,
+ * U+E100 + code for the lower case charset), so they survive a decode/encode round trip.
+ * Duplicate petscii codes (i.e. 0xc1 and 0x61) decode to the same character. Reverse screen
+ * codes (0x80-0xff) decode to the character of the normal screen code.
+ *
+ * The tables are built, when the enum class is initialized, and never modified afterwards.
+ * So the codecs can be shared by any number of threads without locking.
+ *
+ * @see <a href="http://www.c64-wiki.com/index.php/PETSCII">Petscii charset</a>
+ */
+public enum PetsciiCodec {
+
+    /**
+     * Petscii with the upper case/graphics charset (the default charset of the c64).
+     */
+    UPPER( false, false),
+
+    /**
+     * Petscii with the lower/upper case charset.
+     */
+    LOWER( true, false),
+
+    /**
+     * Screen codes with the upper case/graphics charset.
+     */
+    SCREEN_UPPER( false, true),
+
+    /**
+     * Screen codes with the lower/upper case charset.
+     */
+    SCREEN_LOWER( true, true);
+
+
+    // Static variables
+
+    /**
+     * The code of the '%' character, that replaces characters without a mapping.
+     */
+    private final static byte PLACEHOLDER_CODE = (byte)0x25;
+
+
+    // Instance variables
+
+    /**
+     * The mapping from codes to characters.
+     */
+    private final char [] _decodeTable;
+
+    /**
+     * The mapping from characters to codes.
+     */
+    private final byte [] _encodeTable;
+
+
+    // Constructors
+
+    /**
+     * Create a new codec.
+     *
+     * @param lowercase true, if the lower/upper case charset is used.
+     * @param screenCodes true, if screen codes are converted instead of petscii.
+     */
+    private PetsciiCodec( boolean lowercase, boolean screenCodes) {
+
+	char [] petsciiTable = createPetsciiDecodeTable( lowercase);
+
+	if( screenCodes) {
+
+	    _decodeTable = new char[ 256];
+
+	    for( int currentCode = 0; currentCode < 128; ++currentCode) {
+
+		_decodeTable[ currentCode] = petsciiTable[ screenCodeToPetscii( currentCode)];
+		_decodeTable[ currentCode | 0x80] = _decodeTable[ currentCode];  // Reverse chars.
+	    }
+
+	    // Prefer the normal screen codes over the reverse codes.
+	    int [] encodeOrder = new int[ 256];
+	    for( int i = 0; i < 256; ++i) {
+
+		encodeOrder[ i] = i;
+	    }
+	    _encodeTable = createEncodeTable( _decodeTable, encodeOrder, ! lowercase);
+
+	} else {
+
+	    _decodeTable = petsciiTable;
+
+	    // Prefer the codes, that the c64 keyboard generates (0xc1 instead of 0x61 etc).
+	    int [] encodeOrder = new int[ 256];
+	    int orderIndex = 0;
+	    for( int [] currentRange : new int [][] { { 0x00, 0x5f}, { 0xc0, 0xdf}, { 0xa0, 0xbf}, { 0x80, 0x9f}, { 0x60, 0x7f}, { 0xe0, 0xff} }) {
+
+		for( int currentCode = currentRange[ 0]; currentCode <= currentRange[ 1]; ++currentCode) {
+
+		    encodeOrder[ orderIndex++] = currentCode;
+		}
+	    }
+	    _encodeTable = createEncodeTable( _decodeTable, encodeOrder, ! lowercase);
+	}
+    }
+
+
+    // Methods
+
+    /**
+     * Create the table to encode characters.
+     *
+     * @param decodeTable The table to decode codes.
+     * @param encodeOrder The codes in the order of preference, if several codes decode to the same character.
+     * @param foldLowercase true, if lower case ascii letters should be encoded as upper case letters.
+     *
+     * @return The table to encode characters.
+     */
+    private static byte [] createEncodeTable( char [] decodeTable, int [] encodeOrder, boolean foldLowercase) {
+
+	byte [] result = new byte[ 65536];
+	boolean [] mapped = new boolean[ 65536];
+
+	Arrays.fill( result, PLACEHOLDER_CODE);
+
+	for( int currentCode : encodeOrder) {
+
+	    char currentChar = decodeTable[ currentCode];
+
+	    if( ! mapped[ currentChar]) {
+
+		result[ currentChar] = (byte)currentCode;
+		mapped[ currentChar] = true;
+	    }
+	}
+
+	// The upper case charset has no lower case letters, so use the upper case letters.
+	if( foldLowercase) {
+
+	    for( char currentChar = 'a'; currentChar <= 'z'; ++currentChar) {
+
+		if( ! mapped[ currentChar]) {
+
+		    result[ currentChar] = result[ currentChar - 'a' + 'A'];
+		}
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Create the table to decode petscii codes.
+     *
+     * @param lowercase true, if the lower/upper case charset is used.
+     *
+     * @return The table to decode petscii codes.
+     */
+    private static char [] createPetsciiDecodeTable( boolean lowercase) {
+
+	char [] result = new char[ 256];
+
+	// Use the private use area for all the graphics chars without a unicode equivalent.
+	char privateUseBase = lowercase ? '\ue100' : '\ue000';
+	for( int currentCode = 0; currentCode < 256; ++currentCode) {
+
+	    result[ currentCode] = (char)( privateUseBase + currentCode);
+	}
+
+	// The control codes are mapped to the control characters with the same value.
+	for( int currentCode = 0; currentCode < 0x20; ++currentCode) {
+
+	    result[ currentCode] = (char)currentCode;
+	    result[ currentCode + 0x80] = (char)( currentCode + 0x80);
+	}
+
+	// Digits, punctuation and upper case letters are mostly ascii.
+	for( int currentCode = 0x20; currentCode < 0x60; ++currentCode) {
+
+	    result[ currentCode] = (char)currentCode;
+	}
+	result[ 0x5c] = '\u00a3';  // Pound sign.
+	result[ 0x5e] = '\u2191';  // Up arrow.
+	result[ 0x5f] = '\u2190';  // Left arrow.
+	result[ 0xa0] = '\u00a0';  // Shifted space.
+
+	// Graphics chars, that are identical in both charsets.
+	int [][] commonGraphics = {
+	    { 0x60, 0x2500}, { 0x7b, 0x253c}, { 0x7d, 0x2502}
+	    , { 0xa1, 0x258c}, { 0xa2, 0x2584}, { 0xa3, 0x2594}, { 0xa4, 0x2581}, { 0xa5, 0x258f}
+	    , { 0xa6, 0x2592}, { 0xa7, 0x2595}, { 0xab, 0x251c}, { 0xac, 0x2597}, { 0xad, 0x2514}
+	    , { 0xae, 0x2510}, { 0xaf, 0x2582}, { 0xb0, 0x250c}, { 0xb1, 0x2534}, { 0xb2, 0x252c}
+	    , { 0xb3, 0x2524}, { 0xb4, 0x258e}, { 0xb5, 0x258d}, { 0xb9, 0x2583}, { 0xbb, 0x2596}
+	    , { 0xbc, 0x259d}, { 0xbd, 0x2518}, { 0xbe, 0x2598}, { 0xbf, 0x259a} };
+	for( int [] currentMapping : commonGraphics) {
+
+	    result[ currentMapping[ 0]] = (char)currentMapping[ 1];
+	}
+
+	if( lowercase) {
+
+	    // Swap the cases of the letters.
+	    for( int currentCode = 0x41; currentCode <= 0x5a; ++currentCode) {
+
+		result[ currentCode] = (char)( currentCode + 0x20);
+		result[ currentCode + 0x20] = (char)currentCode;
+	    }
+	    result[ 0xba] = '\u2713';  // Check mark.
+
+	} else {
+
+	    // Graphics chars of the upper case charset.
+	    int [][] upperGraphics = {
+		{ 0x61, 0x2660}, { 0x71, 0x25cf}, { 0x73, 0x2665}, { 0x77, 0x25cb}
+		, { 0x78, 0x2663}, { 0x7a, 0x2666}, { 0x7e, 0x03c0}, { 0x7f, 0x25e5} };
+	    for( int [] currentMapping : upperGraphics) {
+
+		result[ currentMapping[ 0]] = (char)currentMapping[ 1];
+	    }
+	}
+
+	// The codes 0xc0-0xff are copies of other codes.
+	for( int currentCode = 0xc0; currentCode < 0xe0; ++currentCode) {
+
+	    result[ currentCode] = result[ currentCode - 0x60];
+	}
+	for( int currentCode = 0xe0; currentCode < 0xff; ++currentCode) {
+
+	    result[ currentCode] = result[ currentCode - 0x40];
+	}
+	result[ 0xff] = result[ 0x7e];
+
+	return result;
+    }
+
+    /**
+     * Decode a single code.
+     *
+     * @param code The code to decode.
+     *
+     * @return The character for this code.
+     */
+    public char decode( byte code) {
+
+	return _decodeTable[ code & 0xff];
+    }
+
+    /**
+     * Decode a range of codes to a string.
+     *
+     * @param data The buffer with the codes.
+     * @param offset The offset of the first code in the buffer.
+     * @param length The number of codes to decode.
+     *
+     * @return The decoded string.
+     */
+    public String decode( byte [] data, int offset, int length) {
+
+	char [] result = new char[ length];
+
+	for( int i = 0; i < length; ++i) {
+
+	    result[ i] = _decodeTable[ data[ offset + i] & 0xff];
+	}
+
+	return new String( result);
+    }
+
+    /**
+     * Encode a single character.
+     *
+     * @param character The character to encode.
+     *
+     * @return The code for this character or the code of '%', if there is no mapping.
+     */
+    public byte encode( char character) {
+
+	return _encodeTable[ character];
+    }
+
+    /**
+     * Encode a sequence of characters into a buffer.
+     *
+     * @param text The characters to encode.
+     * @param buffer The buffer for the codes.
+     * @param offset The offset of the first code in the buffer.
+     *
+     * @return The number of stored codes.
+     */
+    public int encode( CharSequence text, byte [] buffer, int offset) {
+
+	int length = text.length();
+
+	for( int i = 0; i < length; ++i) {
+
+	    buffer[ offset + i] = _encodeTable[ text.charAt( i)];
+	}
+
+	return length;
+    }
+
+    /**
+     * Convert a screen code to the equivalent petscii code.
+     *
+     * @param screenCode The screen code (0-127).
+     *
+     * @return The petscii code with the same character.
+     */
+    private static int screenCodeToPetscii( int screenCode) {
+
+	if( screenCode < 0x20) {
+
+	    return screenCode + 0x40;
+
+	} else if( screenCode < 0x40) {
+
+	    return screenCode;
+
+	} else if( screenCode < 0x60) {
+
+	    return screenCode + 0x20;
+
+	} else {
+
+	    return screenCode + 0x40;
+	}
+    }
+}